@@ -0,0 +1,102 @@
+package com.dreikraft.vertx.couchdb;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.vertx.java.core.MultiMap;
+import org.vertx.java.core.buffer.Buffer;
+import org.vertx.java.core.http.CaseInsensitiveMultiMap;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks building couchdb requests from event bus messages.
+ *
+ * @author jansolo
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class RequestBenchmark {
+
+    private String serverPath;
+    private String viewPath;
+    private JsonArray viewParams;
+    private JsonArray headers;
+    private JsonObject doc;
+
+    /**
+     * Creates the request parameters.
+     */
+    @Setup
+    public void setUp() {
+        serverPath = RequestBuilder.path(CouchdbVerticle.ADDRESS_SERVER);
+        viewPath = RequestBuilder.path(String.format(CouchdbVerticle.ADDRESS_VIEW, "dummy", "dummy", "all"));
+        viewParams = new JsonArray().addObject(new JsonObject().putString("startkey", "dummy1"))
+                .addObject(new JsonObject().putString("endkey", "dummy9"))
+                .addObject(new JsonObject().putBoolean("include_docs", true))
+                .addObject(new JsonObject().putNumber("limit", 100));
+        headers = new JsonArray().addObject(new JsonObject().putString("Accept", "application/json"))
+                .addObject(new JsonObject().putString("If-None-Match", "\"1-8cf73467930ed4ce09baf4067f866696\""));
+        doc = new JsonObject().putString("_id", "dummy1").putString("name", "dummy1")
+                .putString("description", "a dummy document with some \u00e4\u00f6\u00fc umlauts")
+                .putArray("tags", new JsonArray().addString("a").addString("b").addString("c"))
+                .putNumber("count", 42);
+    }
+
+    /**
+     * Builds a document uri.
+     *
+     * @return the uri
+     */
+    @Benchmark
+    public String docUri() {
+        return RequestBuilder.uri(serverPath, "dummy", "dummy1", null);
+    }
+
+    /**
+     * Builds a view uri with parameters.
+     *
+     * @return the uri
+     */
+    @Benchmark
+    public String viewUri() {
+        return RequestBuilder.uri(viewPath, null, null, viewParams);
+    }
+
+    /**
+     * Builds the basic authorization header.
+     *
+     * @return the header value
+     */
+    @Benchmark
+    public String basicAuth() {
+        return RequestBuilder.basicAuth("admin", "secret");
+    }
+
+    /**
+     * Adds request headers.
+     *
+     * @return the headers
+     */
+    @Benchmark
+    public MultiMap headers() {
+        return RequestBuilder.headers(new CaseInsensitiveMultiMap(), headers);
+    }
+
+    /**
+     * Encodes a document body.
+     *
+     * @return the body
+     */
+    @Benchmark
+    public Buffer body() {
+        return RequestBuilder.body(doc);
+    }
+}
@@ -0,0 +1,115 @@
+package com.dreikraft.vertx.couchdb;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.buffer.Buffer;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks parsing couchdb response bodies: a small document, a view page of 1000 rows and a bulk docs result of
+ * 100 documents.
+ *
+ * @author jansolo
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ResponseBenchmark {
+
+    private static final int VIEW_ROWS = 1000;
+    private static final int BULK_DOCS = 100;
+    private static final int CHUNK_SIZE = 8192;
+
+    private Buffer doc;
+    private Buffer viewPage;
+    private Buffer[] viewPageChunks;
+    private Buffer bulkResult;
+
+    /**
+     * Creates the response bodies.
+     */
+    @Setup
+    public void setUp() {
+        doc = new Buffer(new JsonObject().putString("_id", "dummy1")
+                .putString("_rev", "1-8cf73467930ed4ce09baf4067f866696").putString("name", "dummy1")
+                .putNumber("count", 42).encode(), "UTF-8");
+
+        final JsonArray rows = new JsonArray();
+        for (int i = 0; i < VIEW_ROWS; i++) {
+            rows.addObject(new JsonObject().putString("id", "dummy" + i).putString("key", "dummy" + i)
+                    .putObject("value", new JsonObject().putString("rev", "1-8cf73467930ed4ce09baf4067f866696")));
+        }
+        viewPage = new Buffer(new JsonObject().putNumber("total_rows", VIEW_ROWS).putNumber("offset", 0)
+                .putArray("rows", rows).encode(), "UTF-8");
+        viewPageChunks = new Buffer[(viewPage.length() + CHUNK_SIZE - 1) / CHUNK_SIZE];
+        for (int i = 0; i < viewPageChunks.length; i++) {
+            viewPageChunks[i] = viewPage.getBuffer(i * CHUNK_SIZE, Math.min(viewPage.length(), (i + 1) * CHUNK_SIZE));
+        }
+
+        final JsonArray results = new JsonArray();
+        for (int i = 0; i < BULK_DOCS; i++) {
+            results.addObject(new JsonObject().putBoolean("ok", true).putString("id", "dummy" + i)
+                    .putString("rev", "1-8cf73467930ed4ce09baf4067f866696"));
+        }
+        bulkResult = new Buffer(results.encode(), "UTF-8");
+    }
+
+    /**
+     * Parses a small document.
+     *
+     * @return the document
+     */
+    @Benchmark
+    public Object smallDoc() {
+        return JsonBody.decode(doc);
+    }
+
+    /**
+     * Parses a view page at once.
+     *
+     * @return the view result
+     */
+    @Benchmark
+    public Object viewPage() {
+        return JsonBody.decode(viewPage);
+    }
+
+    /**
+     * Parses a view page in streaming mode in chunks of 8 KB.
+     *
+     * @param blackhole consumes the parsed rows
+     */
+    @Benchmark
+    public void viewPageStreamed(final Blackhole blackhole) {
+        final RowStreamParser parser = new RowStreamParser(new Handler<Buffer>() {
+            @Override
+            public void handle(final Buffer row) {
+                blackhole.consume(JsonBody.decodeObject(row));
+            }
+        });
+        for (final Buffer chunk : viewPageChunks) {
+            parser.feed(chunk);
+        }
+        blackhole.consume(parser.getEnvelope());
+    }
+
+    /**
+     * Parses a bulk docs result.
+     *
+     * @return the bulk result
+     */
+    @Benchmark
+    public Object bulkResult() {
+        return JsonBody.decode(bulkResult);
+    }
+}
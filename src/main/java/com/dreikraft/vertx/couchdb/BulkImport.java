@@ -0,0 +1,582 @@
+package com.dreikraft.vertx.couchdb;
+
+import org.vertx.java.core.AsyncResult;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.Vertx;
+import org.vertx.java.core.buffer.Buffer;
+import org.vertx.java.core.eventbus.Message;
+import org.vertx.java.core.file.AsyncFile;
+import org.vertx.java.core.file.FileProps;
+import org.vertx.java.core.http.HttpClientRequest;
+import org.vertx.java.core.http.HttpClientResponse;
+import org.vertx.java.core.json.DecodeException;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+import org.vertx.java.core.logging.Logger;
+
+import java.net.HttpURLConnection;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * Imports the documents of a local NDJSON or JSON array file into a database. The file is read asynchronously in
+ * chunks, split into documents by a {@link DocStreamParser} and the raw documents are posted in
+ * <code>_bulk_docs</code> requests, without parsing them into JsonObjects. At most <code>concurrency</code> batches
+ * are in flight, reading the file is paused while as many batches wait to be sent, so only a few batches are held in
+ * memory regardless of the size of the file.
+ * <p>
+ * The number of documents per batch adapts to the latency of the <code>_bulk_docs</code> requests: it grows by a
+ * quarter after every batch faster than <code>targetLatency</code> and is halved after every slower one (additive
+ * increase, multiplicative decrease). A batch rejected with <code>400</code> or <code>413</code> is split in halves,
+ * until the offending document is found and recorded as failed. Batches failing with a connection error, a timeout or
+ * a <code>5xx</code> response are retried with a jittered backoff, the import fails after <code>retries</code>
+ * retries.
+ * <p>
+ * <code>_bulk_docs</code> is not idempotent, a failed request might have written some of its documents. Documents
+ * without <code>_id</code> therefore get an id before their first attempt (the id of the import and the position of
+ * the document in the file, e.g. <code>3f2a...-0000000017</code>), so a retry cannot create duplicates, and a
+ * <code>conflict</code> in a retried batch is counted as imported by the earlier attempt.
+ * <p>
+ * Instances are not thread safe and must only be used from the event loop of the owning verticle.
+ *
+ * @author jansolo
+ */
+final class BulkImport {
+
+    private static final int MIN_BATCH_SIZE = 10;
+
+    private final Vertx vertx;
+    private final Logger logger;
+    private final EndpointBalancer balancer;
+    private final Message<JsonObject> importMsg;
+    private final String progressAddress;
+    private final String db;
+    private final String file;
+    private final String uri;
+    private final String authorization;
+    private final int concurrency;
+    private final int maxBatchSize;
+    private final int maxBatchBytes;
+    private final long targetLatency;
+    private final long timeout;
+    private final int retries;
+    private final long retryDelay;
+    private final long retryMaxDelay;
+    private final Random random;
+    private final String importId = UUID.randomUUID().toString();
+    private final Deque<Batch> ready = new ArrayDeque<>();
+    private final long started = System.currentTimeMillis();
+
+    private AsyncFile asyncFile;
+    private DocStreamParser parser;
+    private int batchSize;
+    private List<Buffer> docs = new ArrayList<>();
+    private int docsBytes;
+    private long docsRead;
+    private long bytesRead;
+    private long size;
+    private long imported;
+    private long failed;
+    private long batches;
+    private int inFlight;
+    private int retrying;
+    private boolean paused;
+    private boolean ended;
+    private boolean done;
+
+    /**
+     * Creates the import.
+     *
+     * @param vertx           the vert.x instance
+     * @param logger          the logger of the owning verticle
+     * @param balancer        chooses the endpoint of the database
+     * @param importMsg       the import request, replied when the import is done
+     * @param progressAddress the address publishing the progress
+     * @param db              the database
+     * @param file            the path of the file
+     * @param authorization   the authorization header value or <code>null</code>
+     * @param concurrency     the maximum number of batches in flight
+     * @param batchSize       the initial number of documents per batch
+     * @param maxBatchSize    the maximum number of documents per batch
+     * @param maxBatchBytes   the maximum size of the documents of a batch in bytes
+     * @param targetLatency   the latency of a <code>_bulk_docs</code> request in milliseconds, above which batches
+     *                        shrink
+     * @param timeout         milliseconds without response data, after which a <code>_bulk_docs</code> request
+     *                        fails and is retried; <code>0</code> disables the timeout
+     * @param retries         the number of retries of a failed batch
+     * @param retryDelay      the base delay of the backoff between retries in milliseconds
+     * @param retryMaxDelay   the maximum delay between retries in milliseconds
+     * @param random          the random generator of the backoff jitter
+     */
+    BulkImport(final Vertx vertx, final Logger logger, final EndpointBalancer balancer,
+               final Message<JsonObject> importMsg, final String progressAddress, final String db, final String file,
+               final String authorization, final int concurrency, final int batchSize, final int maxBatchSize,
+               final int maxBatchBytes, final long targetLatency, final long timeout, final int retries,
+               final long retryDelay, final long retryMaxDelay, final Random random) {
+        this.vertx = vertx;
+        this.logger = logger;
+        this.balancer = balancer;
+        this.importMsg = importMsg;
+        this.progressAddress = progressAddress;
+        this.db = db;
+        this.file = file;
+        this.uri = RequestBuilder.uri("/", db, "_bulk_docs", null);
+        this.authorization = authorization;
+        this.concurrency = Math.max(1, concurrency);
+        this.maxBatchSize = Math.max(MIN_BATCH_SIZE, maxBatchSize);
+        this.batchSize = Math.min(this.maxBatchSize, Math.max(MIN_BATCH_SIZE, batchSize));
+        this.maxBatchBytes = Math.max(1, maxBatchBytes);
+        this.targetLatency = targetLatency;
+        this.timeout = timeout;
+        this.retries = retries;
+        this.retryDelay = Math.max(1, retryDelay);
+        this.retryMaxDelay = retryMaxDelay;
+        this.random = random;
+    }
+
+    /**
+     * Opens the file and starts the import.
+     */
+    void start() {
+        logger.info(String.format("importing %1$s into %2$s (%3$s)", file, db, importId));
+        parser = new DocStreamParser(new Handler<Buffer>() {
+            @Override
+            public void handle(final Buffer doc) {
+                addDoc(doc);
+            }
+        });
+        vertx.fileSystem().open(file, null, true, false, false, new Handler<AsyncResult<AsyncFile>>() {
+            @Override
+            public void handle(final AsyncResult<AsyncFile> openResult) {
+                if (openResult.failed()) {
+                    fail(String.format("failed to open %1$s: %2$s", file, openResult.cause().getMessage()));
+                    return;
+                }
+                asyncFile = openResult.result();
+                read();
+            }
+        });
+    }
+
+    private void read() {
+        vertx.fileSystem().props(file, new Handler<AsyncResult<FileProps>>() {
+            @Override
+            public void handle(final AsyncResult<FileProps> propsResult) {
+                if (propsResult.succeeded()) {
+                    size = propsResult.result().size();
+                }
+            }
+        });
+        asyncFile.exceptionHandler(new Handler<Throwable>() {
+            @Override
+            public void handle(final Throwable ex) {
+                fail(String.format("failed to read %1$s: %2$s", file, ex.getMessage()));
+            }
+        });
+        asyncFile.dataHandler(new Handler<Buffer>() {
+            @Override
+            public void handle(final Buffer chunk) {
+                if (done) {
+                    return;
+                }
+                bytesRead += chunk.length();
+                try {
+                    parser.feed(chunk);
+                } catch (IllegalArgumentException ex) {
+                    fail(String.format("failed to parse %1$s: %2$s", file, ex.getMessage()));
+                }
+            }
+        });
+        asyncFile.endHandler(new Handler<Void>() {
+            @Override
+            public void handle(final Void event) {
+                if (done) {
+                    return;
+                }
+                if (!parser.isComplete()) {
+                    fail(String.format("failed to parse %1$s: unexpected end of file", file));
+                    return;
+                }
+                ended = true;
+                closeFile();
+                flush();
+                dispatch();
+            }
+        });
+    }
+
+    private void addDoc(final Buffer doc) {
+        if (done) {
+            return;
+        }
+        final Buffer docWithId = hasId(doc) ? doc : withId(doc, String.format("%1$s-%2$010d", importId, docsRead));
+        docs.add(docWithId);
+        docsBytes += docWithId.length();
+        docsRead++;
+        if (docs.size() >= batchSize || docsBytes >= maxBatchBytes) {
+            flush();
+            dispatch();
+        }
+    }
+
+    private void flush() {
+        if (!docs.isEmpty()) {
+            ready.add(new Batch(docs, docsRead - docs.size(), 0));
+            docs = new ArrayList<>(batchSize);
+            docsBytes = 0;
+        }
+    }
+
+    /**
+     * Sends ready batches up to the concurrency, pauses reading while enough batches are waiting.
+     */
+    private void dispatch() {
+        while (!done && inFlight < concurrency && !ready.isEmpty()) {
+            send(ready.poll());
+        }
+        if (done) {
+            return;
+        }
+        if (!paused && !ended && ready.size() >= concurrency) {
+            paused = true;
+            asyncFile.pause();
+        } else if (paused && ready.size() < concurrency) {
+            paused = false;
+            asyncFile.resume();
+        }
+        if (ended && ready.isEmpty() && inFlight == 0 && retrying == 0) {
+            complete();
+        }
+    }
+
+    private void send(final Batch batch) {
+        final long now = System.currentTimeMillis();
+        final HttpClientPool pool = balancer.choose(db, true, null, now);
+        inFlight++;
+        if (!pool.getBreaker().allow(now)) {
+            retry(batch, String.format("circuit breaker open for %1$s", pool.getAddress()));
+        } else if (!pool.execute(new BatchRequest(batch), true)) {
+            retry(batch, "too many writes waiting");
+        }
+    }
+
+    /**
+     * Retries a failed batch after a jittered exponential backoff or fails the import.
+     */
+    private void retry(final Batch batch, final String errMsg) {
+        inFlight--;
+        if (done) {
+            return;
+        }
+        if (batch.attempts >= retries) {
+            fail(String.format("failed to import batch at document %1$d: %2$s", batch.first, errMsg));
+            return;
+        }
+        final long backoff = Math.min(retryMaxDelay, retryDelay << Math.min(batch.attempts, 20));
+        batch.attempts++;
+        retrying++;
+        logger.warn(String.format("retrying batch at document %1$d of import %2$s: %3$s", batch.first, importId,
+                errMsg));
+        vertx.setTimer(Math.max(1, (long) (random.nextDouble() * backoff)), new Handler<Long>() {
+            @Override
+            public void handle(final Long timerId) {
+                retrying--;
+                ready.addFirst(batch);
+                dispatch();
+            }
+        });
+    }
+
+    /**
+     * Records the result of a batch, adapts the batch size and publishes the progress.
+     */
+    private void imported(final Batch batch, final JsonArray results, final long latency) {
+        inFlight--;
+        if (done) {
+            return;
+        }
+        batches++;
+        final JsonArray failures = new JsonArray();
+        for (int i = 0; i < results.size(); i++) {
+            final JsonObject result = results.get(i);
+            // a conflict in a retried batch is the document written by a failed earlier attempt
+            if (result.getString("error") != null && (batch.attempts == 0
+                    || !"conflict".equals(result.getString("error")))) {
+                failures.addObject(new JsonObject().putNumber("index", batch.first + i)
+                        .putString("id", result.getString("id")).putString("error", result.getString("error"))
+                        .putString("reason", result.getString("reason")));
+            }
+        }
+        failed += failures.size();
+        imported += batch.docs.size() - failures.size();
+        if (latency <= targetLatency) {
+            batchSize = Math.min(maxBatchSize, batchSize + Math.max(1, batchSize / 4));
+        } else {
+            batchSize = Math.max(MIN_BATCH_SIZE, batchSize / 2);
+        }
+        final JsonObject progress = getProgress();
+        if (failures.size() > 0) {
+            progress.putArray("failures", failures);
+        }
+        vertx.eventBus().publish(progressAddress, progress);
+        dispatch();
+    }
+
+    /**
+     * Splits a rejected batch in halves or records its single document as failed.
+     */
+    private void rejected(final Batch batch, final String error, final String reason, final long latency) {
+        if (batch.docs.size() > 1) {
+            inFlight--;
+            if (logger.isDebugEnabled())
+                logger.debug(String.format("splitting batch at document %1$d of import %2$s: %3$s", batch.first,
+                        importId, reason));
+            final int half = batch.docs.size() / 2;
+            ready.addFirst(new Batch(batch.docs.subList(half, batch.docs.size()), batch.first + half,
+                    batch.attempts));
+            ready.addFirst(new Batch(batch.docs.subList(0, half), batch.first, batch.attempts));
+            dispatch();
+        } else {
+            imported(batch, new JsonArray().addObject(new JsonObject().putString("error", error)
+                    .putString("reason", reason)), latency);
+        }
+    }
+
+    /**
+     * Returns whether a raw document has a top level <code>_id</code> field.
+     *
+     * @param doc the raw JSON object
+     * @return <code>true</code>, if one of the keys of the object is <code>_id</code>
+     */
+    static boolean hasId(final Buffer doc) {
+        int depth = 0;
+        int keyStart = -1;
+        boolean expectKey = false;
+        boolean inString = false;
+        boolean escaped = false;
+        for (int i = 0; i < doc.length(); i++) {
+            final byte b = doc.getByte(i);
+            if (inString) {
+                if (escaped) {
+                    escaped = false;
+                } else if (b == '\\') {
+                    escaped = true;
+                } else if (b == '"') {
+                    inString = false;
+                    if (keyStart >= 0 && i - keyStart == 4 && doc.getByte(keyStart + 1) == '_'
+                            && doc.getByte(keyStart + 2) == 'i' && doc.getByte(keyStart + 3) == 'd') {
+                        return true;
+                    }
+                    keyStart = -1;
+                }
+                continue;
+            }
+            switch (b) {
+                case '"':
+                    inString = true;
+                    if (depth == 1 && expectKey) {
+                        keyStart = i;
+                        expectKey = false;
+                    }
+                    break;
+                case '{':
+                case '[':
+                    depth++;
+                    expectKey = depth == 1;
+                    break;
+                case '}':
+                case ']':
+                    depth--;
+                    break;
+                case ',':
+                    expectKey = depth == 1;
+                    break;
+                default:
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Inserts an <code>_id</code> field as the first field of a raw document.
+     *
+     * @param doc the raw JSON object without <code>_id</code>
+     * @param id  the id, a JSON string without characters to escape
+     * @return the raw document with the id
+     */
+    static Buffer withId(final Buffer doc, final String id) {
+        int open = 0;
+        while (open < doc.length() && doc.getByte(open) != '{') {
+            open++;
+        }
+        int next = open + 1;
+        while (next < doc.length() && Character.isWhitespace(doc.getByte(next))) {
+            next++;
+        }
+        final boolean empty = next < doc.length() && doc.getByte(next) == '}';
+        return new Buffer(doc.length() + id.length() + 9).appendBuffer(doc, 0, open + 1)
+                .appendString(String.format(empty ? "\"_id\":\"%1$s\"" : "\"_id\":\"%1$s\",", id))
+                .appendBuffer(doc, open + 1, doc.length() - open - 1);
+    }
+
+    private JsonObject getProgress() {
+        return new JsonObject().putString("import", importId).putString("db", db).putString("file", file)
+                .putNumber("docs", docsRead).putNumber("imported", imported).putNumber("failed", failed)
+                .putNumber("batches", batches).putNumber("batchSize", batchSize).putNumber("bytes", bytesRead)
+                .putNumber("size", size).putNumber("time", System.currentTimeMillis() - started);
+    }
+
+    private void complete() {
+        done = true;
+        final JsonObject result = getProgress();
+        logger.info(String.format("imported %1$s into %2$s (%3$s): %4$s", file, db, importId, result.encode()));
+        vertx.eventBus().publish(progressAddress, result.copy().putBoolean("end", true));
+        importMsg.reply(new JsonObject().putString("status", "ok").putObject("body", result));
+    }
+
+    private void fail(final String errMsg) {
+        if (done) {
+            return;
+        }
+        done = true;
+        closeFile();
+        logger.error(errMsg);
+        vertx.eventBus().publish(progressAddress, getProgress().putBoolean("end", true)
+                .putString("status", "error").putString("message", errMsg));
+        importMsg.reply(new JsonObject().putString("status", "error").putString("message", errMsg)
+                .putObject("body", getProgress()));
+    }
+
+    private void closeFile() {
+        if (asyncFile != null) {
+            asyncFile.close();
+            asyncFile = null;
+        }
+    }
+
+    /**
+     * The raw documents of a <code>_bulk_docs</code> request.
+     */
+    private static final class Batch {
+
+        private final List<Buffer> docs;
+        private final long first;
+        private int attempts;
+
+        private Batch(final List<Buffer> docs, final long first, final int attempts) {
+            this.docs = docs;
+            this.first = first;
+            this.attempts = attempts;
+        }
+
+        private Buffer toBody() {
+            int length = 12 + docs.size();
+            for (final Buffer doc : docs) {
+                length += doc.length();
+            }
+            final Buffer body = new Buffer(length).appendString("{\"docs\":[");
+            for (int i = 0; i < docs.size(); i++) {
+                if (i > 0) {
+                    body.appendByte((byte) ',');
+                }
+                body.appendBuffer(docs.get(i));
+            }
+            return body.appendString("]}");
+        }
+    }
+
+    /**
+     * Posts a batch on a leased http client.
+     */
+    private final class BatchRequest implements Handler<HttpClientPool.Lease> {
+
+        private final Batch batch;
+        private boolean answered;
+
+        private BatchRequest(final Batch batch) {
+            this.batch = batch;
+        }
+
+        @Override
+        public void handle(final HttpClientPool.Lease lease) {
+            if (done) {
+                lease.release();
+                inFlight--;
+                return;
+            }
+            final long sent = System.currentTimeMillis();
+            final Buffer body = batch.toBody();
+            final HttpClientRequest request = lease.getClient().post(uri, new Handler<HttpClientResponse>() {
+                @Override
+                public void handle(final HttpClientResponse response) {
+                    if (response.statusCode() >= HttpURLConnection.HTTP_INTERNAL_ERROR) {
+                        lease.failed();
+                    } else {
+                        lease.succeeded();
+                    }
+                    response.bodyHandler(new Handler<Buffer>() {
+                        @Override
+                        public void handle(final Buffer responseBody) {
+                            lease.release();
+                            handleResponse(response, responseBody, System.currentTimeMillis() - sent);
+                        }
+                    });
+                }
+            });
+            request.exceptionHandler(new Handler<Throwable>() {
+                @Override
+                public void handle(final Throwable ex) {
+                    lease.failed();
+                    lease.release();
+                    if (!answered) {
+                        answered = true;
+                        retry(batch, String.valueOf(ex.getMessage()));
+                    }
+                }
+            });
+            if (timeout > 0) {
+                request.setTimeout(timeout);
+            }
+            if (authorization != null) {
+                request.putHeader("Authorization", authorization);
+            }
+            request.putHeader("Content-Type", "application/json")
+                    .putHeader("Content-Length", String.valueOf(body.length())).end(body);
+        }
+
+        private void handleResponse(final HttpClientResponse response, final Buffer responseBody,
+                                    final long latency) {
+            if (answered) {
+                return;
+            }
+            answered = true;
+            final int status = response.statusCode();
+            final Object result;
+            try {
+                result = JsonBody.decode(responseBody);
+            } catch (DecodeException ex) {
+                retry(batch, String.format("failed to parse response: %1$s", ex.getMessage()));
+                return;
+            }
+            final String reason = result instanceof JsonObject ? ((JsonObject) result).getString("reason")
+                    : response.statusMessage();
+            if (status >= HttpURLConnection.HTTP_OK && status < HttpURLConnection.HTTP_MULT_CHOICE
+                    && result instanceof JsonArray) {
+                imported(batch, (JsonArray) result, latency);
+            } else if (status == HttpURLConnection.HTTP_BAD_REQUEST
+                    || status == HttpURLConnection.HTTP_ENTITY_TOO_LARGE) {
+                rejected(batch, result instanceof JsonObject ? ((JsonObject) result).getString("error")
+                        : "bad_request", reason, latency);
+            } else if (status >= HttpURLConnection.HTTP_INTERNAL_ERROR) {
+                retry(batch, String.format("%1$d: %2$s", status, reason));
+            } else {
+                inFlight--;
+                fail(String.format("failed to import into %1$s: %2$d: %3$s", db, status, reason));
+            }
+        }
+    }
+}
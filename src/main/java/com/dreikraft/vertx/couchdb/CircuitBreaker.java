@@ -0,0 +1,120 @@
+package com.dreikraft.vertx.couchdb;
+
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.json.JsonObject;
+
+/**
+ * A circuit breaker for the requests to a couchdb host. The breaker opens after <code>failureThreshold</code>
+ * consecutive failed requests (connection errors, timeouts and <code>5xx</code> responses) and rejects requests while
+ * it is open. After <code>resetTimeout</code> milliseconds it lets a single trial request pass (half open): a
+ * successful trial closes the breaker, a failed one opens it again. A trial, that has not been decided within
+ * another <code>resetTimeout</code>, is replaced by a new one.
+ * <p>
+ * Instances are not thread safe and must only be used from the event loop of the owning verticle.
+ *
+ * @author jansolo
+ */
+final class CircuitBreaker {
+
+    static final String CLOSED = "closed";
+    static final String OPEN = "open";
+    static final String HALF_OPEN = "half_open";
+
+    private final int failureThreshold;
+    private final long resetTimeout;
+    private final Handler<String> stateHandler;
+    private String state = CLOSED;
+    private int failures;
+    private long changed;
+    private long rejected;
+
+    /**
+     * Creates a closed breaker.
+     *
+     * @param failureThreshold the number of consecutive failures opening the breaker; <code>0</code> disables the
+     *                         breaker
+     * @param resetTimeout     milliseconds before an open breaker lets a trial request pass
+     * @param stateHandler     called with the new state on every state change or <code>null</code>
+     */
+    CircuitBreaker(final int failureThreshold, final long resetTimeout, final Handler<String> stateHandler) {
+        this.failureThreshold = failureThreshold;
+        this.resetTimeout = resetTimeout;
+        this.stateHandler = stateHandler;
+    }
+
+    /**
+     * Returns whether a request may be sent.
+     *
+     * @param now the current time in milliseconds
+     * @return <code>false</code>, if the breaker is open or a trial request is pending
+     */
+    boolean allow(final long now) {
+        if (CLOSED.equals(state) || now - changed >= resetTimeout && trial(now)) {
+            return true;
+        }
+        rejected++;
+        return false;
+    }
+
+    /**
+     * Returns whether a request would be allowed, without starting a trial.
+     *
+     * @param now the current time in milliseconds
+     * @return <code>true</code>, if the breaker is closed or a trial request may be started
+     */
+    boolean isAvailable(final long now) {
+        return CLOSED.equals(state) || now - changed >= resetTimeout;
+    }
+
+    private boolean trial(final long now) {
+        if (HALF_OPEN.equals(state)) {
+            changed = now;
+        } else {
+            changeState(HALF_OPEN, now);
+        }
+        return true;
+    }
+
+    /**
+     * Records a successful request.
+     *
+     * @param now the current time in milliseconds
+     */
+    void success(final long now) {
+        failures = 0;
+        if (HALF_OPEN.equals(state)) {
+            changeState(CLOSED, now);
+        }
+    }
+
+    /**
+     * Records a failed request.
+     *
+     * @param now the current time in milliseconds
+     */
+    void failure(final long now) {
+        failures++;
+        if (failureThreshold > 0 && (HALF_OPEN.equals(state)
+                || CLOSED.equals(state) && failures >= failureThreshold)) {
+            changeState(OPEN, now);
+        }
+    }
+
+    /**
+     * Returns the breaker state, {@link #CLOSED}, {@link #OPEN} or {@link #HALF_OPEN}, and its counters.
+     *
+     * @return a JsonObject, e.g. <code>{"state":"open","failures":5,"changed":1400000000000,"rejected":12}</code>
+     */
+    JsonObject toJson() {
+        return new JsonObject().putString("state", state).putNumber("failures", failures)
+                .putNumber("changed", changed).putNumber("rejected", rejected);
+    }
+
+    private void changeState(final String newState, final long now) {
+        state = newState;
+        changed = now;
+        if (stateHandler != null) {
+            stateHandler.handle(newState);
+        }
+    }
+}
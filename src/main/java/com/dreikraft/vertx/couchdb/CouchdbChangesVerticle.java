@@ -0,0 +1,379 @@
+package com.dreikraft.vertx.couchdb;
+
+import org.vertx.java.busmods.BusModBase;
+import org.vertx.java.core.AsyncResult;
+import org.vertx.java.core.Future;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.buffer.Buffer;
+import org.vertx.java.core.file.AsyncFile;
+import org.vertx.java.core.http.HttpClient;
+import org.vertx.java.core.http.HttpClientRequest;
+import org.vertx.java.core.http.HttpClientResponse;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+import org.vertx.java.core.parsetools.RecordParser;
+
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Publishes the <code>_changes</code> feeds of the configured databases on the event bus. Opens one continuous
+ * <code>_changes</code> connection per database, parses the feed line by line and publishes the changes in batches on
+ * the address <code>couchdb:/dbname/_changes</code>:
+ * <code>
+ * {
+ * "db": "dummy",
+ * "last_seq": 12,
+ * "results": [ {"seq":12,"id":"dummy1","changes":[{"rev":"2-7051cbe5c8faecd085a3fa619e6e6337"}]} ]
+ * }
+ * </code>
+ * <p>
+ * A connection, that does not deliver changes or heartbeats for two heartbeat intervals, gets closed and reopened
+ * from the last received sequence. After a batch has been published its sequence is written to a local checkpoint
+ * file and flushed to disk. A restarted feed continues from the last flushed checkpoint, so changes published after
+ * it get published again (at least once delivery).
+ * <p>
+ * With <code>shardDbs</code> the feed of a database is opened on the endpoint owning it (see {@link CouchdbVerticle}).
+ * <p>
+ * Supported configuration parameters (besides <code>host</code>, <code>port</code>, <code>user</code>,
+ * <code>passwd</code>, <code>endpoints</code>, <code>shardDbs</code>, <code>shardVirtualNodes</code> and
+ * <code>shardOverrides</code>):
+ * <ul>
+ * <li><code>changesDbs: Array</code> ... Names of databases, whose changes get published; defaults to
+ * <code>[]</code></li>
+ * <li><code>changesHeartbeat: long</code> ... The heartbeat interval of the feed in milliseconds; defaults to
+ * <code>10000</code></li>
+ * <li><code>changesIncludeDocs: boolean</code> ... Whether to include the changed documents; defaults to
+ * <code>false</code></li>
+ * <li><code>changesBatchSize: int</code> ... The maximum number of changes in a published batch; defaults to
+ * <code>100</code></li>
+ * <li><code>changesSince: String</code> ... The sequence to start from, if no checkpoint exists; defaults to
+ * <code>now</code></li>
+ * <li><code>changesCheckpointDir: String</code> ... The directory for the checkpoint files; defaults to
+ * <code>couchdb-changes</code></li>
+ * <li><code>changesReconnectDelay: long</code> ... Milliseconds to wait before reconnecting a failed feed; doubles
+ * with every failed attempt up to one minute; defaults to <code>1000</code></li>
+ * </ul>
+ *
+ * @author jansolo
+ */
+public class CouchdbChangesVerticle extends BusModBase {
+
+    private static final long MAX_RECONNECT_DELAY = 60000;
+
+    private String host;
+    private int port;
+    private String authorization;
+    private long heartbeat;
+    private boolean includeDocs;
+    private int batchSize;
+    private String since;
+    private String checkpointDir;
+    private long reconnectDelay;
+    private ShardRing<String> ring;
+    private final List<ChangesFeed> feeds = new ArrayList<>();
+
+    /**
+     * Opens the <code>_changes</code> feeds of all configured databases.
+     *
+     * @param startedResult the startup result
+     */
+    @Override
+    public void start(final Future<Void> startedResult) {
+        super.start();
+
+        host = getOptionalStringConfig("host", "localhost");
+        port = getOptionalIntConfig("port", 5984);
+        final String user = getOptionalStringConfig("user", null);
+        final String passwd = getOptionalStringConfig("passwd", null);
+        authorization = RequestBuilder.basicAuth(user, passwd);
+        heartbeat = getOptionalLongConfig("changesHeartbeat", 10000);
+        includeDocs = getOptionalBooleanConfig("changesIncludeDocs", false);
+        batchSize = getOptionalIntConfig("changesBatchSize", 100);
+        since = getOptionalStringConfig("changesSince", "now");
+        checkpointDir = getOptionalStringConfig("changesCheckpointDir", "couchdb-changes");
+        reconnectDelay = getOptionalLongConfig("changesReconnectDelay", 1000);
+        final JsonArray endpoints = getOptionalArrayConfig("endpoints", new JsonArray());
+        if (getOptionalBooleanConfig("shardDbs", false) && endpoints.size() > 0) {
+            final List<String> endpointNames = new ArrayList<>(endpoints.size());
+            final List<Integer> endpointWeights = new ArrayList<>(endpoints.size());
+            for (final Object endpoint : endpoints) {
+                endpointNames.add(((JsonObject) endpoint).getString("host", host) + ":"
+                        + ((JsonObject) endpoint).getInteger("port", port));
+                endpointWeights.add(((JsonObject) endpoint).getInteger("weight", 1));
+            }
+            ring = new ShardRing<>(endpointNames, endpointNames, endpointWeights,
+                    getOptionalIntConfig("shardVirtualNodes", 160));
+            final JsonObject shardOverrides = getOptionalObjectConfig("shardOverrides", new JsonObject());
+            for (final String db : shardOverrides.getFieldNames()) {
+                ring.override(db, shardOverrides.getString(db));
+            }
+        }
+
+        try {
+            if (!vertx.fileSystem().existsSync(checkpointDir)) {
+                vertx.fileSystem().mkdirSync(checkpointDir, true);
+            }
+            for (final Object db : getOptionalArrayConfig("changesDbs", new JsonArray())) {
+                final ChangesFeed feed = new ChangesFeed(db.toString());
+                feeds.add(feed);
+                feed.connect();
+            }
+            startedResult.setResult(null);
+        } catch (RuntimeException ex) {
+            logger.error(String.format("failed to start %1$s: %2$s", CouchdbChangesVerticle.class.getSimpleName(),
+                    ex.getMessage()), ex);
+            startedResult.setFailure(ex);
+        }
+    }
+
+    /**
+     * Closes all feeds, publishes their pending changes and writes their checkpoints.
+     */
+    @Override
+    public void stop() {
+        for (final ChangesFeed feed : feeds) {
+            feed.close();
+        }
+        super.stop();
+    }
+
+    /**
+     * A continuous <code>_changes</code> feed of a single database.
+     */
+    private final class ChangesFeed {
+
+        private final String db;
+        private final String address;
+        private final String checkpointFile;
+        private final String feedHost;
+        private final int feedPort;
+
+        private HttpClient httpClient;
+        private String lastSeq;
+        private String publishedSeq;
+        private String checkpointSeq;
+        private boolean checkpointWriting;
+        private JsonArray results = new JsonArray();
+        private long lastReceived;
+        private long watchdogTimerId = -1;
+        private long failures;
+        private boolean closed;
+
+        private ChangesFeed(final String db) {
+            this.db = db;
+            this.address = String.format(CouchdbVerticle.ADDRESS_CHANGES, db);
+            this.checkpointFile = String.format("%1$s/%2$s.seq", checkpointDir, db.replace("/", "%2F"));
+            final String node = ring != null ? ring.get(db) : null;
+            this.feedHost = node != null ? node.substring(0, node.lastIndexOf(':')) : host;
+            this.feedPort = node != null ? Integer.parseInt(node.substring(node.lastIndexOf(':') + 1)) : port;
+            if (vertx.fileSystem().existsSync(checkpointFile)) {
+                // the sequence is the first line, a longer sequence written before might follow
+                lastSeq = vertx.fileSystem().readFileSync(checkpointFile).toString("UTF-8").split("\n")[0].trim();
+                publishedSeq = lastSeq;
+                checkpointSeq = lastSeq;
+            }
+        }
+
+        private void connect() {
+            if (closed) {
+                return;
+            }
+            final String seq = lastSeq != null ? lastSeq : since;
+            final String uri = RequestBuilder.uri(RequestBuilder.path(String.format(CouchdbVerticle.ADDRESS_DB, db)
+                    + "/_changes", db), null, null, new JsonArray()
+                    .addObject(new JsonObject().putString("feed", "continuous"))
+                    .addObject(new JsonObject().putNumber("heartbeat", heartbeat))
+                    .addObject(new JsonObject().putBoolean("include_docs", includeDocs))
+                    .addObject(new JsonObject().putString("since", seq)));
+            logger.info(String.format("opening changes feed %1$s", uri));
+            final HttpClient client = vertx.createHttpClient().setHost(feedHost).setPort(feedPort)
+                    .setKeepAlive(false);
+            httpClient = client;
+            // a new parser per connection discards partial lines of an interrupted connection
+            final RecordParser lineParser = RecordParser.newDelimited("\n", new Handler<Buffer>() {
+                @Override
+                public void handle(final Buffer line) {
+                    handleLine(line);
+                }
+            });
+            final HttpClientRequest request = client.get(uri, new Handler<HttpClientResponse>() {
+                @Override
+                public void handle(final HttpClientResponse response) {
+                    if (response.statusCode() != HttpURLConnection.HTTP_OK) {
+                        reconnect(client, String.format("%1$d: %2$s", response.statusCode(),
+                                response.statusMessage()));
+                        return;
+                    }
+                    failures = 0;
+                    response.dataHandler(new Handler<Buffer>() {
+                        @Override
+                        public void handle(final Buffer chunk) {
+                            if (client == httpClient) {
+                                lastReceived = System.currentTimeMillis();
+                                lineParser.handle(chunk);
+                                publish();
+                            }
+                        }
+                    });
+                    response.endHandler(new Handler<Void>() {
+                        @Override
+                        public void handle(final Void event) {
+                            reconnect(client, "feed closed by server");
+                        }
+                    });
+                }
+            });
+            request.exceptionHandler(new Handler<Throwable>() {
+                @Override
+                public void handle(final Throwable t) {
+                    reconnect(client, t.getMessage());
+                }
+            });
+            if (authorization != null) {
+                request.putHeader("Authorization", authorization);
+            }
+            request.end();
+            lastReceived = System.currentTimeMillis();
+            watchdogTimerId = vertx.setPeriodic(heartbeat, new Handler<Long>() {
+                @Override
+                public void handle(final Long timerId) {
+                    if (System.currentTimeMillis() - lastReceived > 2 * heartbeat) {
+                        reconnect(client, "heartbeat timeout");
+                    }
+                }
+            });
+        }
+
+        private void handleLine(final Buffer line) {
+            if (JsonBody.peek(line) == 0) {
+                // heartbeat
+                return;
+            }
+            try {
+                final JsonObject change = JsonBody.decodeObject(line);
+                if (change.containsField("last_seq") && !change.containsField("id")) {
+                    lastSeq = String.valueOf(change.getValue("last_seq"));
+                    if (results.size() == 0) {
+                        // all changes up to the end of the feed have been published
+                        publishedSeq = lastSeq;
+                        writeCheckpoint();
+                    }
+                } else {
+                    results.addObject(change);
+                    if (results.size() >= batchSize) {
+                        publish();
+                    }
+                }
+            } catch (RuntimeException ex) {
+                logger.error(String.format("failed to parse change on %1$s: %2$s", address, ex.getMessage()), ex);
+            }
+        }
+
+        private void publish() {
+            if (results.size() > 0) {
+                final Object seq = ((JsonObject) results.get(results.size() - 1)).getValue("seq");
+                lastSeq = String.valueOf(seq);
+                eb.publish(address, new JsonObject().putString("db", db).putValue("last_seq", seq)
+                        .putArray("results", results));
+                results = new JsonArray();
+                publishedSeq = lastSeq;
+                writeCheckpoint();
+            }
+        }
+
+        /**
+         * Writes the last published sequence into the checkpoint file and flushes it. A sequence published while
+         * writing is written afterwards.
+         */
+        private void writeCheckpoint() {
+            if (checkpointWriting || closed || publishedSeq == null || publishedSeq.equals(checkpointSeq)) {
+                return;
+            }
+            checkpointWriting = true;
+            final String seq = publishedSeq;
+            vertx.fileSystem().open(checkpointFile, null, false, true, true, new Handler<AsyncResult<AsyncFile>>() {
+                @Override
+                public void handle(final AsyncResult<AsyncFile> openResult) {
+                    if (openResult.failed()) {
+                        checkpointFailed(openResult.cause());
+                        return;
+                    }
+                    final AsyncFile file = openResult.result();
+                    if (closed) {
+                        // the checkpoint of a closed feed is written synchronously
+                        file.close();
+                        return;
+                    }
+                    file.write(new Buffer(seq + "\n", "UTF-8"), 0, new Handler<AsyncResult<Void>>() {
+                        @Override
+                        public void handle(final AsyncResult<Void> writeResult) {
+                            if (writeResult.failed()) {
+                                file.close();
+                                checkpointFailed(writeResult.cause());
+                                return;
+                            }
+                            file.flush(new Handler<AsyncResult<Void>>() {
+                                @Override
+                                public void handle(final AsyncResult<Void> flushResult) {
+                                    file.close();
+                                    if (flushResult.failed()) {
+                                        checkpointFailed(flushResult.cause());
+                                        return;
+                                    }
+                                    checkpointWriting = false;
+                                    checkpointSeq = seq;
+                                    writeCheckpoint();
+                                }
+                            });
+                        }
+                    });
+                }
+            });
+        }
+
+        private void checkpointFailed(final Throwable cause) {
+            checkpointWriting = false;
+            logger.error(String.format("failed to write checkpoint %1$s: %2$s", checkpointFile, cause.getMessage()),
+                    cause);
+        }
+
+        private void disconnect() {
+            if (watchdogTimerId != -1) {
+                vertx.cancelTimer(watchdogTimerId);
+                watchdogTimerId = -1;
+            }
+            if (httpClient != null) {
+                httpClient.close();
+                httpClient = null;
+            }
+        }
+
+        private void reconnect(final HttpClient client, final String reason) {
+            if (client != httpClient) {
+                // an outdated connection or already reconnecting
+                return;
+            }
+            disconnect();
+            final long delay = Math.min(MAX_RECONNECT_DELAY, reconnectDelay << Math.min(failures++, 16));
+            logger.warn(String.format("changes feed %1$s interrupted: %2$s; reconnecting from %3$s in %4$d ms",
+                    address, reason, lastSeq != null ? lastSeq : since, delay));
+            vertx.setTimer(delay, new Handler<Long>() {
+                @Override
+                public void handle(final Long timerId) {
+                    connect();
+                }
+            });
+        }
+
+        private void close() {
+            closed = true;
+            disconnect();
+            publish();
+            if (publishedSeq != null && !publishedSeq.equals(checkpointSeq)) {
+                vertx.fileSystem().writeFileSync(checkpointFile, new Buffer(publishedSeq + "\n", "UTF-8"));
+            }
+        }
+    }
+}
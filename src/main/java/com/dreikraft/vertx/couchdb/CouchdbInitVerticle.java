@@ -6,6 +6,7 @@ import org.vertx.java.core.AsyncResultHandler;
 import org.vertx.java.core.Future;
 import org.vertx.java.core.Handler;
 import org.vertx.java.core.eventbus.Message;
+import org.vertx.java.core.json.JsonArray;
 import org.vertx.java.core.json.JsonObject;
 
 /**
@@ -25,6 +26,12 @@ public class CouchdbInitVerticle extends BusModBase {
      * defaults to number of cpu cores</li>
      * <li>registerDbHandlers:<code>boolean</code> ... register API handlers for the various databases found in the
      * connected couchdb instance on startup; default <code>true</code></li>
+     * <li>lazyDbHandlers:<code>boolean</code> ... register the handlers of a database on its first request to
+     * <code>couchdb:/_route</code> instead of on startup; default <code>false</code></li>
+     * <li>changesDbs:<code>Array</code> ... databases, whose <code>_changes</code> feeds get published by a
+     * {@link CouchdbChangesVerticle}; default <code>[]</code></li>
+     * <li>timeout:<code>long</code> ... milliseconds after which the CouchdbVerticle instances reply a request with a
+     * <code>timeout</code> error; <code>0</code> disables the timeout; default <code>0</code></li>
      * </ul>
      *
      * @param startedResult the startup result
@@ -38,7 +45,6 @@ public class CouchdbInitVerticle extends BusModBase {
         final int instances = getOptionalIntConfig("instances", Runtime.getRuntime().availableProcessors());
         container.logger().info(String.format("starting %1$d %2$s instances ...", instances,
                 CouchdbVerticle.class.getName()));
-        final long timeout = getOptionalLongConfig("timeout", 10000);
 
         container.deployVerticle("com.dreikraft.vertx.couchdb.CouchdbVerticle", config, instances,
                 new AsyncResultHandler<String>() {
@@ -47,37 +53,12 @@ public class CouchdbInitVerticle extends BusModBase {
                         if (deployResult.succeeded()) {
                             logger.info(String.format("successfully started %1$d %2$s instances", instances,
                                     CouchdbVerticle.class.getName()));
-
-                            if (getOptionalBooleanConfig("registerDbHandlers", true)) {
-                                // register all db handlers
-                                eb.send(CouchdbVerticle.ADDRESS_REFLECT, new JsonObject(),
-                                        new Handler<Message<JsonObject>>() {
-                                            @Override
-                                            public void handle(final Message<JsonObject> reflectServerMessage) {
-                                                try {
-                                                    if (!"error".equals(reflectServerMessage.body().getString
-                                                            ("status"))) {
-                                                        startedResult.setResult(null);
-                                                    } else {
-                                                        final Exception ex = new Exception(
-                                                                String.format("failed to start CouchdbVerticle: " +
-                                                                        "%1$s", reflectServerMessage.body().getString
-                                                                        ("message"))
-                                                        );
-                                                        logger.error(ex.getMessage(), ex);
-                                                        startedResult.setFailure(ex);
-                                                    }
-                                                } catch (RuntimeException ex) {
-                                                    logger.error(String.format("failed to start CouchdbVerticle: " +
-                                                            "%1$s",ex));
-                                                    startedResult.setFailure(ex);
-                                                }
-                                            }
-                                        }
-                                );
-                            } else {
-                                startedResult.setResult(null);
-                            }
+                            deployChangesVerticle(startedResult, new Handler<Void>() {
+                                @Override
+                                public void handle(final Void event) {
+                                    registerDbHandlers(startedResult);
+                                }
+                            });
                         } else {
                             logger.info(String.format("failed to start %1$d %2$s instances", instances,
                                     CouchdbVerticle.class.getSimpleName()));
@@ -86,4 +67,78 @@ public class CouchdbInitVerticle extends BusModBase {
                     }
                 });
     }
+
+    /**
+     * Registers the handlers of all databases found in the couchdb server, unless the handlers are registered lazily.
+     *
+     * @param startedResult the startup result
+     */
+    private void registerDbHandlers(final Future<Void> startedResult) {
+        if (getOptionalBooleanConfig("registerDbHandlers", true)
+                && !getOptionalBooleanConfig("lazyDbHandlers", false)) {
+            // register all db handlers
+            eb.send(CouchdbVerticle.ADDRESS_REFLECT, new JsonObject(),
+                    new Handler<Message<JsonObject>>() {
+                        @Override
+                        public void handle(final Message<JsonObject> reflectServerMessage) {
+                            try {
+                                if (!"error".equals(reflectServerMessage.body().getString
+                                        ("status"))) {
+                                    final JsonObject reflected = reflectServerMessage.body()
+                                            .getObject("body");
+                                    logger.info(String.format("reflected %1$d databases (%2$d " +
+                                            "failed) in %3$d ms", reflected.getInteger("count"),
+                                            reflected.getInteger("failedCount"),
+                                            reflected.getLong("time")));
+                                    startedResult.setResult(null);
+                                } else {
+                                    final Exception ex = new Exception(
+                                            String.format("failed to start CouchdbVerticle: " +
+                                                    "%1$s", reflectServerMessage.body().getString
+                                                    ("message"))
+                                    );
+                                    logger.error(ex.getMessage(), ex);
+                                    startedResult.setFailure(ex);
+                                }
+                            } catch (RuntimeException ex) {
+                                logger.error(String.format("failed to start CouchdbVerticle: " +
+                                        "%1$s",ex));
+                                startedResult.setFailure(ex);
+                            }
+                        }
+                    }
+            );
+        } else {
+            startedResult.setResult(null);
+        }
+    }
+
+    /**
+     * Starts a single CouchdbChangesVerticle instance, if <code>_changes</code> feeds are configured. A failed
+     * deployment fails the startup.
+     *
+     * @param startedResult   the startup result
+     * @param deployedHandler called after the CouchdbChangesVerticle has been started or if no feeds are configured
+     */
+    private void deployChangesVerticle(final Future<Void> startedResult, final Handler<Void> deployedHandler) {
+        if (getOptionalArrayConfig("changesDbs", new JsonArray()).size() > 0) {
+            container.deployVerticle(CouchdbChangesVerticle.class.getName(), config, 1,
+                    new AsyncResultHandler<String>() {
+                        @Override
+                        public void handle(AsyncResult<String> deployResult) {
+                            if (deployResult.succeeded()) {
+                                logger.info(String.format("successfully started %1$s",
+                                        CouchdbChangesVerticle.class.getName()));
+                                deployedHandler.handle(null);
+                            } else {
+                                logger.error(String.format("failed to start %1$s",
+                                        CouchdbChangesVerticle.class.getName()), deployResult.cause());
+                                startedResult.setFailure(deployResult.cause());
+                            }
+                        }
+                    });
+        } else {
+            deployedHandler.handle(null);
+        }
+    }
 }
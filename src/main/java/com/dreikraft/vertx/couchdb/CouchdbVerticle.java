@@ -1,21 +1,31 @@
 package com.dreikraft.vertx.couchdb;
 
 import org.vertx.java.busmods.BusModBase;
+import org.vertx.java.core.AsyncResult;
 import org.vertx.java.core.Future;
 import org.vertx.java.core.Handler;
 import org.vertx.java.core.buffer.Buffer;
 import org.vertx.java.core.eventbus.Message;
-import org.vertx.java.core.http.HttpClient;
+import org.vertx.java.core.http.CaseInsensitiveMultiMap;
 import org.vertx.java.core.http.HttpClientRequest;
 import org.vertx.java.core.http.HttpClientResponse;
+import org.vertx.java.core.json.DecodeException;
 import org.vertx.java.core.json.JsonArray;
 import org.vertx.java.core.json.JsonObject;
 
 import java.net.HttpURLConnection;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Random;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.UUID;
 
 /**
  * Wraps the couchdb API onto vert.x event bus messages. The module registers handlers for querying and updating
@@ -27,8 +37,129 @@ import java.util.Set;
  * <ul>
  * <li><code>host: String</code> ... The hostname of the couchdb server; defaults to <code>localhost</code></li>
  * <li><code>port: int</code> ... The port of the couchdb server; defaults to <code>5984</code></li>
+ * <li><code>endpoints: Array</code> ... The couchdb nodes serving the requests, e.g.
+ * <code>[{"host":"couch1","port":5984},{"host":"couch2"}]</code>; every request goes to the less loaded (in flight
+ * and waiting requests weighted by latency) of two randomly picked nodes, that passed their last health check and
+ * whose circuit breaker is closed; retries and hedged requests prefer another node; defaults to
+ * <code>[{"host":host,"port":port}]</code></li>
+ * <li><code>shardDbs: boolean</code> ... Whether the endpoints are independent servers, each holding a share of the
+ * databases, instead of replicas; every database belongs to one endpoint on a consistent hash ring, on which every
+ * endpoint has <code>shardVirtualNodes</code> positions per unit of its <code>weight</code> (e.g.
+ * <code>{"host":"couch3","weight":2}</code>); <code>couchdb:/_all_dbs</code> and <code>couchdb:/_reflect</code> cover
+ * all endpoints; defaults to <code>false</code></li>
+ * <li><code>shardVirtualNodes: int</code> ... The number of ring positions per unit of endpoint weight; defaults to
+ * <code>160</code></li>
+ * <li><code>shardOverrides: JsonObject</code> ... Databases assigned to an endpoint regardless of the ring, e.g.
+ * <code>{"tenant42":"couch2:5984"}</code>; defaults to <code>{}</code></li>
+ * <li><code>pinWrites: boolean</code> ... Whether writes go to the first endpoint (the primary), while it is
+ * available; defaults to <code>false</code></li>
+ * <li><code>healthCheckInterval: long</code> ... Milliseconds between the health checks (<code>GET /</code>) of the
+ * endpoints, if more than one is configured; <code>0</code> disables the checks; defaults to <code>5000</code></li>
+ * <li><code>healthCheckTimeout: long</code> ... Milliseconds to wait for the response of a health check; defaults to
+ * <code>2000</code></li>
  * <li><code>user: String</code> ... A couchdb username; optional; defaults to <code>null</code></li>
  * <li><code>passwd: String</code> ... A couchdb password; optional; defaults to <code>null</code></li>
+ * <li><code>maxPoolSize: int</code> ... The maximum number of pooled connections per endpoint and verticle instance;
+ * defaults to <code>10</code></li>
+ * <li><code>keepAlive: boolean</code> ... Whether to keep pooled connections alive; defaults to <code>true</code></li>
+ * <li><code>pipelining: boolean</code> ... Whether to pipeline requests on pooled connections; defaults to
+ * <code>false</code></li>
+ * <li><code>pipeliningLimit: int</code> ... The maximum number of pipelined requests per connection; defaults to
+ * <code>4</code></li>
+ * <li><code>idleTimeout: long</code> ... Milliseconds without requests, after which the http client of an endpoint
+ * is closed with all its connections and created again on the next request; <code>0</code> keeps it open; defaults
+ * to <code>60000</code></li>
+ * <li><code>maxInFlight: int</code> ... The maximum number of concurrent couchdb requests per endpoint and verticle
+ * instance;
+ * <code>0</code> uses <code>maxPoolSize * pipeliningLimit</code>; defaults to <code>0</code></li>
+ * <li><code>maxWaiting: int</code> ... The maximum number of reads and of writes waiting for a free request slot per
+ * endpoint and verticle instance; further requests are rejected with an <code>overloaded</code> error; defaults to
+ * <code>1000</code></li>
+ * <li><code>readWeight: int</code> ... The number of waiting reads admitted per waiting write; defaults to
+ * <code>4</code></li>
+ * <li><code>streamBatchSize: int</code> ... The default number of rows per batch in streaming mode; defaults to
+ * <code>100</code></li>
+ * <li><code>streamWindow: int</code> ... The maximum number of unacknowledged batches in streaming mode; defaults to
+ * <code>2</code></li>
+ * <li><code>streamTimeout: long</code> ... Milliseconds to wait for the acknowledgement of a batch in streaming mode;
+ * defaults to <code>30000</code></li>
+ * <li><code>writeBatchDbs: Array</code> ... Names of databases, for which single document writes get coalesced into
+ * <code>_bulk_docs</code> requests; defaults to <code>[]</code></li>
+ * <li><code>writeBatchWindow: long</code> ... Milliseconds to collect single document writes into a batch; defaults to
+ * <code>10</code></li>
+ * <li><code>writeBatchSize: int</code> ... The maximum number of documents in a batch; defaults to
+ * <code>100</code></li>
+ * <li><code>readBatchDbs: Array</code> ... Names of databases, for which concurrent document reads by id get
+ * coalesced into <code>_all_docs</code> requests; reads of databases also in <code>docCacheDbs</code> are served by
+ * the cache and its <code>If-None-Match</code> revalidations, which are not batched; defaults to <code>[]</code></li>
+ * <li><code>readBatchWindow: long</code> ... Milliseconds to collect document reads into a batch; defaults to
+ * <code>5</code></li>
+ * <li><code>readBatchSize: int</code> ... The maximum number of document ids in a batch; defaults to
+ * <code>100</code></li>
+ * <li><code>docCacheDbs: Array</code> ... Names of databases, whose documents get cached; defaults to
+ * <code>[]</code></li>
+ * <li><code>docCacheSize: long</code> ... The maximum size of the document cache of a verticle instance in bytes;
+ * defaults to <code>16777216</code></li>
+ * <li><code>docCacheMaxAge: long</code> ... Milliseconds a cached document is served without revalidation to the
+ * credentials it has been validated with; <code>0</code> revalidates on every request; defaults to
+ * <code>0</code></li>
+ * <li><code>viewCacheDbs: Array</code> ... Names of databases, whose view results get cached per credentials;
+ * defaults to <code>[]</code></li>
+ * <li><code>viewCacheSize: long</code> ... The maximum size of the view cache of a verticle instance in bytes;
+ * defaults to <code>33554432</code></li>
+ * <li><code>registerDbAddresses: boolean</code> ... Whether reflected databases and views get event bus addresses of
+ * their own; otherwise they are only reachable through <code>couchdb:/_route</code>; defaults to
+ * <code>true</code></li>
+ * <li><code>reflectConcurrency: int</code> ... The maximum number of databases queried concurrently during a
+ * reflection; defaults to <code>8</code></li>
+ * <li><code>reflectTimeout: long</code> ... Milliseconds to wait for the design documents of a database during a
+ * reflection; defaults to <code>10000</code></li>
+ * <li><code>lazyDbHandlers: boolean</code> ... Whether databases get reflected on their first request to
+ * <code>couchdb:/_route</code> instead of on startup; defaults to <code>false</code></li>
+ * <li><code>lazyDbHandlersTtl: long</code> ... Milliseconds after which the handlers of an unused database get
+ * unregistered in lazy mode; <code>0</code> keeps them; defaults to <code>600000</code></li>
+ * <li><code>collapseGets: boolean</code> ... Whether identical <code>GET</code> requests (same uri, credentials,
+ * headers and reply mode) arriving while such a request is in flight share its reply; defaults to
+ * <code>false</code></li>
+ * <li><code>timeout: long</code> ... Milliseconds after which a request without reply is replied with a
+ * <code>timeout</code> error; streamed requests only until the response headers; <code>0</code> disables the timeout;
+ * defaults to <code>0</code></li>
+ * <li><code>timeouts: JsonObject</code> ... Timeouts per operation, overriding <code>timeout</code>, e.g.
+ * <code>{"view":60000,"doc.get":2000}</code>; the operations are the ones of <code>couchdb:/_metrics</code>; defaults
+ * to <code>{}</code></li>
+ * <li><code>hedgeGets: boolean</code> ... Whether <code>GET</code> requests get sent a second time, if no response
+ * headers arrived within the <code>hedgePercentile</code> latency of their operation; the first response wins;
+ * defaults to <code>false</code></li>
+ * <li><code>hedgePercentile: int</code> ... The latency percentile after which a request gets hedged; defaults to
+ * <code>95</code></li>
+ * <li><code>hedgeDelay: long</code> ... The minimum delay in milliseconds before a request gets hedged, also used
+ * until 100 requests of an operation have been measured; defaults to <code>5</code></li>
+ * <li><code>retries: int</code> ... The number of retries of reads, that failed with a connection error or a
+ * <code>5xx</code> response; not for streamed requests; defaults to <code>0</code></li>
+ * <li><code>retryDelay: long</code> ... The base delay in milliseconds of the jittered exponential backoff between
+ * retries; defaults to <code>50</code></li>
+ * <li><code>retryMaxDelay: long</code> ... The maximum delay in milliseconds between retries; defaults to
+ * <code>2000</code></li>
+ * <li><code>breakerThreshold: int</code> ... The number of consecutive failed requests opening the circuit breaker of
+ * an endpoint; <code>0</code> disables the breaker; defaults to <code>5</code></li>
+ * <li><code>breakerResetTimeout: long</code> ... Milliseconds before an open circuit breaker lets a trial request
+ * pass; defaults to <code>5000</code></li>
+ * <li><code>importConcurrency: int</code> ... The maximum number of <code>_bulk_docs</code> requests in flight per
+ * import; defaults to <code>4</code></li>
+ * <li><code>importBatchSize: int</code> ... The initial number of documents per <code>_bulk_docs</code> request of an
+ * import; adapts to the latency of the requests; defaults to <code>100</code></li>
+ * <li><code>importMaxBatchSize: int</code> ... The maximum number of documents per <code>_bulk_docs</code> request of
+ * an import; defaults to <code>5000</code></li>
+ * <li><code>importMaxBatchBytes: int</code> ... The maximum size of the documents of a <code>_bulk_docs</code> request
+ * of an import in bytes; defaults to <code>4194304</code></li>
+ * <li><code>importTargetLatency: long</code> ... The latency of a <code>_bulk_docs</code> request in milliseconds, up
+ * to which the batches of an import grow; slower requests halve them; defaults to <code>1000</code></li>
+ * <li><code>importTimeout: long</code> ... Milliseconds without response data, after which a <code>_bulk_docs</code>
+ * request of an import fails and is retried; <code>0</code> disables the timeout; defaults to <code>60000</code></li>
+ * <li><code>importRetries: int</code> ... The number of retries of a batch, that failed with a connection error, a
+ * timeout or a <code>5xx</code> response, before the import fails; defaults to <code>3</code></li>
+ * <li><code>exportPageSize: int</code> ... The number of documents per <code>_all_docs</code> page of an export;
+ * defaults to <code>1000</code></li>
  * </ul>
  * <p>
  * All handlers support a set of parameters, that will be mapped to the corresponding couchdb API calls - not all
@@ -40,10 +171,16 @@ import java.util.Set;
  * "method": "the http method passed to couchdb GET/PUT/DELETE/HEAD",
  * "headers": [ an array of http headers passed to couchdb  ]
  * "params": [ an array of url query parameters passed to couchdb ],
- * "id": "a document id",
+ * "id": "a document id; a slash is encoded, except after the _design/ and _local/ prefixes",
+ * "attachment": "the name of an attachment of the document; slashes separate path segments",
  * "body": { a json object passed in the request body to couchdb },
  * "user": " a couchdb basic auth user name",
- * "passwd": " a couchdb basic auth user password"
+ * "passwd": " a couchdb basic auth user password",
+ * "raw": true/false; replies the unparsed couchdb response in a buffer (see {@link RawReply})
+ * "timeout": milliseconds until the request gets replied with a timeout error,
+ * "hedge": true/false; overrides the hedgeGets config for this request,
+ * "retries": the number of retries of a read; overrides the retries config,
+ * "node": the index of the endpoint, that serves the request; overrides the balancing and sharding
  * }
  * </code>
  * <p>
@@ -57,7 +194,9 @@ import java.util.Set;
  * </code>
  * <p>
  * The `status` field can be used to check if the call was successful ("ok"), otherwise the reply will contain a  `message`
- * field with the corresponding error message from couchdb.
+ * field with the corresponding error message from couchdb. Requests rejected, because too many requests are waiting,
+ * are replied immediately with <code>"error": "overloaded"</code>, requests to a host with an open circuit breaker with
+ * <code>"error": "unavailable"</code>.
  * <p>
  * Supported messages:
  * <p>
@@ -118,11 +257,108 @@ import java.util.Set;
  * <li>reply: <code>{"body": {"total_rows":1,"offset":0,"rows":[{"id":"dummy1","key":"dummy1","value":1,"doc":{"_id":"dummy1","_rev":"1-8cf73467930ed4ce09baf4067f866696","name":"dummy1"}}]}, "status": "ok"}</code></li>
  * </ul>
  * <p>
- * Register view handlers for a database:
+ * Stream the rows of a view or all docs query (large results). The rows get parsed incrementally and are sent in
+ * batches of <code>batchSize</code> rows to the <code>streamTo</code> address. Every batch must be acknowledged by a
+ * reply, before more than <code>streamWindow</code> batches are sent. The last message sent to the
+ * <code>streamTo</code> address is the end marker:
+ * <ul>
+ * <li>address: <code>couchdb:/dummy/_design/dummy/_view/all</code></li>
+ * <li>message: <code>{"params":[{"reduce":false}],"streamTo":"my.rows","batchSize":500}</code></li>
+ * <li>batches: <code>{"batch":0,"rows":[{"id":"dummy1","key":"dummy1","value":1}, ...]}</code></li>
+ * <li>end marker: <code>{"end":true,"count":3,"total_rows":3,"offset":0}</code></li>
+ * <li>reply: <code>{"body": {"count":3,"total_rows":3,"offset":0}, "status": "ok"}</code></li>
+ * </ul>
+ * <p>
+ * Register db and view handlers for a database on all verticle instances. Omitting the <code>db</code> reflects all
+ * databases and unregisters the handlers of deleted databases. Only handlers of added or removed databases and views
+ * get registered or unregistered:
  * <ul>
  * <li>address: <code>couchdb:/_reflect</code></li>
  * <li>message: <code>{"db":"dummy"}</code></li>
- * <li>reply: <code>{"body": {"ok":true,"count":1}, "status": "ok"}</code></li>
+ * <li>reply: <code>{"body": {"count":1,"failedCount":0,"failedDbs":[],"instances":4,"registered":4,
+ * "unregistered":0,"time":25}, "status": "ok"}</code></li>
+ * <li>progress: <code>couchdb:/_reflect/progress</code> publishes
+ * <code>{"db":"dummy","failed":false,"processed":1,"count":1,"failedCount":0,"time":20}</code> for every database
+ * and <code>{"end":true,"processed":1,"count":1,"failedCount":0,"time":25}</code> when done</li>
+ * </ul>
+ * <p>
+ * Route a request by its path to a reflected database or view. The path consists of <code>db</code> and optionally
+ * <code>doc</code> (a document id, <code>_all_docs</code> or <code>_bulk_docs</code>), <code>design</code>,
+ * <code>view</code> and <code>attachment</code>. The other parameters are the same as on the routed address:
+ * <ul>
+ * <li>address: <code>couchdb:/_route</code></li>
+ * <li>message: <code>{"path":{"db":"dummy","design":"dummy","view":"all"},"params":[{"reduce":false}]}</code></li>
+ * <li>reply: <code>{"body": {"total_rows":1,"offset":0,"rows":[...]}, "status": "ok"}</code></li>
+ * </ul>
+ * <p>
+ * Query the cache statistics of a verticle instance:
+ * <ul>
+ * <li>address: <code>couchdb:/_cache</code></li>
+ * <li>message: <code>{}</code></li>
+ * <li>reply: <code>{"body": {"docs": {"entries":12,"size":40960,"maxSize":16777216,"hits":100,"misses":12,
+ * "evictions":0}, "views": {...}}, "status": "ok"}</code></li>
+ * </ul>
+ * <p>
+ * Query the http connection pool usage of a verticle instance. The top level fields are the ones of the primary
+ * endpoint, <code>endpoints</code> lists all endpoints, if more than one is configured:
+ * <ul>
+ * <li>address: <code>couchdb:/_pool</code></li>
+ * <li>message: <code>{}</code></li>
+ * <li>reply: <code>{"body": {"host":"localhost","port":5984,"healthy":true,"latency":1200,"maxPoolSize":10,
+ * "active":2,"waiting":0,"collapsed":17, ..., "endpoints":[{"host":"localhost",...},...]},
+ * "status": "ok"}</code></li>
+ * </ul>
+ * <p>
+ * Query the request metrics merged over all verticle instances (<code>{"local":true}</code> returns the metrics of
+ * the receiving instance only). Latencies are histograms in microseconds measured from the receipt of the message
+ * until the request was sent (<code>send</code>), the response headers arrived (<code>firstByte</code>) and the reply
+ * was sent (<code>total</code>):
+ * <ul>
+ * <li>address: <code>couchdb:/_metrics</code></li>
+ * <li>message: <code>{}</code></li>
+ * <li>reply: <code>{"body": {"instances":4,"inflight":2,"bytesOut":1024,"bytesIn":40960,
+ * "statusCodes":{"200":10,"404":1},"operations":{"doc.get":{"count":11,"errors":1,"send":{...},"firstByte":{...},
+ * "total":{"count":11,"sum":52000,"min":900,"max":12000,"mean":4727,"p50":3071,"p90":9215,"p99":12287,
+ * "p999":12287,"buckets":[[73,4],...]}}}}, "status": "ok"}</code></li>
+ * </ul>
+ * <p>
+ * Import the documents of a local file, either NDJSON (one document per line) or a JSON array of documents, into a
+ * database. The file is streamed in adaptive <code>_bulk_docs</code> batches, documents without <code>_id</code> get
+ * one before they are sent, so retried batches cannot create duplicates (see {@link BulkImport}). The reply is sent,
+ * when the import is done. The file is read by the module, so do not expose this address over the event bus bridge:
+ * <ul>
+ * <li>address: <code>couchdb:/_import</code></li>
+ * <li>message: <code>{"db":"dummy","file":"/data/dummy.ndjson"}</code>; optionally <code>user</code>,
+ * <code>passwd</code>, <code>concurrency</code> and <code>batchSize</code></li>
+ * <li>reply: <code>{"body": {"import":"...","db":"dummy","file":"/data/dummy.ndjson","docs":100000,
+ * "imported":99998,"failed":2,"batches":120,"batchSize":1200,"bytes":52428800,"size":52428800,"time":30000},
+ * "status": "ok"}</code></li>
+ * <li>progress: <code>couchdb:/_import/progress</code> publishes the same fields after every batch, with the
+ * <code>failures</code> of the batch (<code>[{"index":17,"id":"dummy17","error":"conflict",
+ * "reason":"Document update conflict."}]</code>), and with <code>"end":true</code> when done</li>
+ * </ul>
+ * <p>
+ * Export the documents of a database into a local NDJSON file, optionally gzipped. The database is paged through
+ * <code>_all_docs</code> by <code>startkey</code>, a checkpoint (<code>&lt;file&gt;.checkpoint</code>) written after
+ * every page lets an interrupted export continue with <code>"resume":true</code>. The file is written by the module, so
+ * do not expose this address over the event bus bridge:
+ * <ul>
+ * <li>address: <code>couchdb:/_export</code></li>
+ * <li>message: <code>{"db":"dummy","file":"/backup/dummy.ndjson.gz","gzip":true,"resume":true}</code>; optionally
+ * <code>pageSize</code>, <code>user</code>, <code>passwd</code>, <code>params</code> (e.g.
+ * <code>[{"conflicts":true}]</code>), <code>timeout</code>, <code>retries</code> and <code>node</code>, which are
+ * passed on the page requests</li>
+ * <li>reply: <code>{"body": {"export":"...","db":"dummy","file":"/backup/dummy.ndjson.gz","gzip":true,
+ * "resumed":false,"docs":100000,"bytes":10485760,"time":20000}, "status": "ok"}</code></li>
+ * <li>progress: <code>couchdb:/_export/progress</code> publishes the same fields and the startkey of the
+ * <code>next</code> page after every page and <code>"end":true</code> when done</li>
+ * </ul>
+ * <p>
+ * Subscribe to the state changes of the circuit breakers:
+ * <ul>
+ * <li>address: <code>couchdb:/_breaker</code></li>
+ * <li>published: <code>{"instance":"...","host":"localhost","port":5984,"state":"open"}</code>; states are
+ * <code>closed</code>, <code>open</code> and <code>half_open</code></li>
  * </ul>
  *
  * @author jansolo
@@ -168,11 +404,105 @@ public class CouchdbVerticle extends BusModBase {
      * databases in the server.
      */
     public static final String ADDRESS_REFLECT = ADDRESS_PREFIX + "/_reflect";
+    /**
+     * The changes address <code>{@value}</code> publishes the <code>_changes</code> feed of a database (see
+     * {@link CouchdbChangesVerticle}).
+     */
+    public static final String ADDRESS_CHANGES = ADDRESS_PREFIX + "/%1$s/_changes";
+    /**
+     * The pool address <code>{@value}</code> returns the http connection pool usage of a verticle instance.
+     */
+    public static final String ADDRESS_POOL = ADDRESS_PREFIX + "/_pool";
+    /**
+     * The cache address <code>{@value}</code> returns the cache statistics of a verticle instance.
+     */
+    public static final String ADDRESS_CACHE = ADDRESS_PREFIX + "/_cache";
+    /**
+     * The route address <code>{@value}</code> routes requests with a structured path to the handlers of the reflected
+     * databases and views.
+     */
+    public static final String ADDRESS_ROUTE = ADDRESS_PREFIX + "/_route";
+    /**
+     * The reflect progress address <code>{@value}</code> publishes the progress of reflections.
+     */
+    public static final String ADDRESS_REFLECT_PROGRESS = ADDRESS_REFLECT + "/progress";
+    /**
+     * The metrics address <code>{@value}</code> returns the request metrics of all verticle instances.
+     */
+    public static final String ADDRESS_METRICS = ADDRESS_PREFIX + "/_metrics";
+    /**
+     * The circuit breaker address <code>{@value}</code> publishes the state changes of the circuit breakers of all
+     * verticle instances, e.g. <code>{"instance":"...","host":"localhost","port":5984,"state":"open"}</code>.
+     */
+    public static final String ADDRESS_BREAKER = ADDRESS_PREFIX + "/_breaker";
+    /**
+     * The import address <code>{@value}</code> imports the documents of a local file into a database.
+     */
+    public static final String ADDRESS_IMPORT = ADDRESS_PREFIX + "/_import";
+    /**
+     * The import progress address <code>{@value}</code> publishes the progress of imports.
+     */
+    public static final String ADDRESS_IMPORT_PROGRESS = ADDRESS_IMPORT + "/progress";
+    /**
+     * The export address <code>{@value}</code> exports the documents of a database into a local file.
+     */
+    public static final String ADDRESS_EXPORT = ADDRESS_PREFIX + "/_export";
+    /**
+     * The export progress address <code>{@value}</code> publishes the progress of exports.
+     */
+    public static final String ADDRESS_EXPORT_PROGRESS = ADDRESS_EXPORT + "/progress";
+
+    private static final long REFLECT_APPLY_TIMEOUT = 10000;
+    private static final long METRICS_TIMEOUT = 5000;
+    // the shortest timer vert.x accepts, abandons a request without reply
+    private static final long ABANDON_TIMEOUT = 1;
+    private static final String INSTANCES = ADDRESS_PREFIX + "/_instances";
+    private static final long HEDGE_MIN_SAMPLES = 100;
+    // the status message of a couchdb 404 response, batched reads reply the same errors as single reads
+    private static final String NOT_FOUND = "Object Not Found";
+    private static final String[] EXPORT_PAGE_PARAMS = {"user", "passwd", "params", "timeout", "retries", "node"};
 
-    private String host;
-    private int port;
     private String user;
     private String passwd;
+    private RequestBuilder.Authorizations authorizations;
+    private EndpointBalancer balancer;
+    private int streamBatchSize;
+    private int streamWindow;
+    private long streamTimeout;
+    private Set<String> writeBatchDbs;
+    private long writeBatchWindow;
+    private int writeBatchSize;
+    private Set<String> readBatchDbs;
+    private long readBatchWindow;
+    private int readBatchSize;
+    private Set<String> docCacheDbs;
+    private long docCacheMaxAge;
+    private LruCache<JsonObject> docCache;
+    private Set<String> viewCacheDbs;
+    private LruCache<JsonObject> viewCache;
+    private Map<String, List<Handler<String>>> updateSeqRequests;
+    private boolean collapseGets;
+    private Map<String, Exchange> inflightGets;
+    private long collapsedGets;
+    private String instanceId;
+    private RequestMetrics metrics;
+    private boolean registerDbAddresses;
+    private Map<String, Map<String, ApplyReflectionHandler.HandlerEntry>> routes;
+    private boolean lazyDbHandlers;
+    private long lazyDbHandlersTtl;
+    private Map<String, Long> dbsLastUsed;
+    private ApplyReflectionHandler applyReflectionHandler;
+    private int reflectConcurrency;
+    private long reflectTimeout;
+    private long timeout;
+    private Map<String, Long> operationTimeouts;
+    private boolean hedgeGets;
+    private double hedgePercentile;
+    private long hedgeDelay;
+    private int retries;
+    private long retryDelay;
+    private long retryMaxDelay;
+    private Random random;
 
     /**
      * Registers handlers for databases and views in a connected couchdb instance.
@@ -184,10 +514,98 @@ public class CouchdbVerticle extends BusModBase {
         super.start();
 
         // configure members
-        host = getOptionalStringConfig("host", "localhost");
-        port = getOptionalIntConfig("port", 5984);
+        final String host = getOptionalStringConfig("host", "localhost");
+        final int port = getOptionalIntConfig("port", 5984);
         user = getOptionalStringConfig("user", null);
         passwd = getOptionalStringConfig("passwd", null);
+        authorizations = new RequestBuilder.Authorizations(user, passwd);
+        random = new Random();
+        final JsonArray endpoints = getOptionalArrayConfig("endpoints", new JsonArray());
+        if (endpoints.size() == 0) {
+            endpoints.addObject(new JsonObject().putString("host", host).putNumber("port", port));
+        }
+        final List<HttpClientPool> pools = new ArrayList<>(endpoints.size());
+        final List<String> endpointNames = new ArrayList<>(endpoints.size());
+        final List<Integer> endpointWeights = new ArrayList<>(endpoints.size());
+        for (final Object endpoint : endpoints) {
+            final String endpointHost = ((JsonObject) endpoint).getString("host", host);
+            final int endpointPort = ((JsonObject) endpoint).getInteger("port", port);
+            endpointNames.add(endpointHost + ":" + endpointPort);
+            endpointWeights.add(((JsonObject) endpoint).getInteger("weight", 1));
+            pools.add(new HttpClientPool(vertx, logger, endpointHost, endpointPort,
+                    getOptionalIntConfig("maxPoolSize", 10), getOptionalBooleanConfig("keepAlive", true),
+                    getOptionalBooleanConfig("pipelining", false), getOptionalIntConfig("pipeliningLimit", 4),
+                    getOptionalLongConfig("idleTimeout", 60000), getOptionalIntConfig("maxInFlight", 0),
+                    getOptionalIntConfig("maxWaiting", 1000), getOptionalIntConfig("readWeight", 4),
+                    new CircuitBreaker(getOptionalIntConfig("breakerThreshold", 5),
+                            getOptionalLongConfig("breakerResetTimeout", 5000),
+                            new BreakerStateHandler(endpointHost, endpointPort))));
+        }
+        ShardRing<HttpClientPool> ring = null;
+        if (getOptionalBooleanConfig("shardDbs", false)) {
+            ring = new ShardRing<>(pools, endpointNames, endpointWeights,
+                    getOptionalIntConfig("shardVirtualNodes", 160));
+            final JsonObject shardOverrides = getOptionalObjectConfig("shardOverrides", new JsonObject());
+            for (final String db : shardOverrides.getFieldNames()) {
+                final int index = endpointNames.indexOf(shardOverrides.getString(db));
+                if (index < 0) {
+                    startedResult.setFailure(new IllegalArgumentException(String.format(
+                            "shard override of %1$s: unknown endpoint %2$s", db, shardOverrides.getString(db))));
+                    return;
+                }
+                ring.override(db, pools.get(index));
+            }
+        }
+        balancer = new EndpointBalancer(pools, getOptionalBooleanConfig("pinWrites", false), random, ring);
+        streamBatchSize = getOptionalIntConfig("streamBatchSize", 100);
+        streamWindow = getOptionalIntConfig("streamWindow", 2);
+        streamTimeout = getOptionalLongConfig("streamTimeout", 30000);
+        writeBatchDbs = new HashSet<>();
+        for (final Object writeBatchDb : getOptionalArrayConfig("writeBatchDbs", new JsonArray())) {
+            writeBatchDbs.add(String.valueOf(writeBatchDb));
+        }
+        writeBatchWindow = getOptionalLongConfig("writeBatchWindow", 10);
+        writeBatchSize = getOptionalIntConfig("writeBatchSize", 100);
+        readBatchDbs = new HashSet<>();
+        for (final Object readBatchDb : getOptionalArrayConfig("readBatchDbs", new JsonArray())) {
+            readBatchDbs.add(String.valueOf(readBatchDb));
+        }
+        readBatchWindow = getOptionalLongConfig("readBatchWindow", 5);
+        readBatchSize = getOptionalIntConfig("readBatchSize", 100);
+        docCacheDbs = new HashSet<>();
+        for (final Object docCacheDb : getOptionalArrayConfig("docCacheDbs", new JsonArray())) {
+            docCacheDbs.add(String.valueOf(docCacheDb));
+        }
+        docCache = new LruCache<>(getOptionalLongConfig("docCacheSize", 16 * 1024 * 1024));
+        docCacheMaxAge = getOptionalLongConfig("docCacheMaxAge", 0);
+        viewCacheDbs = new HashSet<>();
+        for (final Object viewCacheDb : getOptionalArrayConfig("viewCacheDbs", new JsonArray())) {
+            viewCacheDbs.add(String.valueOf(viewCacheDb));
+        }
+        viewCache = new LruCache<>(getOptionalLongConfig("viewCacheSize", 32 * 1024 * 1024));
+        updateSeqRequests = new HashMap<>();
+        collapseGets = getOptionalBooleanConfig("collapseGets", false);
+        metrics = new RequestMetrics(1);
+        inflightGets = new HashMap<>();
+        registerDbAddresses = getOptionalBooleanConfig("registerDbAddresses", true);
+        routes = new HashMap<>();
+        lazyDbHandlers = getOptionalBooleanConfig("lazyDbHandlers", false);
+        lazyDbHandlersTtl = getOptionalLongConfig("lazyDbHandlersTtl", 600000);
+        dbsLastUsed = new HashMap<>();
+        reflectConcurrency = Math.max(1, getOptionalIntConfig("reflectConcurrency", 8));
+        reflectTimeout = getOptionalLongConfig("reflectTimeout", 10000);
+        timeout = getOptionalLongConfig("timeout", 0);
+        operationTimeouts = new HashMap<>();
+        final JsonObject timeouts = getOptionalObjectConfig("timeouts", new JsonObject());
+        for (final String op : timeouts.getFieldNames()) {
+            operationTimeouts.put(op, timeouts.getLong(op));
+        }
+        hedgeGets = getOptionalBooleanConfig("hedgeGets", false);
+        hedgePercentile = getOptionalIntConfig("hedgePercentile", 95);
+        hedgeDelay = getOptionalLongConfig("hedgeDelay", 5);
+        retries = getOptionalIntConfig("retries", 0);
+        retryDelay = Math.max(1, getOptionalLongConfig("retryDelay", 50));
+        retryMaxDelay = getOptionalLongConfig("retryMaxDelay", 2000);
 
         // TODO register couchdb server API handlers
         // couchdb server handler
@@ -198,23 +616,287 @@ public class CouchdbVerticle extends BusModBase {
         // /_all_dbs handler
         if (logger.isDebugEnabled())
             logger.debug(String.format("registering handler %1$s", ADDRESS_ALL_DBS));
-        eb.registerHandler(ADDRESS_ALL_DBS, new CouchdbRequestHandler(ADDRESS_ALL_DBS));
+        eb.registerHandler(ADDRESS_ALL_DBS, balancer.isSharded() && pools.size() > 1
+                ? new AllDbsHandler(new CouchdbRequestHandler(ADDRESS_ALL_DBS))
+                : new CouchdbRequestHandler(ADDRESS_ALL_DBS));
 
         // /_active_tasks
         if (logger.isDebugEnabled())
             logger.debug(String.format("registering handler %1$s", ADDRESS_ACTIVE_TASKS));
         eb.registerHandler(ADDRESS_ACTIVE_TASKS, new CouchdbRequestHandler(ADDRESS_ACTIVE_TASKS));
 
+        // /_pool handler
+        if (logger.isDebugEnabled())
+            logger.debug(String.format("registering handler %1$s", ADDRESS_POOL));
+        eb.registerHandler(ADDRESS_POOL, new Handler<Message<JsonObject>>() {
+            @Override
+            public void handle(final Message<JsonObject> poolMsg) {
+                final List<HttpClientPool> pools = balancer.getPools();
+                final JsonObject stats = pools.get(0).getStats().putNumber("collapsed", collapsedGets);
+                if (pools.size() > 1) {
+                    final JsonArray endpointStats = new JsonArray();
+                    for (final HttpClientPool pool : pools) {
+                        endpointStats.addObject(pool.getStats());
+                    }
+                    stats.putArray("endpoints", endpointStats);
+                }
+                sendOK(poolMsg, new JsonObject().putObject("body", stats));
+            }
+        });
+
 
+        // /_cache handler
+        if (logger.isDebugEnabled())
+            logger.debug(String.format("registering handler %1$s", ADDRESS_CACHE));
+        eb.registerHandler(ADDRESS_CACHE, new Handler<Message<JsonObject>>() {
+            @Override
+            public void handle(final Message<JsonObject> cacheMsg) {
+                sendOK(cacheMsg, new JsonObject().putObject("body", new JsonObject().putObject("docs",
+                        docCache.getStats()).putObject("views", viewCache.getStats())));
+            }
+        });
 
         // /_reflect handler
         if (logger.isDebugEnabled())
             logger.debug(String.format("registering handler %1$s", ADDRESS_REFLECT));
         eb.registerHandler(ADDRESS_REFLECT, new ReflectHandler());
 
+        // /_route handler
+        if (logger.isDebugEnabled())
+            logger.debug(String.format("registering handler %1$s", ADDRESS_ROUTE));
+        eb.registerHandler(ADDRESS_ROUTE, new RouteHandler());
+
+        // /_metrics handler
+        if (logger.isDebugEnabled())
+            logger.debug(String.format("registering handler %1$s", ADDRESS_METRICS));
+        eb.registerHandler(ADDRESS_METRICS, new MetricsHandler());
+
+        // /_import handler
+        if (logger.isDebugEnabled())
+            logger.debug(String.format("registering handler %1$s", ADDRESS_IMPORT));
+        eb.registerHandler(ADDRESS_IMPORT, new ImportHandler());
+
+        // /_export handler
+        if (logger.isDebugEnabled())
+            logger.debug(String.format("registering handler %1$s", ADDRESS_EXPORT));
+        eb.registerHandler(ADDRESS_EXPORT, new ExportHandler());
+
+        // reflections are applied and metrics collected on every instance on its own addresses
+        instanceId = UUID.randomUUID().toString();
+        if (logger.isDebugEnabled())
+            logger.debug(String.format("registering instance handlers %1$s", instanceId));
+        applyReflectionHandler = new ApplyReflectionHandler();
+        eb.registerHandler(instanceAddress(ADDRESS_REFLECT, instanceId), applyReflectionHandler);
+        eb.registerHandler(instanceAddress(ADDRESS_METRICS, instanceId), new Handler<Message<JsonObject>>() {
+            @Override
+            public void handle(final Message<JsonObject> metricsMsg) {
+                sendOK(metricsMsg, new JsonObject().putObject("body", metrics.toJson()));
+            }
+        });
+        vertx.sharedData().<String>getSet(INSTANCES).add(instanceId);
+
+        // unregister the handlers of idle databases in lazy mode
+        if (lazyDbHandlers && lazyDbHandlersTtl > 0) {
+            vertx.setPeriodic(Math.max(1000, lazyDbHandlersTtl / 10), new Handler<Long>() {
+                @Override
+                public void handle(final Long timerId) {
+                    applyReflectionHandler.expire(System.currentTimeMillis() - lazyDbHandlersTtl);
+                }
+            });
+        }
+
+        // mark endpoints down and up again, balancing only needs that with more than one endpoint
+        final long healthCheckInterval = getOptionalLongConfig("healthCheckInterval", 5000);
+        if (pools.size() > 1 && healthCheckInterval > 0) {
+            final long healthCheckTimeout = getOptionalLongConfig("healthCheckTimeout", 2000);
+            vertx.setPeriodic(healthCheckInterval, new Handler<Long>() {
+                @Override
+                public void handle(final Long timerId) {
+                    for (final HttpClientPool pool : balancer.getPools()) {
+                        pool.checkHealth(healthCheckTimeout);
+                    }
+                }
+            });
+        }
+
         startedResult.setResult(null);
     }
 
+    /**
+     * Closes the pooled http connections.
+     */
+    @Override
+    public void stop() {
+        if (instanceId != null) {
+            vertx.sharedData().<String>getSet(INSTANCES).remove(instanceId);
+        }
+        if (balancer != null) {
+            for (final HttpClientPool pool : balancer.getPools()) {
+                pool.close();
+            }
+        }
+        super.stop();
+    }
+
+    private static String instanceAddress(final String address, final String instanceId) {
+        return String.format("%1$s/%2$s", address, instanceId);
+    }
+
+    /**
+     * Publishes the state changes of the circuit breaker of a couchdb endpoint on {@link #ADDRESS_BREAKER}.
+     */
+    private final class BreakerStateHandler implements Handler<String> {
+
+        private final String breakerHost;
+        private final int breakerPort;
+
+        private BreakerStateHandler(final String breakerHost, final int breakerPort) {
+            this.breakerHost = breakerHost;
+            this.breakerPort = breakerPort;
+        }
+
+        @Override
+        public void handle(final String state) {
+            logger.warn(String.format("circuit breaker for %1$s:%2$d is %3$s", breakerHost, breakerPort, state));
+            eb.publish(ADDRESS_BREAKER, new JsonObject().putString("instance", instanceId)
+                    .putString("host", breakerHost).putNumber("port", breakerPort).putString("state", state));
+        }
+    }
+
+    /**
+     * Starts a {@link BulkImport} of a local file into a database.
+     */
+    private final class ImportHandler implements Handler<Message<JsonObject>> {
+
+        @Override
+        public void handle(final Message<JsonObject> importMsg) {
+            final JsonObject json = importMsg.body();
+            final String db = json.getString("db");
+            final String file = json.getString("file");
+            if (db == null || file == null) {
+                sendError(importMsg, "db and file are required");
+                return;
+            }
+            new BulkImport(vertx, logger, balancer, importMsg, ADDRESS_IMPORT_PROGRESS, db, file,
+                    authorizations.get(json.getString("user", user), json.getString("passwd", passwd)),
+                    json.getInteger("concurrency", getOptionalIntConfig("importConcurrency", 4)),
+                    json.getInteger("batchSize", getOptionalIntConfig("importBatchSize", 100)),
+                    getOptionalIntConfig("importMaxBatchSize", 5000),
+                    getOptionalIntConfig("importMaxBatchBytes", 4 * 1024 * 1024),
+                    getOptionalLongConfig("importTargetLatency", 1000), getOptionalLongConfig("importTimeout", 60000),
+                    getOptionalIntConfig("importRetries", 3), retryDelay, retryMaxDelay, random).start();
+        }
+    }
+
+    /**
+     * Starts a {@link DatabaseExport} of a database into a local file.
+     */
+    private final class ExportHandler implements Handler<Message<JsonObject>> {
+
+        @Override
+        public void handle(final Message<JsonObject> exportMsg) {
+            final JsonObject json = exportMsg.body();
+            final String db = json.getString("db");
+            final String file = json.getString("file");
+            if (db == null || file == null) {
+                sendError(exportMsg, "db and file are required");
+                return;
+            }
+            final JsonObject pageMsg = new JsonObject();
+            for (final String param : EXPORT_PAGE_PARAMS) {
+                if (json.getField(param) != null) {
+                    pageMsg.putValue(param, json.getField(param));
+                }
+            }
+            new DatabaseExport(vertx, logger, exportMsg, ADDRESS_EXPORT_PROGRESS, db, file,
+                    json.getBoolean("gzip", false), json.getInteger("pageSize",
+                    getOptionalIntConfig("exportPageSize", 1000)), pageMsg).start(json.getBoolean("resume", false));
+        }
+    }
+
+    /**
+     * Handles <code>/_all_dbs</code> requests, if the databases are sharded over several endpoints. The databases of
+     * all endpoints are queried with the <code>node</code> parameter and replied as a single sorted list. Requests
+     * with a <code>node</code> parameter are passed to the request handler.
+     */
+    private final class AllDbsHandler implements Handler<Message<JsonObject>> {
+
+        private final CouchdbRequestHandler requestHandler;
+
+        private AllDbsHandler(final CouchdbRequestHandler requestHandler) {
+            this.requestHandler = requestHandler;
+        }
+
+        @Override
+        public void handle(final Message<JsonObject> allDbsMsg) {
+            final JsonObject json = allDbsMsg.body() != null ? allDbsMsg.body() : new JsonObject();
+            if (json.getField("node") != null) {
+                requestHandler.handle(allDbsMsg);
+                return;
+            }
+            final boolean raw = json.getBoolean("raw", false);
+            final AllDbsResult result = new AllDbsResult(allDbsMsg, raw, balancer.getPools().size());
+            for (int node = 0; node < balancer.getPools().size(); node++) {
+                final JsonObject nodeMsg = json.copy().putNumber("node", node);
+                nodeMsg.removeField("raw");
+                eb.send(ADDRESS_ALL_DBS, nodeMsg, result);
+            }
+        }
+    }
+
+    /**
+     * Merges the <code>/_all_dbs</code> replies of all endpoints. The first failed endpoint fails the request.
+     */
+    private final class AllDbsResult implements Handler<Message<JsonObject>> {
+
+        private final Message<JsonObject> allDbsMsg;
+        private final boolean raw;
+        private final Set<String> dbs = new TreeSet<>();
+        private int pending;
+        private boolean failed;
+
+        private AllDbsResult(final Message<JsonObject> allDbsMsg, final boolean raw, final int nodes) {
+            this.allDbsMsg = allDbsMsg;
+            this.raw = raw;
+            this.pending = nodes;
+        }
+
+        @Override
+        public void handle(final Message<JsonObject> nodeReply) {
+            pending--;
+            if (failed) {
+                return;
+            }
+            final JsonObject json = nodeReply.body();
+            if ("error".equals(json.getString("status"))) {
+                failed = true;
+                final String errMsg = String.format("failed to query all dbs: %1$s", json.getString("message"));
+                if (raw) {
+                    allDbsMsg.reply(RawReply.encodeError(errMsg));
+                } else {
+                    sendError(allDbsMsg, errMsg);
+                }
+                return;
+            }
+            for (final Object db : json.getArray("body")) {
+                dbs.add(String.valueOf(db));
+            }
+            if (pending == 0) {
+                final JsonArray body = new JsonArray();
+                for (final String db : dbs) {
+                    body.addString(db);
+                }
+                if (raw) {
+                    allDbsMsg.reply(RawReply.encode(HttpURLConnection.HTTP_OK, "OK",
+                            new CaseInsensitiveMultiMap().set("Content-Type", "application/json"),
+                            new Buffer(body.encode(), "UTF-8")));
+                } else {
+                    sendOK(allDbsMsg, new JsonObject().putArray("body", body));
+                }
+            }
+        }
+    }
+
     /**
      * Handles couchdb requests received on the event bus and forwards the calls to couchdb. It registers a response
      * handler that returns the results from couchdb.
@@ -222,9 +904,37 @@ public class CouchdbVerticle extends BusModBase {
     private final class CouchdbRequestHandler implements Handler<Message<JsonObject>> {
 
         private String address;
+        private String path;
+        private boolean streamable;
+        private String operation;
+        private String db;
 
         private CouchdbRequestHandler(final String address) {
+            this(address, null, false);
+        }
+
+        /**
+         * Creates the handler of a server or database address.
+         *
+         * @param address    the event bus address
+         * @param db         the database of the address or <code>null</code> for server addresses
+         * @param streamable whether the rows of the response can be streamed
+         */
+        private CouchdbRequestHandler(final String address, final String db, final boolean streamable) {
             this.address = address;
+            this.path = db != null ? RequestBuilder.path(address, db) : RequestBuilder.path(address);
+            this.db = db;
+            this.streamable = streamable;
+            if (address.equals(ADDRESS_SERVER) || address.equals(ADDRESS_ALL_DBS)
+                    || address.equals(ADDRESS_ACTIVE_TASKS)) {
+                operation = "server";
+            } else if (address.endsWith("/_all_docs")) {
+                operation = "all_docs";
+            } else if (address.endsWith("/_bulk_docs")) {
+                operation = "bulk_docs";
+            } else if (address.contains("/_view/")) {
+                operation = "view";
+            }
         }
 
         /**
@@ -243,74 +953,207 @@ public class CouchdbVerticle extends BusModBase {
          */
         @Override
         public void handle(final Message<JsonObject> requestMsg) {
-            final JsonObject json = requestMsg.body();
-            final StringBuilder couchdbUri = new StringBuilder(address.substring(ADDRESS_PREFIX.length()));
-            final String db = json.getString("db");
-            if (db != null) {
-                couchdbUri.append(address.equals(ADDRESS_SERVER) ? "" : "/").append(db);
-            }
-            final String id = json.getString("id");
-            if (id != null) {
-                couchdbUri.append("/").append(id);
-            }
-            final JsonArray params = json.getArray("params");
-            if (params != null) {
-                couchdbUri.append("?");
-                for (Object param : params) {
-                    final JsonObject jsonParam = (JsonObject) param;
-                    for (final String key : jsonParam.getFieldNames()) {
-                        final Object value = jsonParam.getValue(key);
-                        couchdbUri.append("&").append(key).append("=").append(String.class.isAssignableFrom(value
-                                .getClass()) ? String.format("\"%1$s\"", value) : value);
-                    }
+            handle(requestMsg.body(), new Handler<Object>() {
+                @Override
+                public void handle(final Object reply) {
+                    requestMsg.reply(reply);
                 }
-            }
+            });
+        }
+
+        /**
+         * Handles a couchdb request of a wrapping handler (batching, caching) of the same verticle instance, which
+         * calls this handler directly, as its address might not be registered on the event bus.
+         *
+         * @param json         the request parameters, like the body of a request message
+         * @param replyHandler receives the reply, a JsonObject or, in raw mode, a Buffer
+         */
+        private void handle(final JsonObject json, final Handler<Object> replyHandler) {
+            final String id = json.getString("id");
+            final String couchdbUri = RequestBuilder.uri(path, json.getString("db"), id, json.getString("attachment"),
+                    json.getArray("params"));
             final JsonArray headers = json.getArray("headers");
             final String method = json.getString("method", "GET");
             final JsonObject body = json.getObject("body");
             final String requestUser = json.getString("user", user);
             final String requestPasswd = json.getString("passwd", passwd);
+            final String streamTo = streamable ? json.getString("streamTo") : null;
+            final int batchSize = Math.max(1, json.getInteger("batchSize", streamBatchSize));
+            final boolean raw = streamTo == null && json.getBoolean("raw", false);
+            final Integer node = json.getInteger("node");
+            final List<HttpClientPool> pools = balancer.getPools();
+            if (node != null && (node < 0 || node >= pools.size())) {
+                final String errMsg = String.format("invalid node %1$d, %2$d endpoints configured", node,
+                        pools.size());
+                replyHandler.handle(raw ? RawReply.encodeError(errMsg)
+                        : new JsonObject().putString("status", "error").putString("message", errMsg));
+                return;
+            }
+
+            final String flightKey = collapseGets && streamTo == null && "GET".equals(method) && body == null
+                    ? String.format("%1$s %2$s %3$s %4$s %5$s", raw ? "raw" : "json", couchdbUri,
+                    authorizations.digest(requestUser, requestPasswd), headers != null ? headers.encode() : "",
+                    node != null ? node : "") : null;
+            if (flightKey != null) {
+                final Exchange inflight = inflightGets.get(flightKey);
+                if (inflight != null) {
+                    if (logger.isDebugEnabled())
+                        logger.debug(String.format("collapsing request: %1$s %2$s", method, couchdbUri));
+                    collapsedGets++;
+                    inflight.follow(replyHandler);
+                    return;
+                }
+            }
+            final String op = operation != null ? operation
+                    : (id != null ? "doc." : "db.") + method.toLowerCase(Locale.ENGLISH);
+            final Exchange exchange = new Exchange(replyHandler, raw, flightKey, metrics.start(op));
+            if (flightKey != null) {
+                inflightGets.put(flightKey, exchange);
+            }
+            final Buffer bodyBuffer = RequestBuilder.body(body);
 
             if (logger.isDebugEnabled())
-                logger.debug(String.format("executing request: %1$s %2$s %3$s", method, couchdbUri.toString(),
+                logger.debug(String.format("executing request: %1$s %2$s %3$s", method, couchdbUri,
                         body != null ? body : ""));
 
-            final HttpClient httpClient = vertx.createHttpClient().setHost(host).setPort(port).exceptionHandler(
-                    new RequestExceptionHandler(couchdbUri.toString(), requestMsg));
+            // view and all docs queries are reads, even when posted with keys
+            final boolean write = !"GET".equals(method) && !"HEAD".equals(method) && !"view".equals(operation)
+                    && !"all_docs".equals(operation);
+            final Call call = new Call(exchange, method, couchdbUri, headers, bodyBuffer, requestUser, requestPasswd,
+                    streamTo, batchSize, write, db != null ? db : json.getString("db"),
+                    node != null ? pools.get(node) : null);
+            final Long operationTimeout = operationTimeouts.get(op);
+            final long requestTimeout = json.getLong("timeout", operationTimeout != null ? operationTimeout : timeout);
+            if (requestTimeout > 0) {
+                exchange.startTimeout(requestTimeout, String.format("timeout: no reply within %1$d ms for %2$s %3$s",
+                        requestTimeout, method, couchdbUri));
+            }
+            if (!write && streamTo == null) {
+                exchange.retryWith(call, json.getInteger("retries", retries));
+            }
+            if (call.send(false) && streamTo == null && "GET".equals(method) && body == null
+                    && json.getBoolean("hedge", hedgeGets)) {
+                final long percentile = metrics.getFirstByteAtPercentile(op, hedgePercentile, HEDGE_MIN_SAMPLES);
+                exchange.startHedge(Math.max(hedgeDelay, (percentile + 999) / 1000), call);
+            }
+        }
+
+        /**
+         * An http request to couchdb on behalf of an exchange. A hedged request is sent a second time, both sends
+         * share the exchange, so the first response wins. Every send chooses its endpoint, avoiding the endpoint of
+         * the previous send, unless the database or the <code>node</code> parameter determine the endpoint.
+         */
+        private final class Call implements Handler<HttpClientPool.Lease> {
+
+            private final Exchange exchange;
+            private final String method;
+            private final String couchdbUri;
+            private final JsonArray headers;
+            private final Buffer bodyBuffer;
+            private final String requestUser;
+            private final String requestPasswd;
+            private final String streamTo;
+            private final int batchSize;
+            private final boolean write;
+            private final String db;
+            private final HttpClientPool pinned;
+            private HttpClientPool pool;
+
+            private Call(final Exchange exchange, final String method, final String couchdbUri,
+                         final JsonArray headers, final Buffer bodyBuffer, final String requestUser,
+                         final String requestPasswd, final String streamTo, final int batchSize,
+                         final boolean write, final String db, final HttpClientPool pinned) {
+                this.exchange = exchange;
+                this.method = method;
+                this.couchdbUri = couchdbUri;
+                this.headers = headers;
+                this.bodyBuffer = bodyBuffer;
+                this.requestUser = requestUser;
+                this.requestPasswd = requestPasswd;
+                this.streamTo = streamTo;
+                this.batchSize = batchSize;
+                this.write = write;
+                this.db = db;
+                this.pinned = pinned;
+            }
+
+            /**
+             * Queues the request for a pooled http client of the chosen endpoint. Fails fast with an
+             * <code>unavailable</code> error, while the circuit breaker of the endpoint is open, and with an
+             * <code>overloaded</code> error, if its pool rejects the request.
+             *
+             * @param hedge whether the request is a hedged duplicate, which is dropped silently instead of failing
+             * @return <code>false</code>, if the request has been rejected
+             */
+            private boolean send(final boolean hedge) {
+                final long now = System.currentTimeMillis();
+                pool = pinned != null ? pinned : balancer.choose(db, write, pool, now);
+                final String rejection;
+                if (!pool.getBreaker().allow(now)) {
+                    rejection = "unavailable";
+                } else if (!pool.execute(this, write)) {
+                    rejection = "overloaded";
+                } else {
+                    return true;
+                }
+                if (!hedge) {
+                    exchange.replyRejected(rejection, "unavailable".equals(rejection)
+                            ? String.format("unavailable: circuit breaker open for %1$s, rejected %2$s %3$s",
+                            pool.getAddress(), method, couchdbUri)
+                            : String.format("overloaded: too many %1$s waiting, rejected %2$s %3$s",
+                            write ? "writes" : "reads", method, couchdbUri));
+                }
+                return false;
+            }
 
-            final HttpClientRequest request = httpClient.request(method, couchdbUri.toString(),
-                    new ResponseHandler(requestMsg));
-            putBaseAuth(putBody(putHeaders(request, headers), body), requestUser, requestPasswd).end();
+            /**
+             * Sends the request on the leased http client, unless the exchange has already been completed while
+             * waiting for the lease.
+             *
+             * @param lease the pooled http client lease
+             */
+            @Override
+            public void handle(final HttpClientPool.Lease lease) {
+                if (!exchange.attach(lease)) {
+                    return;
+                }
+                try {
+                    final Handler<HttpClientResponse> responseHandler;
+                    if (streamTo != null) {
+                        responseHandler = new StreamingResponseHandler(exchange, lease, streamTo, batchSize);
+                    } else if (exchange.raw) {
+                        responseHandler = new RawResponseHandler(exchange, lease);
+                    } else {
+                        responseHandler = new ResponseHandler(exchange, lease);
+                    }
+                    final HttpClientRequest request = lease.getClient().request(method, couchdbUri,
+                            responseHandler);
+                    request.exceptionHandler(new RequestExceptionHandler(couchdbUri, exchange, lease));
+                    RequestBuilder.headers(request.headers(), headers);
+                    // the headers are sent with the first write of the body
+                    putBody(putBaseAuth(request, requestUser, requestPasswd), bodyBuffer).end();
+                    exchange.sent(lease, request, bodyBuffer != null ? bodyBuffer.length() : 0);
+                } catch (RuntimeException ex) {
+                    lease.release();
+                    exchange.replyError(String.format("failed to query %1$s: %2$s", couchdbUri,
+                            ex.getMessage()), ex);
+                }
+            }
         }
 
-        private HttpClientRequest putBody(final HttpClientRequest request, final JsonObject body) {
+        private HttpClientRequest putBody(final HttpClientRequest request, final Buffer body) {
             if (body != null) {
-                final String bodyText = body.encode();
-                request.putHeader("Content-Length", String.valueOf(bodyText.length()))
-                        .putHeader("Content-Type", "application/json").write(bodyText, "UTF-8");
+                request.putHeader("Content-Length", String.valueOf(body.length()))
+                        .putHeader("Content-Type", "application/json").write(body);
             }
             return request;
         }
 
         private HttpClientRequest putBaseAuth(final HttpClientRequest request, final String user,
                                               final String passwd) {
-            if (user != null && passwd != null) {
-                request.putHeader("Authorization", new StringBuilder("Basic ").append(
-                        new JsonObject().putBinary("baseAuth", String.format("%1$s:%2$s", user, passwd).getBytes())
-                                .getString("baseAuth")
-                ).toString());
-            }
-            return request;
-        }
-
-        private HttpClientRequest putHeaders(final HttpClientRequest request, final JsonArray headers) {
-            if (headers != null) {
-                for (final Object header : headers) {
-                    final JsonObject headerJson = (JsonObject) header;
-                    for (final String headerName : headerJson.getFieldNames()) {
-                        request.putHeader(headerName, (String) headerJson.getField(headerName));
-                    }
-                }
+            final String authorization = authorizations.get(user, passwd);
+            if (authorization != null) {
+                request.putHeader("Authorization", authorization);
             }
             return request;
         }
@@ -320,10 +1163,12 @@ public class CouchdbVerticle extends BusModBase {
          */
         private final class ResponseHandler implements Handler<HttpClientResponse> {
 
-            private Message<JsonObject> requestMsg;
+            private final Exchange exchange;
+            private final HttpClientPool.Lease lease;
 
-            private ResponseHandler(Message<JsonObject> requestMsg) {
-                this.requestMsg = requestMsg;
+            private ResponseHandler(final Exchange exchange, final HttpClientPool.Lease lease) {
+                this.exchange = exchange;
+                this.lease = lease;
             }
 
             /**
@@ -333,7 +1178,9 @@ public class CouchdbVerticle extends BusModBase {
              */
             @Override
             public void handle(final HttpClientResponse response) {
+                exchange.responded(lease, response.statusCode());
                 if (response.statusCode() < HttpURLConnection.HTTP_INTERNAL_ERROR) {
+                    lease.succeeded();
                     response.bodyHandler(new Handler<Buffer>() {
 
                         /**
@@ -342,78 +1189,1131 @@ public class CouchdbVerticle extends BusModBase {
                          */
                         @Override
                         public void handle(final Buffer body) {
+                            lease.release();
+                            exchange.sample.received(body.length());
+                            final Object result;
+                            try {
+                                result = JsonBody.decode(body);
+                            } catch (DecodeException ex) {
+                                exchange.replyError(String.format("failed to parse response: %1$s",
+                                        ex.getMessage()), null);
+                                return;
+                            }
                             if (response.statusCode() >= HttpURLConnection.HTTP_OK
                                     && response.statusCode() < HttpURLConnection.HTTP_MULT_CHOICE) {
-                                if (body.toString("UTF-8").startsWith("[")) {
-                                    requestMsg.reply(new JsonObject().putArray("body",
-                                            new JsonArray(body.toString("UTF-8"))).putString("status", "ok"));
-                                } else if (body.toString("UTF-8").startsWith("{")) {
-                                    requestMsg.reply(new JsonObject().putObject("body",
-                                            new JsonObject(body.toString("UTF-8"))).putString("status", "ok"));
+                                final JsonObject reply = new JsonObject();
+                                if (result instanceof JsonArray) {
+                                    reply.putArray("body", (JsonArray) result);
+                                } else if (result instanceof JsonObject) {
+                                    reply.putObject("body", (JsonObject) result);
                                 } else {
-                                    requestMsg.reply(new JsonObject().putString("body",
-                                            body.toString("UTF-8")).putString("status", "ok"));
+                                    reply.putString("body", (String) result);
                                 }
+                                exchange.replyOK(reply);
                             } else {
-                                final JsonObject status = new JsonObject(body.toString("UTF-8"));
-                                final String statusMsg = String.format("%1$s: %2$s", response.statusMessage(),
-                                        status.getString("reason"));
-                                sendError(requestMsg, statusMsg);
+                                final String reason = result instanceof JsonObject
+                                        ? ((JsonObject) result).getString("reason") : String.valueOf(result).trim();
+                                exchange.replyError(String.format("%1$s: %2$s", response.statusMessage(),
+                                        reason), null);
                             }
                         }
                     });
                 } else {
-                    sendError(requestMsg, String.format("error: %1$d: %2$s", response.statusCode(),
-                            response.statusMessage()));
+                    final String errMsg = String.format("error: %1$d: %2$s", response.statusCode(),
+                            response.statusMessage());
+                    lease.failed();
+                    if (!exchange.retry(lease, errMsg)) {
+                        lease.release();
+                        exchange.replyError(errMsg, null);
+                    }
                 }
             }
         }
 
         /**
-         * Handles exceptions while performing the couchdb http request.
+         * Handles responses from couchdb in raw mode. The response body is passed unparsed into a buffer reply.
          */
-        private final class RequestExceptionHandler implements Handler<Throwable> {
-            private final String queryUri;
-            private final Message<JsonObject> requestMsg;
+        private final class RawResponseHandler implements Handler<HttpClientResponse> {
 
-            /**
-             * Creates the handler.
-             *
-             * @param queryUri   request uri
-             * @param requestMsg the request message
-             */
-            public RequestExceptionHandler(final String queryUri, final Message<JsonObject> requestMsg) {
-                this.queryUri = queryUri;
-                this.requestMsg = requestMsg;
+            private final Exchange exchange;
+            private final HttpClientPool.Lease lease;
+
+            private RawResponseHandler(final Exchange exchange, final HttpClientPool.Lease lease) {
+                this.exchange = exchange;
+                this.lease = lease;
             }
 
             /**
-             * Logs the exception and returns a ReplyException on the request message
+             * Handles couchdb responses.
              *
-             * @param t a causing exception
+             * @param response a response from couchdb
              */
             @Override
-            public void handle(final Throwable t) {
-                final String errMsg = String.format("failed to query %1$s: %2$s", queryUri, t.getMessage());
-                sendError(requestMsg, errMsg, (Exception) t);
+            public void handle(final HttpClientResponse response) {
+                exchange.responded(lease, response.statusCode());
+                if (response.statusCode() < HttpURLConnection.HTTP_INTERNAL_ERROR) {
+                    lease.succeeded();
+                } else {
+                    lease.failed();
+                    if (exchange.retry(lease, String.format("error: %1$d: %2$s", response.statusCode(),
+                            response.statusMessage()))) {
+                        return;
+                    }
+                }
+                response.bodyHandler(new Handler<Buffer>() {
+                    @Override
+                    public void handle(final Buffer body) {
+                        lease.release();
+                        exchange.sample.received(body.length());
+                        exchange.replyRaw(RawReply.encode(response.statusCode(), response.statusMessage(),
+                                response.headers(), body), response.statusCode() < HttpURLConnection.HTTP_OK
+                                || response.statusCode() >= HttpURLConnection.HTTP_MULT_CHOICE);
+                    }
+                });
             }
         }
-    }
-
-    /**
-     * Performs a reflection a database or all databases in a couchdb server. Finds all db/view urls and registers
-     * handlers for the urls.
-     */
-    private final class ReflectHandler implements Handler<Message<JsonObject>> {
 
-        private int dbsProcessed;
-        private int dbsCount;
-        private Message<JsonObject> reflectServerMsg;
-        private Map<String, Set<HandlerEntry>> dbsHandlerEntries;
+        /**
+         * Handles view and all docs responses from couchdb in streaming mode. Rows are parsed incrementally off the
+         * socket and sent in batches to the stream address. Reading from the socket is paused, while the number of
+         * unacknowledged batches exceeds the stream window.
+         */
+        private final class StreamingResponseHandler implements Handler<HttpClientResponse> {
+
+            private final Exchange exchange;
+            private final HttpClientPool.Lease lease;
+            private final String streamTo;
+            private final int batchSize;
+
+            private HttpClientResponse response;
+            private RowStreamParser parser;
+            private JsonArray rows = new JsonArray();
+            private int batches;
+            private int pending;
+            private int count;
+            private boolean ended;
+            private boolean failed;
+
+            private StreamingResponseHandler(final Exchange exchange, final HttpClientPool.Lease lease,
+                                             final String streamTo, final int batchSize) {
+                this.exchange = exchange;
+                this.lease = lease;
+                this.streamTo = streamTo;
+                this.batchSize = batchSize;
+            }
+
+            /**
+             * Handles couchdb responses. Error responses are handled like in non streaming mode.
+             *
+             * @param response a response from couchdb
+             */
+            @Override
+            public void handle(final HttpClientResponse response) {
+                exchange.responded(lease, response.statusCode());
+                if (response.statusCode() < HttpURLConnection.HTTP_OK
+                        || response.statusCode() >= HttpURLConnection.HTTP_MULT_CHOICE) {
+                    new ResponseHandler(exchange, lease).handle(response);
+                    return;
+                }
+                // the stream is guarded by the acknowledgement timeout of its batches
+                exchange.cancelTimeout();
+                lease.succeeded();
+                this.response = response;
+                parser = new RowStreamParser(new Handler<Buffer>() {
+                    @Override
+                    public void handle(final Buffer row) {
+                        rows.addObject(JsonBody.decodeObject(row));
+                        count++;
+                        if (rows.size() >= batchSize) {
+                            sendBatch();
+                        }
+                    }
+                });
+                response.dataHandler(new Handler<Buffer>() {
+                    @Override
+                    public void handle(final Buffer chunk) {
+                        exchange.sample.received(chunk.length());
+                        if (!failed) {
+                            try {
+                                parser.feed(chunk);
+                            } catch (RuntimeException ex) {
+                                fail(String.format("failed to parse rows: %1$s", ex.getMessage()));
+                            }
+                        }
+                    }
+                });
+                response.endHandler(new Handler<Void>() {
+                    @Override
+                    public void handle(final Void event) {
+                        lease.release();
+                        if (!failed && !parser.isComplete()) {
+                            // the connection has been closed in the middle of the response
+                            fail("failed to parse rows: incomplete response");
+                        } else if (!failed) {
+                            if (rows.size() > 0) {
+                                sendBatch();
+                            }
+                            ended = true;
+                            complete();
+                        }
+                    }
+                });
+            }
+
+            private void sendBatch() {
+                final JsonObject batch = new JsonObject().putNumber("batch", batches++).putArray("rows", rows);
+                rows = new JsonArray();
+                pending++;
+                if (pending >= streamWindow) {
+                    response.pause();
+                }
+                eb.sendWithTimeout(streamTo, batch, streamTimeout, new Handler<AsyncResult<Message<Object>>>() {
+                    @Override
+                    public void handle(final AsyncResult<Message<Object>> ackResult) {
+                        pending--;
+                        if (failed) {
+                            return;
+                        }
+                        if (ackResult.failed()) {
+                            fail(String.format("batch not acknowledged by %1$s: %2$s", streamTo,
+                                    ackResult.cause().getMessage()));
+                        } else if (ended) {
+                            complete();
+                        } else if (pending < streamWindow) {
+                            response.resume();
+                        }
+                    }
+                });
+            }
+
+            private void complete() {
+                if (pending == 0) {
+                    try {
+                        final JsonObject result = parser.getEnvelope();
+                        result.removeField("rows");
+                        result.putNumber("count", count);
+                        eb.send(streamTo, result.copy().putBoolean("end", true));
+                        exchange.replyOK(new JsonObject().putObject("body", result));
+                    } catch (RuntimeException ex) {
+                        fail(String.format("failed to parse response: %1$s", ex.getMessage()));
+                    }
+                }
+            }
+
+            private void fail(final String errMsg) {
+                failed = true;
+                // drain the remaining response to keep the connection usable
+                response.resume();
+                eb.send(streamTo, new JsonObject().putBoolean("end", true).putString("status", "error")
+                        .putString("message", errMsg));
+                exchange.replyError(errMsg, null);
+            }
+        }
+
+        /**
+         * Handles exceptions while performing the couchdb http request.
+         */
+        private final class RequestExceptionHandler implements Handler<Throwable> {
+            private final String queryUri;
+            private final Exchange exchange;
+            private final HttpClientPool.Lease lease;
+
+            /**
+             * Creates the handler.
+             *
+             * @param queryUri request uri
+             * @param exchange the exchange of the request message
+             * @param lease    the pooled http client lease used by the request
+             */
+            public RequestExceptionHandler(final String queryUri, final Exchange exchange,
+                                           final HttpClientPool.Lease lease) {
+                this.queryUri = queryUri;
+                this.exchange = exchange;
+                this.lease = lease;
+            }
+
+            /**
+             * Logs the exception and returns a ReplyException on the request message
+             *
+             * @param t a causing exception
+             */
+            @Override
+            public void handle(final Throwable t) {
+                if (!exchange.detach(lease)) {
+                    // an abandoned request, its exchange has already been completed
+                    return;
+                }
+                final String errMsg = String.format("failed to query %1$s: %2$s", queryUri, t.getMessage());
+                lease.failed();
+                if (!exchange.retry(lease, errMsg)) {
+                    lease.release();
+                    exchange.replyError(errMsg, t);
+                }
+            }
+        }
+    }
+
+    /**
+     * The reply side of a request. Replies exactly once to the reply handler of the request and to all identical
+     * <code>GET</code> requests, that have been collapsed into it while it was in flight. Completing the exchange
+     * cancels its timers and releases the leases of all its http requests, so the loser of a hedged request or a
+     * timed out request frees its request slot. The requests still waiting for their response are abandoned with
+     * {@link HttpClientRequest#setTimeout(long)}, vert.x fails them and discards their late responses.
+     */
+    private final class Exchange {
+
+        private final Handler<Object> replyHandler;
+        private final boolean raw;
+        private final String flightKey;
+        private final RequestMetrics.Sample sample;
+        private final List<HttpClientPool.Lease> leases = new ArrayList<>(1);
+        private final Map<HttpClientPool.Lease, HttpClientRequest> pendingRequests = new HashMap<>(2);
+        private List<Handler<Object>> followers;
+        private long timeoutTimerId = -1;
+        private long hedgeTimerId = -1;
+        private CouchdbRequestHandler.Call retryCall;
+        private int retriesLeft;
+        private int attempts;
+        private boolean completed;
+
+        /**
+         * Creates the exchange.
+         *
+         * @param replyHandler receives the reply of the request
+         * @param raw          whether to reply in raw mode
+         * @param flightKey    the key of the request in the in flight requests or <code>null</code>, if the request
+         *                     cannot be collapsed
+         * @param sample       the metrics sample of the request
+         */
+        private Exchange(final Handler<Object> replyHandler, final boolean raw, final String flightKey,
+                         final RequestMetrics.Sample sample) {
+            this.replyHandler = replyHandler;
+            this.raw = raw;
+            this.flightKey = flightKey;
+            this.sample = sample;
+        }
+
+
+        /**
+         * Adds the lease of an http request of the exchange.
+         *
+         * @param lease a pooled http client lease
+         * @return <code>false</code>, if the exchange has already been completed and the lease has been released
+         */
+        private boolean attach(final HttpClientPool.Lease lease) {
+            if (completed) {
+                lease.release();
+                return false;
+            }
+            leases.add(lease);
+            return true;
+        }
+
+        /**
+         * Records an http request sent on an attached lease, that waits for its response.
+         *
+         * @param lease   the lease of the request
+         * @param request the sent request
+         * @param length  the length of the request body
+         */
+        private void sent(final HttpClientPool.Lease lease, final HttpClientRequest request, final int length) {
+            pendingRequests.put(lease, request);
+            sample.sent(length);
+        }
+
+        /**
+         * Records the arrival of the response headers of an http request.
+         *
+         * @param lease      the lease of the request
+         * @param statusCode the response status code
+         */
+        private void responded(final HttpClientPool.Lease lease, final int statusCode) {
+            pendingRequests.remove(lease);
+            sample.responded(statusCode);
+        }
+
+        /**
+         * Removes a failed http request from the pending requests.
+         *
+         * @param lease the lease of the request
+         * @return <code>false</code>, if the exchange has already been completed
+         */
+        private boolean detach(final HttpClientPool.Lease lease) {
+            pendingRequests.remove(lease);
+            return !completed;
+        }
+
+        /**
+         * Replies with a <code>timeout</code> error, if the exchange has not been completed within the timeout.
+         *
+         * @param timeout milliseconds
+         * @param errMsg  the error message
+         */
+        private void startTimeout(final long timeout, final String errMsg) {
+            timeoutTimerId = vertx.setTimer(timeout, new Handler<Long>() {
+                @Override
+                public void handle(final Long timerId) {
+                    timeoutTimerId = -1;
+                    if (!completed) {
+                        sample.timedOut();
+                        for (final HttpClientPool.Lease lease : leases) {
+                            lease.failed();
+                        }
+                        logger.warn(errMsg);
+                        complete(raw ? RawReply.encodeError("timeout", errMsg) : new JsonObject()
+                                .putString("status", "error").putString("error", "timeout")
+                                .putString("message", errMsg), true);
+                    }
+                }
+            });
+        }
+
+        private void cancelTimeout() {
+            if (timeoutTimerId != -1) {
+                vertx.cancelTimer(timeoutTimerId);
+                timeoutTimerId = -1;
+            }
+        }
+
+        /**
+         * Sends the request a second time, if no response headers have been received within the delay.
+         *
+         * @param delay milliseconds
+         * @param call  the request
+         */
+        private void startHedge(final long delay, final CouchdbRequestHandler.Call call) {
+            hedgeTimerId = vertx.setTimer(delay, new Handler<Long>() {
+                @Override
+                public void handle(final Long timerId) {
+                    hedgeTimerId = -1;
+                    if (!completed && !sample.isResponded() && call.send(true)) {
+                        if (logger.isDebugEnabled())
+                            logger.debug(String.format("hedging request after %1$d ms: %2$s", delay,
+                                    call.couchdbUri));
+                        sample.hedged();
+                    }
+                }
+            });
+        }
+
+        /**
+         * Enables retries of failed requests.
+         *
+         * @param call    the idempotent request
+         * @param retries the maximum number of retries
+         */
+        private void retryWith(final CouchdbRequestHandler.Call call, final int retries) {
+            this.retryCall = call;
+            this.retriesLeft = retries;
+        }
+
+        /**
+         * Sends a failed request again after a jittered exponential backoff, if retries are left.
+         *
+         * @param lease  the lease of the failed request, released on retry
+         * @param errMsg the error of the failed request
+         * @return <code>true</code>, if the request is retried
+         */
+        private boolean retry(final HttpClientPool.Lease lease, final String errMsg) {
+            if (completed || retryCall == null || retriesLeft <= 0) {
+                return false;
+            }
+            lease.release();
+            retriesLeft--;
+            attempts++;
+            final long delay = (long) (random.nextDouble() * Math.min(retryMaxDelay,
+                    retryDelay << Math.min(attempts - 1, 20)));
+            if (logger.isDebugEnabled())
+                logger.debug(String.format("retrying after %1$d ms: %2$s", delay, errMsg));
+            sample.retried();
+            vertx.setTimer(Math.max(1, delay), new Handler<Long>() {
+                @Override
+                public void handle(final Long timerId) {
+                    if (!completed) {
+                        retryCall.send(false);
+                    }
+                }
+            });
+            return true;
+        }
+
+        private void follow(final Handler<Object> followerHandler) {
+            if (followers == null) {
+                followers = new ArrayList<>();
+            }
+            followers.add(followerHandler);
+        }
+
+        private void replyOK(final JsonObject reply) {
+            complete(reply.putString("status", "ok"), false);
+        }
+
+        private void replyError(final String errMsg, final Throwable t) {
+            if (t != null) {
+                logger.error(errMsg, t);
+            } else {
+                logger.error(errMsg);
+            }
+            complete(raw ? RawReply.encodeError(errMsg)
+                    : new JsonObject().putString("status", "error").putString("message", errMsg), true);
+        }
+
+        private void replyRejected(final String error, final String errMsg) {
+            if (logger.isDebugEnabled())
+                logger.debug(errMsg);
+            complete(raw ? RawReply.encodeError(error, errMsg) : new JsonObject().putString("status", "error")
+                    .putString("error", error).putString("message", errMsg), true);
+        }
+
+        private void replyRaw(final Buffer reply, final boolean error) {
+            complete(reply, error);
+        }
+
+        private void complete(final Object reply, final boolean error) {
+            if (completed) {
+                return;
+            }
+            completed = true;
+            cancelTimeout();
+            if (hedgeTimerId != -1) {
+                vertx.cancelTimer(hedgeTimerId);
+                hedgeTimerId = -1;
+            }
+            for (final HttpClientPool.Lease lease : leases) {
+                lease.release();
+            }
+            for (final HttpClientRequest request : pendingRequests.values()) {
+                request.setTimeout(ABANDON_TIMEOUT);
+            }
+            pendingRequests.clear();
+            sample.completed(error);
+            if (flightKey != null) {
+                inflightGets.remove(flightKey);
+            }
+            replyHandler.handle(reply);
+            if (followers != null) {
+                for (final Handler<Object> followerHandler : followers) {
+                    // every receiver gets its own copy, replies within the same verticle are not copied
+                    followerHandler.handle(reply instanceof JsonObject ? ((JsonObject) reply).copy()
+                            : reply instanceof Buffer ? ((Buffer) reply).copy() : reply);
+                }
+            }
+        }
+    }
+
+    /**
+     * Coalesces single document writes (<code>POST</code> without id, <code>PUT</code> with id) to a database into
+     * <code>_bulk_docs</code> requests. Writes are collected per credentials until <code>writeBatchWindow</code>
+     * milliseconds have passed or <code>writeBatchSize</code> documents have been collected. Every caller receives
+     * the result for its own document and the written documents are removed from the document cache. All other
+     * messages are passed to the wrapped handler.
+     */
+    private final class WriteBatchHandler implements Handler<Message<JsonObject>> {
+
+        private final String db;
+        private final Handler<Message<JsonObject>> delegate;
+        private final CouchdbRequestHandler bulkDocsHandler;
+        private final Map<String, WriteBatch> batches = new HashMap<>();
+
+        private WriteBatchHandler(final String db, final Handler<Message<JsonObject>> delegate,
+                                  final CouchdbRequestHandler bulkDocsHandler) {
+            this.db = db;
+            this.delegate = delegate;
+            this.bulkDocsHandler = bulkDocsHandler;
+        }
+
+        /**
+         * Adds single document writes to the current batch, forwards all other messages to the wrapped handler.
+         *
+         * @param requestMsg the request message
+         */
+        @Override
+        public void handle(final Message<JsonObject> requestMsg) {
+            final JsonObject json = requestMsg.body();
+            final String method = json.getString("method", "GET");
+            final String id = json.getString("id");
+            final JsonObject body = json.getObject("body");
+            if (body != null && json.getString("db") == null && json.getArray("params") == null
+                    && json.getArray("headers") == null && !json.getBoolean("raw", false)
+                    && ("POST".equals(method) && id == null
+                    || "PUT".equals(method) && id != null && !id.startsWith("_local/"))) {
+                final String requestUser = json.getString("user", user);
+                final String requestPasswd = json.getString("passwd", passwd);
+                // keyed by a digest, the password is not kept in the key
+                final String digest = authorizations.digest(requestUser, requestPasswd);
+                final String key = digest != null ? digest : "";
+                WriteBatch batch = batches.get(key);
+                if (batch == null) {
+                    batch = new WriteBatch(key, requestUser, requestPasswd);
+                    batches.put(key, batch);
+                }
+                batch.add(requestMsg, id != null ? body.copy().putString("_id", id) : body);
+            } else {
+                delegate.handle(requestMsg);
+            }
+        }
+
+        /**
+         * Collects the documents and request messages of a batch.
+         */
+        private final class WriteBatch {
+
+            private final String key;
+            private final String user;
+            private final String passwd;
+            private final List<Message<JsonObject>> requestMsgs = new ArrayList<>();
+            private final JsonArray docs = new JsonArray();
+            private long timerId = -1;
+
+            private WriteBatch(final String key, final String user, final String passwd) {
+                this.key = key;
+                this.user = user;
+                this.passwd = passwd;
+            }
+
+            private void add(final Message<JsonObject> requestMsg, final JsonObject doc) {
+                requestMsgs.add(requestMsg);
+                docs.addObject(doc);
+                if (docs.size() >= writeBatchSize) {
+                    flush();
+                } else if (timerId == -1) {
+                    timerId = vertx.setTimer(writeBatchWindow, new Handler<Long>() {
+                        @Override
+                        public void handle(final Long event) {
+                            flush();
+                        }
+                    });
+                }
+            }
+
+            private void flush() {
+                if (timerId != -1) {
+                    vertx.cancelTimer(timerId);
+                }
+                batches.remove(key);
+                final String bulkDocsAddress = String.format(ADDRESS_BULK_DOCS, db);
+                final JsonObject bulkDocsMsg = new JsonObject().putString("method", "POST")
+                        .putObject("body", new JsonObject().putArray("docs", docs));
+                if (user != null && passwd != null) {
+                    bulkDocsMsg.putString("user", user).putString("passwd", passwd);
+                }
+                if (logger.isDebugEnabled())
+                    logger.debug(String.format("writing batch of %1$d docs to %2$s", docs.size(), bulkDocsAddress));
+                bulkDocsHandler.handle(bulkDocsMsg, new BulkDocsResultHandler(requestMsgs));
+            }
+        }
+
+        /**
+         * Replies the result of every document in a <code>_bulk_docs</code> request to its request message.
+         */
+        private final class BulkDocsResultHandler implements Handler<Object> {
+
+            private final List<Message<JsonObject>> requestMsgs;
+
+            private BulkDocsResultHandler(final List<Message<JsonObject>> requestMsgs) {
+                this.requestMsgs = requestMsgs;
+            }
+
+            /**
+             * Handles the <code>_bulk_docs</code> result.
+             *
+             * @param bulkDocsReply an array of document results, e.g.
+             *                      <code>[{"ok":true,"id":"dummy1","rev":"1-8cf7"},{"id":"dummy2",
+             *                      "error":"conflict","reason":"Document update conflict."}]</code>
+             */
+            @Override
+            public void handle(final Object bulkDocsReply) {
+                final JsonObject json = (JsonObject) bulkDocsReply;
+                if ("error".equals(json.getString("status"))) {
+                    for (final Message<JsonObject> requestMsg : requestMsgs) {
+                        sendError(requestMsg, json.getString("message"));
+                    }
+                    return;
+                }
+                final JsonArray results = json.getArray("body");
+                for (int i = 0; i < requestMsgs.size(); i++) {
+                    final JsonObject result = results != null && i < results.size()
+                            ? (JsonObject) results.get(i) : null;
+                    if (result != null && result.getString("id") != null) {
+                        // the batched writes bypass the document cache of the wrapped handler
+                        docCache.remove(String.format("%1$s/%2$s", db, result.getString("id")));
+                    }
+                    if (result == null) {
+                        sendError(requestMsgs.get(i), String.format("missing result for document %1$d in %2$s",
+                                i, String.format(ADDRESS_BULK_DOCS, db)));
+                    } else if (result.getString("error") != null) {
+                        sendError(requestMsgs.get(i), String.format("%1$s: %2$s", result.getString("error"),
+                                result.getString("reason")));
+                    } else {
+                        sendOK(requestMsgs.get(i), new JsonObject().putObject("body",
+                                result.putBoolean("ok", true)));
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Coalesces concurrent document reads by id (<code>GET</code> with id) from a database into
+     * <code>_all_docs?include_docs=true</code> requests with a <code>keys</code> body. Reads are collected per
+     * credentials until <code>readBatchWindow</code> milliseconds have passed or <code>readBatchSize</code> ids have
+     * been collected. Every caller receives its own document or a not found error. All other messages are passed to
+     * the wrapped handler.
+     */
+    private final class ReadBatchHandler implements Handler<Message<JsonObject>> {
+
+        private final String db;
+        private final Handler<Message<JsonObject>> delegate;
+        private final CouchdbRequestHandler allDocsHandler;
+        private final Map<String, ReadBatch> batches = new HashMap<>();
+
+        private ReadBatchHandler(final String db, final Handler<Message<JsonObject>> delegate,
+                                 final CouchdbRequestHandler allDocsHandler) {
+            this.db = db;
+            this.delegate = delegate;
+            this.allDocsHandler = allDocsHandler;
+        }
+
+        /**
+         * Adds document reads to the current batch, forwards all other messages to the wrapped handler.
+         *
+         * @param requestMsg the request message
+         */
+        @Override
+        public void handle(final Message<JsonObject> requestMsg) {
+            final JsonObject json = requestMsg.body();
+            final String id = json.getString("id");
+            if (id != null && "GET".equals(json.getString("method", "GET")) && json.getString("db") == null
+                    && json.getObject("body") == null && json.getArray("params") == null
+                    && json.getArray("headers") == null && !json.getBoolean("raw", false)
+                    && !id.startsWith("_local/")) {
+                final String requestUser = json.getString("user", user);
+                final String requestPasswd = json.getString("passwd", passwd);
+                final String digest = authorizations.digest(requestUser, requestPasswd);
+                final String key = digest != null ? digest : "";
+                ReadBatch batch = batches.get(key);
+                if (batch == null) {
+                    batch = new ReadBatch(key, requestUser, requestPasswd);
+                    batches.put(key, batch);
+                }
+                batch.add(id, requestMsg);
+            } else {
+                delegate.handle(requestMsg);
+            }
+        }
+
+        /**
+         * Collects the document ids and request messages of a batch.
+         */
+        private final class ReadBatch {
+
+            private final String key;
+            private final String user;
+            private final String passwd;
+            private final Map<String, List<Message<JsonObject>>> requestMsgs = new HashMap<>();
+            private long timerId = -1;
+
+            private ReadBatch(final String key, final String user, final String passwd) {
+                this.key = key;
+                this.user = user;
+                this.passwd = passwd;
+            }
+
+            private void add(final String id, final Message<JsonObject> requestMsg) {
+                List<Message<JsonObject>> idRequestMsgs = requestMsgs.get(id);
+                if (idRequestMsgs == null) {
+                    idRequestMsgs = new ArrayList<>();
+                    requestMsgs.put(id, idRequestMsgs);
+                }
+                idRequestMsgs.add(requestMsg);
+                if (requestMsgs.size() >= readBatchSize) {
+                    flush();
+                } else if (timerId == -1) {
+                    timerId = vertx.setTimer(readBatchWindow, new Handler<Long>() {
+                        @Override
+                        public void handle(final Long event) {
+                            flush();
+                        }
+                    });
+                }
+            }
+
+            private void flush() {
+                if (timerId != -1) {
+                    vertx.cancelTimer(timerId);
+                }
+                batches.remove(key);
+                final String allDocsAddress = String.format(ADDRESS_ALL_DOCS, db);
+                final JsonArray keys = new JsonArray();
+                for (final String id : requestMsgs.keySet()) {
+                    keys.addString(id);
+                }
+                final JsonObject allDocsMsg = new JsonObject().putString("method", "POST")
+                        .putArray("params", new JsonArray().addObject(new JsonObject()
+                                .putBoolean("include_docs", true)))
+                        .putObject("body", new JsonObject().putArray("keys", keys));
+                if (user != null && passwd != null) {
+                    allDocsMsg.putString("user", user).putString("passwd", passwd);
+                }
+                if (logger.isDebugEnabled())
+                    logger.debug(String.format("reading batch of %1$d docs from %2$s", keys.size(), allDocsAddress));
+                allDocsHandler.handle(allDocsMsg, new AllDocsResultHandler(requestMsgs));
+            }
+        }
+
+        /**
+         * Replies every document of an <code>_all_docs</code> result to the request messages waiting for it.
+         */
+        private final class AllDocsResultHandler implements Handler<Object> {
+
+            private final Map<String, List<Message<JsonObject>>> requestMsgs;
+
+            private AllDocsResultHandler(final Map<String, List<Message<JsonObject>>> requestMsgs) {
+                this.requestMsgs = requestMsgs;
+            }
+
+            /**
+             * Handles the <code>_all_docs</code> result.
+             *
+             * @param allDocsReply the rows for the requested keys, e.g.
+             *                     <code>{"rows":[{"id":"dummy1","key":"dummy1","value":{"rev":"1-8cf7"},
+             *                     "doc":{...}},{"key":"dummy9","error":"not_found"}]}</code>
+             */
+            @Override
+            public void handle(final Object allDocsReply) {
+                final JsonObject json = (JsonObject) allDocsReply;
+                if ("error".equals(json.getString("status"))) {
+                    for (final List<Message<JsonObject>> idRequestMsgs : requestMsgs.values()) {
+                        for (final Message<JsonObject> requestMsg : idRequestMsgs) {
+                            sendError(requestMsg, json.getString("message"));
+                        }
+                    }
+                    return;
+                }
+                for (final Object rowObj : json.getObject("body").getArray("rows")) {
+                    final JsonObject row = (JsonObject) rowObj;
+                    final List<Message<JsonObject>> idRequestMsgs = requestMsgs.remove(row.getString("key"));
+                    if (idRequestMsgs != null) {
+                        final JsonObject doc = row.getObject("doc");
+                        for (final Message<JsonObject> requestMsg : idRequestMsgs) {
+                            if (doc != null) {
+                                sendOK(requestMsg, new JsonObject().putObject("body",
+                                        idRequestMsgs.size() > 1 ? doc.copy() : doc));
+                            } else {
+                                final JsonObject value = row.getObject("value");
+                                sendError(requestMsg, String.format("%1$s: %2$s", NOT_FOUND, value != null
+                                        && value.getBoolean("deleted", false) ? "deleted" : "missing"));
+                            }
+                        }
+                    }
+                }
+                for (final List<Message<JsonObject>> idRequestMsgs : requestMsgs.values()) {
+                    for (final Message<JsonObject> requestMsg : idRequestMsgs) {
+                        sendError(requestMsg, String.format("%1$s: missing", NOT_FOUND));
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Caches the documents of a database. A cached document is served without revalidation for
+     * <code>docCacheMaxAge</code> milliseconds to requests with the credentials it has been validated with. Cached
+     * documents are revalidated with their ETag
+     * (<code>If-None-Match</code>) by the wrapped handler, a <code>304 Not Modified</code> response is served from
+     * memory. Writes (<code>PUT</code>, <code>POST</code>, <code>DELETE</code> and the destination of a
+     * <code>COPY</code>) through this handler remove the document from the cache. All other messages are passed to
+     * the wrapped handler.
+     */
+    private final class DocCacheHandler implements Handler<Message<JsonObject>> {
+
+        private final String db;
+        private final Handler<Message<JsonObject>> delegate;
+        private final CouchdbRequestHandler requestHandler;
+
+        private DocCacheHandler(final String db, final Handler<Message<JsonObject>> delegate,
+                                final CouchdbRequestHandler requestHandler) {
+            this.db = db;
+            this.delegate = delegate;
+            this.requestHandler = requestHandler;
+        }
+
+        /**
+         * Serves document reads from the cache, forwards all other messages to the wrapped handler.
+         *
+         * @param requestMsg the request message
+         */
+        @Override
+        public void handle(final Message<JsonObject> requestMsg) {
+            final JsonObject json = requestMsg.body();
+            final String id = json.getString("id");
+            final String method = json.getString("method", "GET");
+            if (id == null || json.getString("db") != null) {
+                delegate.handle(requestMsg);
+            } else if ("GET".equals(method) && json.getObject("body") == null && json.getArray("params") == null
+                    && json.getArray("headers") == null && !json.getBoolean("raw", false)) {
+                final String key = String.format("%1$s/%2$s", db, id);
+                final String digest = authorizations.digest(json.getString("user", user),
+                        json.getString("passwd", passwd));
+                final LruCache.Entry<JsonObject> entry = docCache.get(key);
+                if (entry != null && System.currentTimeMillis() - entry.getValidated() < docCacheMaxAge
+                        && (digest != null ? digest.equals(entry.getValidator()) : entry.getValidator() == null)) {
+                    docCache.hit();
+                    sendOK(requestMsg, new JsonObject().putObject("body", entry.getValue()));
+                } else {
+                    revalidate(requestMsg, key, digest, entry);
+                }
+            } else {
+                if ("PUT".equals(method) || "POST".equals(method) || "DELETE".equals(method)) {
+                    docCache.remove(String.format("%1$s/%2$s", db, id));
+                } else if ("COPY".equals(method)) {
+                    final String destination = getDestination(json.getArray("headers"));
+                    if (destination != null) {
+                        docCache.remove(String.format("%1$s/%2$s", db, destination));
+                    }
+                }
+                delegate.handle(requestMsg);
+            }
+        }
+
+        /**
+         * Returns the document id of a <code>Destination</code> header without its <code>rev</code> parameter.
+         */
+        private String getDestination(final JsonArray headers) {
+            if (headers != null) {
+                for (final Object header : headers) {
+                    final JsonObject headerJson = (JsonObject) header;
+                    for (final String headerName : headerJson.getFieldNames()) {
+                        if ("Destination".equalsIgnoreCase(headerName)) {
+                            final String destination = String.valueOf(headerJson.getValue(headerName));
+                            final int query = destination.indexOf('?');
+                            return query < 0 ? destination : destination.substring(0, query);
+                        }
+                    }
+                }
+            }
+            return null;
+        }
+
+        private void revalidate(final Message<JsonObject> requestMsg, final String key, final String digest,
+                                final LruCache.Entry<JsonObject> entry) {
+            final JsonObject getMsg = requestMsg.body().copy().putBoolean("raw", true);
+            if (entry != null) {
+                getMsg.putArray("headers", new JsonArray().addObject(new JsonObject()
+                        .putString("If-None-Match", entry.getTag())));
+            }
+            // the raw request would evict the entry when passing this handler, so it bypasses the wrapping handlers
+            requestHandler.handle(getMsg, new Handler<Object>() {
+                @Override
+                public void handle(final Object getReply) {
+                    try {
+                        final JsonObject header = RawReply.getHeader((Buffer) getReply);
+                        final int statusCode = header.getInteger("statusCode", 0);
+                        if (statusCode == HttpURLConnection.HTTP_NOT_MODIFIED && entry != null) {
+                            docCache.hit();
+                            entry.validated(digest);
+                            sendOK(requestMsg, new JsonObject().putObject("body", entry.getValue()));
+                        } else if ("ok".equals(header.getString("status"))) {
+                            docCache.miss();
+                            final Buffer body = RawReply.getBody((Buffer) getReply);
+                            final JsonObject doc = JsonBody.decodeObject(body);
+                            final JsonObject headers = header.getObject("headers");
+                            String etag = null;
+                            for (final String headerName : headers.getFieldNames()) {
+                                if ("ETag".equalsIgnoreCase(headerName)) {
+                                    etag = headers.getString(headerName);
+                                }
+                            }
+                            final LruCache.Entry<JsonObject> cached = etag != null
+                                    ? docCache.put(key, etag, doc, body.length()) : null;
+                            if (cached != null) {
+                                cached.validated(digest);
+                            } else {
+                                docCache.remove(key);
+                            }
+                            sendOK(requestMsg, new JsonObject().putObject("body", doc));
+                        } else {
+                            docCache.miss();
+                            if (statusCode != HttpURLConnection.HTTP_UNAUTHORIZED
+                                    && statusCode != HttpURLConnection.HTTP_FORBIDDEN) {
+                                // a request with wrong credentials does not invalidate the cached document
+                                docCache.remove(key);
+                            }
+                            final Object result = JsonBody.decode(RawReply.getBody((Buffer) getReply));
+                            sendError(requestMsg, statusCode == 0 ? header.getString("message")
+                                    : String.format("%1$s: %2$s", header.getString("statusMessage"),
+                                    result instanceof JsonObject ? ((JsonObject) result).getString("reason")
+                                            : String.valueOf(result).trim()));
+                        }
+                    } catch (RuntimeException ex) {
+                        sendError(requestMsg, String.format("failed to get document %1$s: %2$s", key,
+                                ex.getMessage()), ex);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Caches the results of a view. Results are keyed by the view address, a digest of the credentials and the
+     * normalized query parameters, so a result is only served to the credentials it has been queried with. Every
+     * result is tagged with the <code>update_seq</code> of the database it reflects and is valid, until the database
+     * sequence moves. Requests with <code>stale=ok</code> or <code>stale=update_after</code> are served from the cache
+     * without checking the database sequence. All other messages are passed to the wrapped handler.
+     */
+    private final class ViewCacheHandler implements Handler<Message<JsonObject>> {
+
+        private final String db;
+        private final String address;
+        private final CouchdbRequestHandler delegate;
+
+        private ViewCacheHandler(final String db, final String address, final CouchdbRequestHandler delegate) {
+            this.db = db;
+            this.address = address;
+            this.delegate = delegate;
+        }
+
+        /**
+         * Serves view queries from the cache, forwards all other messages to the wrapped handler.
+         *
+         * @param requestMsg the request message
+         */
+        @Override
+        public void handle(final Message<JsonObject> requestMsg) {
+            final JsonObject json = requestMsg.body();
+            if (!"GET".equals(json.getString("method", "GET")) || json.getString("db") != null
+                    || json.getString("id") != null || json.getObject("body") != null
+                    || json.getArray("headers") != null || json.getBoolean("raw", false)
+                    || json.getString("streamTo") != null) {
+                delegate.handle(requestMsg);
+                return;
+            }
+            final Map<String, Object> params = new TreeMap<>();
+            final JsonArray paramsJson = json.getArray("params");
+            if (paramsJson != null) {
+                for (final Object param : paramsJson) {
+                    params.putAll(((JsonObject) param).toMap());
+                }
+            }
+            final String requestUser = json.getString("user", user);
+            final String requestPasswd = json.getString("passwd", passwd);
+            final String digest = authorizations.digest(requestUser, requestPasswd);
+            final StringBuilder key = new StringBuilder(address).append("?auth=").append(digest != null ? digest : "");
+            for (final Map.Entry<String, Object> param : params.entrySet()) {
+                RequestBuilder.appendParam(key.append('&'), param.getKey(), param.getValue());
+            }
+            final String cacheKey = key.toString();
+            final LruCache.Entry<JsonObject> entry = viewCache.get(cacheKey);
+            final Object stale = params.get("stale");
+            if (entry != null && ("ok".equals(stale) || "update_after".equals(stale))) {
+                viewCache.hit();
+                sendOK(requestMsg, new JsonObject().putObject("body", entry.getValue()));
+            } else if (entry != null) {
+                getUpdateSeq(db, requestUser, requestPasswd, new Handler<String>() {
+                    @Override
+                    public void handle(final String updateSeq) {
+                        if (entry.getTag().equals(updateSeq)) {
+                            viewCache.hit();
+                            sendOK(requestMsg, new JsonObject().putObject("body", entry.getValue()));
+                        } else {
+                            query(requestMsg, cacheKey, params.containsKey("update_seq"));
+                        }
+                    }
+                });
+            } else {
+                query(requestMsg, cacheKey, params.containsKey("update_seq"));
+            }
+        }
+
+        private void query(final Message<JsonObject> requestMsg, final String cacheKey,
+                           final boolean updateSeqRequested) {
+            viewCache.miss();
+            final JsonObject json = requestMsg.body();
+            final JsonObject queryMsg = json.copy().putBoolean("raw", true).putArray("params",
+                    json.getArray("params", new JsonArray()).copy().addObject(new JsonObject()
+                            .putBoolean("update_seq", true)));
+            delegate.handle(queryMsg, new Handler<Object>() {
+                @Override
+                public void handle(final Object queryReply) {
+                    try {
+                        final JsonObject header = RawReply.getHeader((Buffer) queryReply);
+                        final Buffer body = RawReply.getBody((Buffer) queryReply);
+                        if ("ok".equals(header.getString("status"))) {
+                            final JsonObject result = JsonBody.decodeObject(body);
+                            // the update_seq parameter is part of the cache key, so cached results only
+                            // contain the update_seq, if it has been requested
+                            final Object updateSeq = updateSeqRequested ? result.getValue("update_seq")
+                                    : result.removeField("update_seq");
+                            if (updateSeq != null) {
+                                viewCache.put(cacheKey, String.valueOf(updateSeq), result, body.length());
+                            }
+                            sendOK(requestMsg, new JsonObject().putObject("body", result));
+                        } else if (header.getInteger("statusCode", 0) == 0) {
+                            sendError(requestMsg, header.getString("message"));
+                        } else {
+                            final Object result = JsonBody.decode(body);
+                            sendError(requestMsg, String.format("%1$s: %2$s", header.getString("statusMessage"),
+                                    result instanceof JsonObject ? ((JsonObject) result).getString("reason")
+                                            : String.valueOf(result).trim()));
+                        }
+                    } catch (RuntimeException ex) {
+                        sendError(requestMsg, String.format("failed to query %1$s: %2$s", address,
+                                ex.getMessage()), ex);
+                    }
+                }
+            });
+        }
+    }
 
-        private ReflectHandler() {
-            dbsHandlerEntries = new HashMap<>();
+    /**
+     * Queries the current <code>update_seq</code> of a database. Concurrent queries for the same database and
+     * credentials are served by a single request.
+     *
+     * @param db         the database
+     * @param user       the couchdb user
+     * @param passwd     the couchdb password
+     * @param seqHandler receives the update sequence or <code>null</code> if the query failed
+     */
+    private void getUpdateSeq(final String db, final String user, final String passwd,
+                              final Handler<String> seqHandler) {
+        final String key = String.format("%1$s:%2$s", db, authorizations.digest(user, passwd));
+        List<Handler<String>> seqHandlers = updateSeqRequests.get(key);
+        if (seqHandlers != null) {
+            seqHandlers.add(seqHandler);
+            return;
         }
+        seqHandlers = new ArrayList<>();
+        seqHandlers.add(seqHandler);
+        updateSeqRequests.put(key, seqHandlers);
+        final JsonObject dbInfoMsg = new JsonObject().putString("db", db);
+        if (user != null && passwd != null) {
+            dbInfoMsg.putString("user", user).putString("passwd", passwd);
+        }
+        eb.send(ADDRESS_SERVER, dbInfoMsg, new Handler<Message<JsonObject>>() {
+            @Override
+            public void handle(final Message<JsonObject> dbInfoReply) {
+                String updateSeq = null;
+                try {
+                    if ("ok".equals(dbInfoReply.body().getString("status"))) {
+                        final Object seq = dbInfoReply.body().getObject("body").getValue("update_seq");
+                        updateSeq = seq != null ? String.valueOf(seq) : null;
+                    }
+                } catch (RuntimeException ex) {
+                    logger.error(String.format("failed to query update_seq of db %1$s: %2$s", db,
+                            ex.getMessage()), ex);
+                }
+                for (final Handler<String> seqHandler : updateSeqRequests.remove(key)) {
+                    seqHandler.handle(updateSeq);
+                }
+            }
+        });
+    }
+
+    /**
+     * Performs a reflection of a database or all databases in a couchdb server. Finds all db/view urls and sends them
+     * to every verticle instance, which registers handlers for the urls.
+     */
+    private final class ReflectHandler implements Handler<Message<JsonObject>> {
 
         /**
          * Handles the <code>/_reflect</code> event.
@@ -422,12 +2322,9 @@ public class CouchdbVerticle extends BusModBase {
          */
         @Override
         public void handle(final Message<JsonObject> reflectServerMsg) {
-            this.reflectServerMsg = reflectServerMsg;
             final String db = reflectServerMsg.body() != null ? reflectServerMsg.body().getString("db") : null;
-            dbsProcessed = 0;
             if (db != null) {
-                dbsCount = 1;
-                registerDbHandlers(db);
+                new Reflection(reflectServerMsg, false).reflect(new JsonArray().addString(db));
             } else {
                 eb.send(ADDRESS_ALL_DBS, new JsonObject(), new Handler<Message<JsonObject>>() {
                     @Override
@@ -437,12 +2334,7 @@ public class CouchdbVerticle extends BusModBase {
                             if (logger.isDebugEnabled())
                                 logger.debug(String.format("found dbs: %1$s ", json.encode()));
                             if (!"error".equals(json.getString("status"))) {
-                                final JsonArray dbs = json.getArray("body");
-                                dbsCount = dbs.size();
-                                for (final Object dbObj : dbs) {
-                                    registerDbHandlers(dbObj.toString());
-                                }
-                                replyOnComplete();
+                                new Reflection(reflectServerMsg, true).reflect(json.getArray("body"));
                             } else {
                                 final String errMsg = String.format("failed to reflect couchdb server: %1$s",
                                         json.getString("message"));
@@ -456,64 +2348,130 @@ public class CouchdbVerticle extends BusModBase {
                 });
             }
         }
+    }
 
-        private void replyOnComplete() {
-            if (dbsProcessed == dbsCount) {
-                sendOK(reflectServerMsg, new JsonObject().putObject("body", new JsonObject().putNumber("count",
-                        dbsCount)));
-            }
-        }
-
-        private void registerDbHandlers(final String db) {
+    /**
+     * A single reflection run. Queries the design documents of the reflected databases with at most
+     * <code>reflectConcurrency</code> concurrent requests, collects their view urls and applies the result to all
+     * verticle instances:
+     * <code>
+     * {
+     * "prune": true/false; whether to unregister the handlers of databases not contained in the reflection,
+     * "dbs": { "dummy": { "views": [ "couchdb:/dummy/_design/dummy/_view/all" ] } }
+     * }
+     * </code>
+     * A database without <code>views</code> could not be queried for its design documents, its existing view
+     * handlers are kept. The progress of the run is published on {@link #ADDRESS_REFLECT_PROGRESS}.
+     */
+    private final class Reflection {
 
-            if (dbsHandlerEntries.containsKey(db)) {
-                for (final HandlerEntry dbHandlerEntry : dbsHandlerEntries.get(db)) {
-                    if (logger.isDebugEnabled())
-                        logger.debug(String.format("unregistering handler %1$s", dbHandlerEntry.getAddress()));
-                    eb.unregisterHandler(dbHandlerEntry.getAddress(), dbHandlerEntry.getHandler());
-                }
-            }
-            final Set<HandlerEntry> dbHandlerEntries = new HashSet<>();
-            dbsHandlerEntries.put(db, dbHandlerEntries);
+        private final Message<JsonObject> reflectServerMsg;
+        private final boolean prune;
+        private final JsonObject dbs = new JsonObject();
+        private final JsonArray failedDbs = new JsonArray();
+        private final long started = System.currentTimeMillis();
+        private JsonArray dbNames;
+        private int dbsQueried;
+        private int dbsProcessed;
+        private int instancesPending;
 
-            // /db/doc handler
-            final String dbAddress = String.format(ADDRESS_DB, db);
-            dbHandlerEntries.add(new HandlerEntry(dbAddress, new CouchdbRequestHandler(dbAddress)));
+        private Reflection(final Message<JsonObject> reflectServerMsg, final boolean prune) {
+            this.reflectServerMsg = reflectServerMsg;
+            this.prune = prune;
+        }
 
-            // /db/_all_docs handler
-            final String allDocsAddress = String.format(ADDRESS_ALL_DOCS, db);
-            dbHandlerEntries.add(new HandlerEntry(allDocsAddress, new CouchdbRequestHandler(allDocsAddress)));
+        private void reflect(final JsonArray dbNames) {
+            this.dbNames = dbNames;
+            if (dbNames.size() == 0) {
+                apply();
+                return;
+            }
+            for (int i = 0; i < reflectConcurrency && dbsQueried < dbNames.size(); i++) {
+                queryNextViews();
+            }
+        }
 
-            // /db/_bulk_docs handler
-            final String bulkDocsAddress = String.format(ADDRESS_BULK_DOCS, db);
-            dbHandlerEntries.add(new HandlerEntry(bulkDocsAddress, new CouchdbRequestHandler(bulkDocsAddress)));
+        private void queryNextViews() {
+            final String db = dbNames.get(dbsQueried++).toString();
+            // get design docs and views
+            final JsonObject designDocsMessage = new JsonObject().putString("db", db).putString("id", "_all_docs")
+                    .putArray("params", new JsonArray().add(new JsonObject().putString("startkey", "_design"))
+                            .add(new JsonObject().putString("endkey", "_e"))
+                            .add(new JsonObject().putBoolean("include_docs", true)));
+            eb.sendWithTimeout(ADDRESS_SERVER, designDocsMessage, reflectTimeout, new QueryDesignDocsHandler(db));
+        }
 
-            for (final HandlerEntry dbHandlerEntry : dbsHandlerEntries.get(db)) {
-                if (logger.isDebugEnabled())
-                    logger.debug(String.format("registering handler %1$s", dbHandlerEntry.getAddress()));
-                eb.registerHandler(dbHandlerEntry.getAddress(), dbHandlerEntry.getHandler());
+        private void processed(final String db, final boolean failed) {
+            dbsProcessed++;
+            if (failed) {
+                failedDbs.addString(db);
             }
+            eb.publish(ADDRESS_REFLECT_PROGRESS, new JsonObject().putString("db", db).putBoolean("failed", failed)
+                    .putNumber("processed", dbsProcessed).putNumber("count", dbNames.size())
+                    .putNumber("failedCount", failedDbs.size())
+                    .putNumber("time", System.currentTimeMillis() - started));
+            if (dbsQueried < dbNames.size()) {
+                queryNextViews();
+            } else if (dbsProcessed == dbNames.size()) {
+                apply();
+            }
+        }
 
-            // TODO register missing db/doc API handlers
-
-            // /db/_design/docid/_view/viewname handlers
-            registerViewHandlers(db);
+        private void apply() {
+            final Set<String> instanceAddresses = new HashSet<>();
+            for (final String id : vertx.sharedData().<String>getSet(INSTANCES)) {
+                instanceAddresses.add(instanceAddress(ADDRESS_REFLECT, id));
+            }
+            final JsonObject reflection = new JsonObject().putBoolean("prune", prune).putObject("dbs", dbs);
+            final JsonObject result = new JsonObject().putNumber("count", dbNames.size())
+                    .putNumber("failedCount", failedDbs.size()).putArray("failedDbs", failedDbs)
+                    .putNumber("instances", 0).putNumber("registered", 0).putNumber("unregistered", 0);
+            final List<String> errors = new ArrayList<>();
+            instancesPending = instanceAddresses.size();
+            for (final String instanceAddress : instanceAddresses) {
+                eb.sendWithTimeout(instanceAddress, reflection, REFLECT_APPLY_TIMEOUT,
+                        new Handler<AsyncResult<Message<JsonObject>>>() {
+                            @Override
+                            public void handle(final AsyncResult<Message<JsonObject>> applyResult) {
+                                if (applyResult.failed()) {
+                                    errors.add(String.format("%1$s: %2$s", instanceAddress,
+                                            applyResult.cause().getMessage()));
+                                } else if ("error".equals(applyResult.result().body().getString("status"))) {
+                                    errors.add(String.format("%1$s: %2$s", instanceAddress,
+                                            applyResult.result().body().getString("message")));
+                                } else {
+                                    final JsonObject applied = applyResult.result().body().getObject("body");
+                                    result.putNumber("instances", result.getInteger("instances") + 1)
+                                            .putNumber("registered", result.getInteger("registered")
+                                                    + applied.getInteger("registered"))
+                                            .putNumber("unregistered", result.getInteger("unregistered")
+                                                    + applied.getInteger("unregistered"));
+                                }
+                                if (--instancesPending == 0) {
+                                    complete(result, errors);
+                                }
+                            }
+                        });
+            }
         }
 
-        private void registerViewHandlers(final String db) {
-            // get design docs and views
-            final String allDocsAddress = String.format(ADDRESS_ALL_DOCS, db);
-            final JsonObject designDocsMessage = new JsonObject().putArray("params",
-                    new JsonArray().add(new JsonObject().putString("startkey", "_design")).add(new JsonObject()
-                            .putString("endkey", "_e")).add(new JsonObject().putBoolean("include_docs", true))
-            );
-            eb.send(allDocsAddress, designDocsMessage, new QueryDesignDocsHandler(db));
+        private void complete(final JsonObject result, final List<String> errors) {
+            final long time = System.currentTimeMillis() - started;
+            result.putNumber("time", time);
+            eb.publish(ADDRESS_REFLECT_PROGRESS, new JsonObject().putBoolean("end", true)
+                    .putNumber("processed", dbsProcessed).putNumber("count", dbNames.size())
+                    .putNumber("failedCount", failedDbs.size()).putNumber("time", time));
+            if (errors.isEmpty()) {
+                sendOK(reflectServerMsg, new JsonObject().putObject("body", result));
+            } else {
+                sendError(reflectServerMsg, String.format("failed to apply reflection on instances: %1$s", errors));
+            }
         }
 
         /**
-         * A handler to register handler addresses on the event bus for all design documents views found in a database.
+         * A handler collecting the view addresses of all design documents found in a database.
          */
-        private final class QueryDesignDocsHandler implements Handler<Message<JsonObject>> {
+        private final class QueryDesignDocsHandler implements Handler<AsyncResult<Message<JsonObject>>> {
 
             private final String db;
 
@@ -527,12 +2485,19 @@ public class CouchdbVerticle extends BusModBase {
              * @param designDocsResult design docs for a database returned from couchdb.
              */
             @Override
-            public void handle(final Message<JsonObject> designDocsResult) {
+            public void handle(final AsyncResult<Message<JsonObject>> designDocsResult) {
+                final JsonObject dbReflection = new JsonObject();
+                dbs.putObject(db, dbReflection);
+                boolean failed = true;
                 try {
-                    final JsonObject json = designDocsResult.body();
-                    if (logger.isDebugEnabled())
-                        logger.debug(String.format("design doc: %1$s", json.encodePrettily()));
-                    if (!"error".equals(json.getString("status"))) {
+                    if (designDocsResult.failed()) {
+                        logger.error(String.format("failed to query design docs for db %1$s: %2$s",
+                                db, designDocsResult.cause().getMessage()));
+                    } else if (!"error".equals(designDocsResult.result().body().getString("status"))) {
+                        final JsonObject json = designDocsResult.result().body();
+                        if (logger.isDebugEnabled())
+                            logger.debug(String.format("design doc: %1$s", json.encodePrettily()));
+                        final JsonArray viewAddresses = new JsonArray();
                         final JsonArray rows = json.getObject("body").getArray("rows");
                         for (final Object row : rows) {
                             final JsonObject designDoc = ((JsonObject) row).getObject("doc");
@@ -541,27 +2506,195 @@ public class CouchdbVerticle extends BusModBase {
                                 for (final String viewName : views.getFieldNames()) {
                                     if (logger.isDebugEnabled())
                                         logger.debug(String.format("view name: %1$s", viewName));
-                                    final String viewURI = String.format(ADDRESS_VIEW, db,
-                                            ((JsonObject) row).getString("id").split("/")[1], viewName);
-
-                                    // /db/_design/docid/_view/viewname handler
-                                    if (logger.isDebugEnabled())
-                                        logger.debug(String.format("registering handler %1$s", viewURI));
-                                    final Handler<Message<JsonObject>> viewHandler = new CouchdbRequestHandler(viewURI);
-                                    dbsHandlerEntries.get(db).add(new HandlerEntry(viewURI, viewHandler));
-                                    eb.registerHandler(viewURI, viewHandler);
+                                    viewAddresses.addString(String.format(ADDRESS_VIEW, db,
+                                            ((JsonObject) row).getString("id").split("/")[1], viewName));
                                 }
                             }
                         }
+                        dbReflection.putArray("views", viewAddresses);
+                        failed = false;
                     } else {
                         logger.error(String.format("failed to query design docs for db %1$s: %2$s",
-                                db, json.getString("message")));
+                                db, designDocsResult.result().body().getString("message")));
                     }
                 } catch (RuntimeException ex) {
-                    logger.error(String.format("failed to query design docs for db %1$s", ex));
+                    logger.error(String.format("failed to query design docs for db %1$s: %2$s", db, ex));
+                }
+                processed(db, failed);
+            }
+        }
+    }
+
+    /**
+     * Applies a reflection to the route table and the handlers of this verticle instance. Compares the reflected
+     * databases and views with the routes and only registers new and unregisters removed addresses.
+     */
+    private final class ApplyReflectionHandler implements Handler<Message<JsonObject>> {
+
+        /**
+         * Handles a reflection.
+         *
+         * @param reflectionMsg a reflection (see {@link Reflection})
+         */
+        @Override
+        public void handle(final Message<JsonObject> reflectionMsg) {
+            try {
+                final JsonObject dbs = reflectionMsg.body().getObject("dbs");
+                int registered = 0;
+                int unregistered = 0;
+                if (reflectionMsg.body().getBoolean("prune", false)) {
+                    final Iterator<Map.Entry<String, Map<String, HandlerEntry>>> it =
+                            routes.entrySet().iterator();
+                    while (it.hasNext()) {
+                        final Map.Entry<String, Map<String, HandlerEntry>> dbHandlerEntries = it.next();
+                        if (!dbs.containsField(dbHandlerEntries.getKey())) {
+                            unregistered += unregisterAll(dbHandlerEntries.getValue());
+                            docCache.removeAll(dbHandlerEntries.getKey() + "/");
+                            viewCache.removeAll(String.format(ADDRESS_DB, dbHandlerEntries.getKey()) + "/");
+                            dbsLastUsed.remove(dbHandlerEntries.getKey());
+                            it.remove();
+                        }
+                    }
+                }
+                for (final String db : dbs.getFieldNames()) {
+                    Map<String, HandlerEntry> dbHandlerEntries = routes.get(db);
+                    if (dbHandlerEntries == null) {
+                        dbHandlerEntries = new HashMap<>();
+                        routes.put(db, dbHandlerEntries);
+                        dbsLastUsed.put(db, System.currentTimeMillis());
+                        for (final HandlerEntry dbHandlerEntry : createDbHandlerEntries(db)) {
+                            register(dbHandlerEntries, dbHandlerEntry);
+                            registered++;
+                        }
+                    }
+                    final JsonArray views = dbs.getObject(db).getArray("views");
+                    if (views == null) {
+                        continue;
+                    }
+                    final Set<String> viewAddresses = new HashSet<>();
+                    for (final Object view : views) {
+                        viewAddresses.add(view.toString());
+                    }
+                    final Iterator<HandlerEntry> it = dbHandlerEntries.values().iterator();
+                    while (it.hasNext()) {
+                        final HandlerEntry dbHandlerEntry = it.next();
+                        if (dbHandlerEntry.isView() && !viewAddresses.contains(dbHandlerEntry.getAddress())) {
+                            unregister(dbHandlerEntry);
+                            unregistered++;
+                            it.remove();
+                        }
+                    }
+                    for (final String viewAddress : viewAddresses) {
+                        if (!dbHandlerEntries.containsKey(viewAddress)) {
+                            // /db/_design/docid/_view/viewname handler
+                            final Handler<Message<JsonObject>> viewHandler = viewCacheDbs.contains(db)
+                                    ? new ViewCacheHandler(db, viewAddress, new CouchdbRequestHandler(viewAddress,
+                                    db, true)) : new CouchdbRequestHandler(viewAddress, db, true);
+                            register(dbHandlerEntries, new HandlerEntry(viewAddress, touching(db, viewHandler),
+                                    true));
+                            registered++;
+                        }
+                    }
+                }
+                sendOK(reflectionMsg, new JsonObject().putObject("body", new JsonObject()
+                        .putNumber("registered", registered).putNumber("unregistered", unregistered)));
+            } catch (RuntimeException ex) {
+                sendError(reflectionMsg, String.format("failed to apply reflection: %1$s", ex.getMessage()), ex);
+            }
+        }
+
+        private List<HandlerEntry> createDbHandlerEntries(final String db) {
+            final List<HandlerEntry> dbHandlerEntries = new ArrayList<>();
+
+            // the wrapping handlers call the request handlers directly, the addresses might not be registered
+            final String allDocsAddress = String.format(ADDRESS_ALL_DOCS, db);
+            final CouchdbRequestHandler allDocsHandler = new CouchdbRequestHandler(allDocsAddress, db, true);
+            final String bulkDocsAddress = String.format(ADDRESS_BULK_DOCS, db);
+            final CouchdbRequestHandler bulkDocsHandler = new CouchdbRequestHandler(bulkDocsAddress, db, false);
+
+            // /db/doc handler
+            final String dbAddress = String.format(ADDRESS_DB, db);
+            final CouchdbRequestHandler dbRequestHandler = new CouchdbRequestHandler(dbAddress, db, false);
+            Handler<Message<JsonObject>> dbHandler = dbRequestHandler;
+            if (readBatchDbs.contains(db)) {
+                dbHandler = new ReadBatchHandler(db, dbHandler, allDocsHandler);
+            }
+            if (docCacheDbs.contains(db)) {
+                dbHandler = new DocCacheHandler(db, dbHandler, dbRequestHandler);
+            }
+            if (writeBatchDbs.contains(db)) {
+                dbHandler = new WriteBatchHandler(db, dbHandler, bulkDocsHandler);
+            }
+            dbHandlerEntries.add(new HandlerEntry(dbAddress, touching(db, dbHandler), false));
+
+            // /db/_all_docs handler
+            dbHandlerEntries.add(new HandlerEntry(allDocsAddress, touching(db, allDocsHandler), false));
+
+            // /db/_bulk_docs handler
+            dbHandlerEntries.add(new HandlerEntry(bulkDocsAddress, touching(db, bulkDocsHandler), false));
+
+            // TODO register missing db/doc API handlers
+
+            return dbHandlerEntries;
+        }
+
+        private void register(final Map<String, HandlerEntry> dbHandlerEntries, final HandlerEntry dbHandlerEntry) {
+            if (registerDbAddresses) {
+                if (logger.isDebugEnabled())
+                    logger.debug(String.format("registering handler %1$s", dbHandlerEntry.getAddress()));
+                eb.registerHandler(dbHandlerEntry.getAddress(), dbHandlerEntry.getHandler());
+            }
+            dbHandlerEntries.put(dbHandlerEntry.getAddress(), dbHandlerEntry);
+        }
+
+        /**
+         * Unregisters the handlers of all databases, that have not been used since a point in time.
+         *
+         * @param usedSince milliseconds since the epoch
+         */
+        private void expire(final long usedSince) {
+            final Iterator<Map.Entry<String, Long>> it = dbsLastUsed.entrySet().iterator();
+            while (it.hasNext()) {
+                final Map.Entry<String, Long> dbLastUsed = it.next();
+                if (dbLastUsed.getValue() < usedSince) {
+                    if (logger.isDebugEnabled())
+                        logger.debug(String.format("unregistering idle db %1$s", dbLastUsed.getKey()));
+                    final Map<String, HandlerEntry> dbHandlerEntries = routes.remove(dbLastUsed.getKey());
+                    if (dbHandlerEntries != null) {
+                        unregisterAll(dbHandlerEntries);
+                    }
+                    docCache.removeAll(dbLastUsed.getKey() + "/");
+                    viewCache.removeAll(String.format(ADDRESS_DB, dbLastUsed.getKey()) + "/");
+                    it.remove();
+                }
+            }
+        }
+
+        private Handler<Message<JsonObject>> touching(final String db, final Handler<Message<JsonObject>> handler) {
+            if (!lazyDbHandlers) {
+                return handler;
+            }
+            return new Handler<Message<JsonObject>>() {
+                @Override
+                public void handle(final Message<JsonObject> requestMsg) {
+                    dbsLastUsed.put(db, System.currentTimeMillis());
+                    handler.handle(requestMsg);
                 }
-                dbsProcessed++;
-                replyOnComplete();
+            };
+        }
+
+        private int unregisterAll(final Map<String, HandlerEntry> dbHandlerEntries) {
+            for (final HandlerEntry dbHandlerEntry : dbHandlerEntries.values()) {
+                unregister(dbHandlerEntry);
+            }
+            return dbHandlerEntries.size();
+        }
+
+        private void unregister(final HandlerEntry dbHandlerEntry) {
+            if (registerDbAddresses) {
+                if (logger.isDebugEnabled())
+                    logger.debug(String.format("unregistering handler %1$s", dbHandlerEntry.getAddress()));
+                eb.unregisterHandler(dbHandlerEntry.getAddress(), dbHandlerEntry.getHandler());
             }
         }
 
@@ -571,10 +2704,13 @@ public class CouchdbVerticle extends BusModBase {
         private final class HandlerEntry {
             private final String address;
             private final Handler<Message<JsonObject>> handler;
+            private final boolean view;
 
-            private HandlerEntry(final String address, final Handler<Message<JsonObject>> handler) {
+            private HandlerEntry(final String address, final Handler<Message<JsonObject>> handler,
+                                 final boolean view) {
                 this.address = address;
                 this.handler = handler;
+                this.view = view;
             }
 
             /**
@@ -594,6 +2730,187 @@ public class CouchdbVerticle extends BusModBase {
             public Handler<Message<JsonObject>> getHandler() {
                 return handler;
             }
+
+            /**
+             * Returns whether the handler serves a view.
+             *
+             * @return <code>true</code> for view handlers
+             */
+            public boolean isView() {
+                return view;
+            }
+        }
+    }
+
+    /**
+     * Routes requests with a structured <code>path</code> to the handlers of the reflected databases and views. The
+     * handlers are looked up in the route table of the verticle instance, so routed databases and views do not need
+     * event bus registrations of their own.
+     */
+    private final class RouteHandler implements Handler<Message<JsonObject>> {
+
+        private final CouchdbRequestHandler attachmentHandler = new CouchdbRequestHandler(ADDRESS_SERVER);
+        private final Map<String, List<Message<JsonObject>>> lazyReflections = new HashMap<>();
+
+        /**
+         * Handles a routed request.
+         *
+         * @param requestMsg the request message. E.g.:
+         *                   <code>
+         *                   {
+         *                   "path": {"db": "dummy", "design": "dummy", "view": "all"},
+         *                   "params": [{"reduce": false}]
+         *                   }
+         *                   </code>
+         */
+        @Override
+        public void handle(final Message<JsonObject> requestMsg) {
+            route(requestMsg, lazyDbHandlers);
+        }
+
+        private void route(final Message<JsonObject> requestMsg, final boolean reflectOnMiss) {
+            final JsonObject json = requestMsg.body();
+            final JsonObject path = json.getObject("path");
+            final String db = path != null ? path.getString("db") : null;
+            final Map<String, ApplyReflectionHandler.HandlerEntry> dbRoutes = db != null ? routes.get(db) : null;
+            if (dbRoutes == null && db != null && reflectOnMiss) {
+                reflectLazily(db, requestMsg);
+                return;
+            }
+            if (dbRoutes == null) {
+                sendError(requestMsg, String.format("no route for path %1$s", path != null ? path.encode() : null));
+                return;
+            }
+            final String doc = path.getString("doc");
+            final String design = path.getString("design");
+            final String view = path.getString("view");
+            final String attachment = path.getString("attachment");
+            final String routeAddress;
+            if (view != null) {
+                routeAddress = String.format(ADDRESS_VIEW, db, design, view);
+            } else if (attachment != null) {
+                // attachments bypass the batching and caching document handlers
+                json.putString("db", db).putString("id", design != null ? "_design/" + design : doc);
+                attachmentHandler.handle(requestMsg);
+                return;
+            } else if ("_all_docs".equals(doc)) {
+                routeAddress = String.format(ADDRESS_ALL_DOCS, db);
+            } else if ("_bulk_docs".equals(doc)) {
+                routeAddress = String.format(ADDRESS_BULK_DOCS, db);
+            } else {
+                routeAddress = String.format(ADDRESS_DB, db);
+                if (design != null) {
+                    json.putString("id", "_design/" + design);
+                } else if (doc != null) {
+                    json.putString("id", doc);
+                }
+            }
+            final ApplyReflectionHandler.HandlerEntry route = dbRoutes.get(routeAddress);
+            if (route == null) {
+                sendError(requestMsg, String.format("no route for path %1$s", path.encode()));
+                return;
+            }
+            if (logger.isDebugEnabled())
+                logger.debug(String.format("routing %1$s to %2$s", path.encode(), routeAddress));
+            route.getHandler().handle(requestMsg);
+        }
+
+        /**
+         * Reflects a database on its first use and routes all requests, that arrived in the meantime. Requests for
+         * databases, that do not exist, fail without a reflection.
+         */
+        private void reflectLazily(final String db, final Message<JsonObject> requestMsg) {
+            List<Message<JsonObject>> waitingMsgs = lazyReflections.get(db);
+            if (waitingMsgs != null) {
+                waitingMsgs.add(requestMsg);
+                return;
+            }
+            waitingMsgs = new ArrayList<>();
+            waitingMsgs.add(requestMsg);
+            lazyReflections.put(db, waitingMsgs);
+            if (logger.isDebugEnabled())
+                logger.debug(String.format("reflecting db %1$s on first use", db));
+            eb.send(ADDRESS_SERVER, new JsonObject().putString("db", db), new Handler<Message<JsonObject>>() {
+                @Override
+                public void handle(final Message<JsonObject> dbInfoReply) {
+                    if ("error".equals(dbInfoReply.body().getString("status"))) {
+                        completeLazily(db, dbInfoReply.body().getString("message"));
+                        return;
+                    }
+                    eb.send(ADDRESS_REFLECT, new JsonObject().putString("db", db),
+                            new Handler<Message<JsonObject>>() {
+                                @Override
+                                public void handle(final Message<JsonObject> reflectReply) {
+                                    completeLazily(db, "error".equals(reflectReply.body().getString("status"))
+                                            ? reflectReply.body().getString("message") : null);
+                                }
+                            });
+                }
+            });
+        }
+
+        private void completeLazily(final String db, final String errMsg) {
+            for (final Message<JsonObject> waitingMsg : lazyReflections.remove(db)) {
+                if (errMsg != null) {
+                    sendError(waitingMsg, String.format("failed to reflect db %1$s: %2$s", db, errMsg));
+                } else {
+                    route(waitingMsg, false);
+                }
+            }
+        }
+    }
+
+    /**
+     * Collects the request metrics of all verticle instances and replies the merged metrics. A message with
+     * <code>"local": true</code> replies the metrics of the receiving instance only.
+     */
+    private final class MetricsHandler implements Handler<Message<JsonObject>> {
+
+        /**
+         * Handles the <code>/_metrics</code> event.
+         *
+         * @param metricsMsg a JsonObject
+         */
+        @Override
+        public void handle(final Message<JsonObject> metricsMsg) {
+            if (metricsMsg.body() != null && metricsMsg.body().getBoolean("local", false)) {
+                sendOK(metricsMsg, new JsonObject().putObject("body", metrics.toJson()));
+                return;
+            }
+            final Set<String> instanceIds = new HashSet<>(vertx.sharedData().<String>getSet(INSTANCES));
+            final MetricsCollector collector = new MetricsCollector(metricsMsg, instanceIds.size());
+            for (final String id : instanceIds) {
+                eb.sendWithTimeout(instanceAddress(ADDRESS_METRICS, id), new JsonObject(), METRICS_TIMEOUT,
+                        collector);
+            }
+        }
+
+        /**
+         * Merges the metrics replied by the instances and replies the result, when all instances have replied.
+         */
+        private final class MetricsCollector implements Handler<AsyncResult<Message<JsonObject>>> {
+
+            private final Message<JsonObject> metricsMsg;
+            private final RequestMetrics merged = new RequestMetrics(0);
+            private int pending;
+
+            private MetricsCollector(final Message<JsonObject> metricsMsg, final int instances) {
+                this.metricsMsg = metricsMsg;
+                this.pending = instances;
+            }
+
+            @Override
+            public void handle(final AsyncResult<Message<JsonObject>> metricsResult) {
+                if (metricsResult.succeeded()) {
+                    merged.merge(metricsResult.result().body().getObject("body"));
+                } else {
+                    logger.warn(String.format("failed to collect metrics of an instance: %1$s",
+                            metricsResult.cause().getMessage()));
+                }
+                if (--pending == 0) {
+                    sendOK(metricsMsg, new JsonObject().putObject("body", merged.toJson()));
+                }
+            }
         }
     }
 }
@@ -0,0 +1,387 @@
+package com.dreikraft.vertx.couchdb;
+
+import org.vertx.java.core.AsyncResult;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.Vertx;
+import org.vertx.java.core.buffer.Buffer;
+import org.vertx.java.core.eventbus.Message;
+import org.vertx.java.core.file.AsyncFile;
+import org.vertx.java.core.json.DecodeException;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+import org.vertx.java.core.logging.Logger;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.UUID;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Exports the documents of a database into a local NDJSON file (one document per line). The database is read in
+ * pages of <code>pageSize</code> documents from <code>_all_docs?include_docs=true</code>; every page is requested with
+ * one document more than it holds, whose id is the <code>startkey</code> of the next page, so no page needs a
+ * <code>skip</code>. The next page is fetched, while the current one is written, and only these two pages are held in
+ * memory. With <code>gzip</code> every page is written as a gzip member of its own, the file is a valid multi member
+ * gzip file at every page boundary.
+ * <p>
+ * After every written page the file is flushed and a checkpoint (<code>&lt;file&gt;.checkpoint</code>) with the
+ * startkey of the next page and the size of the file is written. The checkpoint is written to
+ * <code>&lt;file&gt;.checkpoint.tmp</code> and then moved over the previous one, so it is never partially written. An
+ * interrupted export started again with <code>resume</code> truncates the file to the size of the checkpoint and
+ * continues from its startkey. The checkpoint is deleted, when the export is done.
+ * <p>
+ * Instances are not thread safe and must only be used from the event loop of the owning verticle.
+ *
+ * @author jansolo
+ */
+final class DatabaseExport {
+
+    private final Vertx vertx;
+    private final Logger logger;
+    private final Message<JsonObject> exportMsg;
+    private final String progressAddress;
+    private final String db;
+    private final String file;
+    private final String checkpointFile;
+    private final String checkpointTmpFile;
+    private final boolean gzip;
+    private final int pageSize;
+    private final JsonObject pageMsg;
+    private final String exportId = UUID.randomUUID().toString();
+    private final long started = System.currentTimeMillis();
+
+    private AsyncFile asyncFile;
+    private long docs;
+    private long bytes;
+    private boolean resumed;
+    private boolean writing;
+    private Buffer pendingPage;
+    private boolean done;
+
+    /**
+     * Creates the export.
+     *
+     * @param vertx           the vert.x instance
+     * @param logger          the logger of the owning verticle
+     * @param exportMsg       the export request, replied when the export is done
+     * @param progressAddress the address publishing the progress
+     * @param db              the database
+     * @param file            the path of the file
+     * @param gzip            whether to gzip the file
+     * @param pageSize        the number of documents per page
+     * @param pageMsg         the request parameters, which are passed on the page requests
+     *                        (<code>user</code>, <code>passwd</code>, <code>params</code>, <code>timeout</code>,
+     *                        <code>retries</code>)
+     */
+    DatabaseExport(final Vertx vertx, final Logger logger, final Message<JsonObject> exportMsg,
+                   final String progressAddress, final String db, final String file, final boolean gzip,
+                   final int pageSize, final JsonObject pageMsg) {
+        this.vertx = vertx;
+        this.logger = logger;
+        this.exportMsg = exportMsg;
+        this.progressAddress = progressAddress;
+        this.db = db;
+        this.file = file;
+        this.checkpointFile = file + ".checkpoint";
+        this.checkpointTmpFile = checkpointFile + ".tmp";
+        this.gzip = gzip;
+        this.pageSize = Math.max(1, pageSize);
+        this.pageMsg = pageMsg;
+    }
+
+    /**
+     * Starts the export, from the checkpoint of a previous export, if <code>resume</code> is set and the checkpoint
+     * exists.
+     *
+     * @param resume whether to resume an interrupted export
+     */
+    void start(final boolean resume) {
+        // an export interrupted while moving the checkpoint only left the temporary checkpoint
+        final String resumeFile = !resume ? null : vertx.fileSystem().existsSync(checkpointFile) ? checkpointFile
+                : vertx.fileSystem().existsSync(checkpointTmpFile) ? checkpointTmpFile : null;
+        if (resumeFile != null) {
+            vertx.fileSystem().readFile(resumeFile, new Handler<AsyncResult<Buffer>>() {
+                @Override
+                public void handle(final AsyncResult<Buffer> readResult) {
+                    if (readResult.failed()) {
+                        fail(String.format("failed to read %1$s: %2$s", resumeFile,
+                                readResult.cause().getMessage()));
+                        return;
+                    }
+                    final JsonObject checkpoint;
+                    try {
+                        checkpoint = new JsonObject(readResult.result().toString("UTF-8"));
+                    } catch (DecodeException ex) {
+                        if (resumeFile.equals(checkpointTmpFile)) {
+                            // the first checkpoint has been interrupted, no page has been checkpointed yet
+                            open(0, null);
+                        } else {
+                            fail(String.format("failed to parse %1$s: %2$s", resumeFile, ex.getMessage()));
+                        }
+                        return;
+                    }
+                    if (!db.equals(checkpoint.getString("db")) || gzip != checkpoint.getBoolean("gzip", false)) {
+                        fail(String.format("checkpoint %1$s belongs to an export of %2$s (gzip: %3$b)",
+                                resumeFile, checkpoint.getString("db"), checkpoint.getBoolean("gzip", false)));
+                        return;
+                    }
+                    resumed = true;
+                    docs = checkpoint.getLong("docs", 0);
+                    open(checkpoint.getLong("bytes", 0), checkpoint.getString("next"));
+                }
+            });
+        } else {
+            open(0, null);
+        }
+    }
+
+    private void open(final long size, final String startkey) {
+        logger.info(String.format("exporting %1$s into %2$s from %3$s (%4$s)", db, file,
+                startkey != null ? startkey : "the start", exportId));
+        bytes = size;
+        vertx.fileSystem().open(file, null, false, true, true, new Handler<AsyncResult<AsyncFile>>() {
+            @Override
+            public void handle(final AsyncResult<AsyncFile> openResult) {
+                if (openResult.failed()) {
+                    fail(String.format("failed to open %1$s: %2$s", file, openResult.cause().getMessage()));
+                    return;
+                }
+                asyncFile = openResult.result();
+                // drops a partially written page of an interrupted export
+                vertx.fileSystem().truncate(file, size, new Handler<AsyncResult<Void>>() {
+                    @Override
+                    public void handle(final AsyncResult<Void> truncateResult) {
+                        if (truncateResult.failed()) {
+                            fail(String.format("failed to truncate %1$s: %2$s", file,
+                                    truncateResult.cause().getMessage()));
+                            return;
+                        }
+                        fetch(startkey);
+                    }
+                });
+            }
+        });
+    }
+
+    private void fetch(final String startkey) {
+        final JsonArray params = new JsonArray().addObject(new JsonObject().putBoolean("include_docs", true))
+                .addObject(new JsonObject().putNumber("limit", pageSize + 1));
+        if (startkey != null) {
+            params.addObject(new JsonObject().putString("startkey", startkey));
+        }
+        final JsonArray extraParams = pageMsg.getArray("params");
+        if (extraParams != null) {
+            for (final Object param : extraParams) {
+                params.addObject((JsonObject) param);
+            }
+        }
+        vertx.eventBus().send(CouchdbVerticle.ADDRESS_SERVER, pageMsg.copy().putString("db", db)
+                .putString("id", "_all_docs").putArray("params", params).putBoolean("raw", true),
+                new Handler<Message<Buffer>>() {
+                    @Override
+                    public void handle(final Message<Buffer> pageReply) {
+                        if (writing) {
+                            pendingPage = pageReply.body();
+                        } else {
+                            write(pageReply.body());
+                        }
+                    }
+                });
+    }
+
+    /**
+     * Writes the documents of a page and fetches the next page meanwhile.
+     */
+    private void write(final Buffer reply) {
+        if (done) {
+            return;
+        }
+        final JsonObject header = RawReply.getHeader(reply);
+        if (!"ok".equals(header.getString("status"))) {
+            fail(String.format("failed to query %1$s/_all_docs: %2$s", db, header.getString("message")));
+            return;
+        }
+        final Buffer page = new Buffer();
+        final PageRowHandler rowHandler = new PageRowHandler(page);
+        try {
+            new RowStreamParser(rowHandler).feed(RawReply.getBody(reply));
+        } catch (RuntimeException ex) {
+            fail(String.format("failed to parse %1$s/_all_docs: %2$s", db, ex.getMessage()));
+            return;
+        }
+        final String next = rowHandler.next;
+        if (next != null) {
+            fetch(next);
+        }
+        final Buffer data;
+        try {
+            data = gzip && page.length() > 0 ? gzip(page) : page;
+        } catch (IOException ex) {
+            fail(String.format("failed to compress a page: %1$s", ex.getMessage()));
+            return;
+        }
+        writing = true;
+        asyncFile.write(data, bytes, new Handler<AsyncResult<Void>>() {
+            @Override
+            public void handle(final AsyncResult<Void> writeResult) {
+                if (writeResult.failed()) {
+                    fail(String.format("failed to write %1$s: %2$s", file, writeResult.cause().getMessage()));
+                    return;
+                }
+                bytes += data.length();
+                docs += rowHandler.count;
+                asyncFile.flush(new Handler<AsyncResult<Void>>() {
+                    @Override
+                    public void handle(final AsyncResult<Void> flushResult) {
+                        if (flushResult.failed()) {
+                            fail(String.format("failed to flush %1$s: %2$s", file,
+                                    flushResult.cause().getMessage()));
+                            return;
+                        }
+                        written(next);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Checkpoints a written page and continues with the next one.
+     */
+    private void written(final String next) {
+        if (done) {
+            return;
+        }
+        final JsonObject progress = getProgress().putString("next", next);
+        if (next == null) {
+            complete();
+            return;
+        }
+        final JsonObject checkpoint = new JsonObject().putString("db", db).putString("file", file)
+                .putBoolean("gzip", gzip).putString("next", next).putNumber("docs", docs).putNumber("bytes", bytes);
+        vertx.fileSystem().writeFile(checkpointTmpFile, new Buffer(checkpoint.encode(), "UTF-8"),
+                new Handler<AsyncResult<Void>>() {
+                    @Override
+                    public void handle(final AsyncResult<Void> checkpointResult) {
+                        if (checkpointResult.failed()) {
+                            fail(String.format("failed to write %1$s: %2$s", checkpointTmpFile,
+                                    checkpointResult.cause().getMessage()));
+                            return;
+                        }
+                        // vert.x does not move over an existing file, so the previous checkpoint is deleted first
+                        if (vertx.fileSystem().existsSync(checkpointFile)) {
+                            vertx.fileSystem().delete(checkpointFile, new Handler<AsyncResult<Void>>() {
+                                @Override
+                                public void handle(final AsyncResult<Void> deleteResult) {
+                                    if (deleteResult.failed()) {
+                                        fail(String.format("failed to delete %1$s: %2$s", checkpointFile,
+                                                deleteResult.cause().getMessage()));
+                                        return;
+                                    }
+                                    moveCheckpoint(progress);
+                                }
+                            });
+                        } else {
+                            moveCheckpoint(progress);
+                        }
+                    }
+                });
+    }
+
+    private void moveCheckpoint(final JsonObject progress) {
+        vertx.fileSystem().move(checkpointTmpFile, checkpointFile, new Handler<AsyncResult<Void>>() {
+            @Override
+            public void handle(final AsyncResult<Void> moveResult) {
+                if (moveResult.failed()) {
+                    fail(String.format("failed to move %1$s to %2$s: %3$s", checkpointTmpFile, checkpointFile,
+                            moveResult.cause().getMessage()));
+                    return;
+                }
+                vertx.eventBus().publish(progressAddress, progress);
+                writing = false;
+                if (pendingPage != null) {
+                    final Buffer page = pendingPage;
+                    pendingPage = null;
+                    write(page);
+                }
+            }
+        });
+    }
+
+    private static Buffer gzip(final Buffer page) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(page.length() / 4 + 64);
+        try (GZIPOutputStream gzipOut = new GZIPOutputStream(out)) {
+            gzipOut.write(page.getBytes());
+        }
+        return new Buffer(out.toByteArray());
+    }
+
+    private JsonObject getProgress() {
+        return new JsonObject().putString("export", exportId).putString("db", db).putString("file", file)
+                .putBoolean("gzip", gzip).putBoolean("resumed", resumed).putNumber("docs", docs)
+                .putNumber("bytes", bytes).putNumber("time", System.currentTimeMillis() - started);
+    }
+
+    private void complete() {
+        done = true;
+        closeFile();
+        if (vertx.fileSystem().existsSync(checkpointFile)) {
+            vertx.fileSystem().deleteSync(checkpointFile);
+        }
+        if (vertx.fileSystem().existsSync(checkpointTmpFile)) {
+            vertx.fileSystem().deleteSync(checkpointTmpFile);
+        }
+        final JsonObject result = getProgress();
+        logger.info(String.format("exported %1$s into %2$s (%3$s): %4$s", db, file, exportId, result.encode()));
+        vertx.eventBus().publish(progressAddress, result.copy().putBoolean("end", true));
+        exportMsg.reply(new JsonObject().putString("status", "ok").putObject("body", result));
+    }
+
+    private void fail(final String errMsg) {
+        if (done) {
+            return;
+        }
+        done = true;
+        closeFile();
+        logger.error(errMsg);
+        vertx.eventBus().publish(progressAddress, getProgress().putBoolean("end", true)
+                .putString("status", "error").putString("message", errMsg));
+        exportMsg.reply(new JsonObject().putString("status", "error").putString("message", errMsg)
+                .putObject("body", getProgress()));
+    }
+
+    private void closeFile() {
+        if (asyncFile != null) {
+            asyncFile.close();
+            asyncFile = null;
+        }
+    }
+
+    /**
+     * Appends the documents of the rows of a page, keeps the id of the surplus row as the startkey of the next page.
+     * The documents are copied from the raw rows, only the surplus row is decoded.
+     */
+    private final class PageRowHandler implements Handler<Buffer> {
+
+        private final Buffer page;
+        private int count;
+        private String next;
+
+        private PageRowHandler(final Buffer page) {
+            this.page = page;
+        }
+
+        @Override
+        public void handle(final Buffer row) {
+            if (count == pageSize) {
+                next = JsonBody.decodeObject(row).getString("id");
+                return;
+            }
+            final Buffer doc = RowStreamParser.getField(row, "doc");
+            if (doc != null) {
+                page.appendBuffer(doc).appendByte((byte) '\n');
+                count++;
+            }
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package com.dreikraft.vertx.couchdb;
+
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.buffer.Buffer;
+
+/**
+ * Incrementally splits a stream of JSON documents into the raw JSON bytes of the single documents. The stream is
+ * either a JSON array of objects (<code>[{...},{...}]</code>) or a sequence of objects, typically one per line
+ * (NDJSON); the format is detected on the first non whitespace character. Chunks of the stream are passed to
+ * {@link #feed(Buffer)} as they are read and every complete document is passed to the document handler.
+ * <p>
+ * The documents themselves are not validated, only their boundaries are found. Like the {@link RowStreamParser} the
+ * parser works on the raw UTF-8 bytes.
+ *
+ * @author jansolo
+ */
+final class DocStreamParser {
+
+    private final Handler<Buffer> docHandler;
+
+    private Buffer doc;
+    private long offset;
+    private int depth;
+    private boolean started;
+    private boolean array;
+    private boolean closed;
+    private boolean inString;
+    private boolean escaped;
+
+    /**
+     * Creates the parser.
+     *
+     * @param docHandler receives the raw JSON of every document
+     */
+    DocStreamParser(final Handler<Buffer> docHandler) {
+        this.docHandler = docHandler;
+    }
+
+    /**
+     * Parses the next chunk of the stream.
+     *
+     * @param chunk a chunk of the stream
+     * @throws IllegalArgumentException if the stream contains something else than JSON objects
+     */
+    void feed(final Buffer chunk) {
+        final int length = chunk.length();
+        final int docDepth = array ? 1 : 0;
+        int start = 0;
+        for (int i = 0; i < length; i++) {
+            final byte b = chunk.getByte(i);
+            if (inString) {
+                if (escaped) {
+                    escaped = false;
+                } else if (b == '\\') {
+                    escaped = true;
+                } else if (b == '"') {
+                    inString = false;
+                }
+                continue;
+            }
+            if (depth > docDepth || doc != null) {
+                switch (b) {
+                    case '"':
+                        inString = true;
+                        break;
+                    case '{':
+                    case '[':
+                        depth++;
+                        break;
+                    case '}':
+                    case ']':
+                        depth--;
+                        if (depth == docDepth) {
+                            // a document ends
+                            doc.appendBuffer(chunk, start, i + 1 - start);
+                            docHandler.handle(doc);
+                            doc = null;
+                        }
+                        break;
+                    default:
+                }
+            } else if (b == '{' && !closed) {
+                // a document starts
+                doc = new Buffer();
+                start = i;
+                depth++;
+            } else if (b == '[' && !started) {
+                array = true;
+                depth++;
+                feedRest(chunk, i + 1);
+                return;
+            } else if (b == ']' && array && depth == 1) {
+                closed = true;
+                depth--;
+            } else if (b != ' ' && b != '\t' && b != '\r' && b != '\n' && (b != ',' || !array || closed)) {
+                throw new IllegalArgumentException(String.format("unexpected '%1$c' at byte %2$d, expected a JSON "
+                        + "object", (char) b, offset + i));
+            }
+            if (b != ' ' && b != '\t' && b != '\r' && b != '\n') {
+                started = true;
+            }
+        }
+        if (doc != null) {
+            doc.appendBuffer(chunk, start, length - start);
+        }
+        offset += length;
+    }
+
+    private void feedRest(final Buffer chunk, final int from) {
+        started = true;
+        offset += from;
+        feed(chunk.getBuffer(from, chunk.length()));
+    }
+
+    /**
+     * Returns whether the stream ended on a document boundary.
+     *
+     * @return <code>false</code>, if a document or the array has not been closed
+     */
+    boolean isComplete() {
+        return doc == null && depth == 0;
+    }
+}
@@ -0,0 +1,122 @@
+package com.dreikraft.vertx.couchdb;
+
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Chooses the couchdb endpoint of a request among the pools of the configured endpoints. Of two randomly picked
+ * endpoints (power of two choices) the one with the lower load weighted by its latency is chosen, which spreads the
+ * requests without the herding of always choosing the least loaded endpoint. Endpoints, that failed their last health
+ * check or whose circuit breaker is open, are only chosen, if no other endpoint is left. With <code>pinWrites</code>
+ * writes go to the first endpoint (the primary), as long as it is available.
+ * <p>
+ * With a {@link ShardRing} the endpoints are independent servers, each holding a share of the databases: requests to
+ * a database always go to the endpoint owning it, only requests without a database get balanced.
+ * <p>
+ * Instances are not thread safe and must only be used from the event loop of the owning verticle.
+ *
+ * @author jansolo
+ */
+final class EndpointBalancer {
+
+    private final List<HttpClientPool> pools;
+    private final boolean pinWrites;
+    private final Random random;
+    private final ShardRing<HttpClientPool> ring;
+    private final HttpClientPool[] candidates;
+
+    /**
+     * Creates the balancer.
+     *
+     * @param pools     the pools of the endpoints, the first one is the primary
+     * @param pinWrites whether writes go to the primary
+     * @param random    the random generator picking the candidates
+     * @param ring      the ring mapping databases to endpoints or <code>null</code>, if the endpoints are replicas
+     */
+    EndpointBalancer(final List<HttpClientPool> pools, final boolean pinWrites, final Random random,
+                     final ShardRing<HttpClientPool> ring) {
+        this.pools = pools;
+        this.pinWrites = pinWrites;
+        this.random = random;
+        this.ring = ring;
+        this.candidates = new HttpClientPool[pools.size()];
+    }
+
+    /**
+     * Returns the pools of the endpoints.
+     *
+     * @return the pools, the first one is the primary
+     */
+    List<HttpClientPool> getPools() {
+        return pools;
+    }
+
+    /**
+     * Returns whether the databases are sharded over the endpoints.
+     *
+     * @return <code>true</code>, if a ring maps the databases to the endpoints
+     */
+    boolean isSharded() {
+        return ring != null;
+    }
+
+    /**
+     * Chooses the endpoint of a request.
+     *
+     * @param db      the database of the request or <code>null</code>
+     * @param write   whether the request changes data
+     * @param exclude the endpoint of a previous attempt of the request, which is avoided, or <code>null</code>
+     * @param now     the current time in milliseconds
+     * @return the pool of the chosen endpoint; the owner of the database, if sharded; the primary, if no endpoint is
+     * available
+     */
+    HttpClientPool choose(final String db, final boolean write, final HttpClientPool exclude, final long now) {
+        final HttpClientPool primary = pools.get(0);
+        if (pools.size() == 1) {
+            return primary;
+        }
+        if (ring != null && db != null) {
+            return ring.get(db);
+        }
+        if (write && pinWrites && primary != exclude && isAvailable(primary, true, now)) {
+            return primary;
+        }
+        int count = collect(exclude, true, now);
+        if (count == 0) {
+            count = collect(null, true, now);
+        }
+        if (count == 0) {
+            count = collect(null, false, now);
+        }
+        if (count == 0) {
+            return primary;
+        }
+        if (count == 1) {
+            return candidates[0];
+        }
+        final int first = random.nextInt(count);
+        int second = random.nextInt(count - 1);
+        if (second >= first) {
+            second++;
+        }
+        return score(candidates[first]) <= score(candidates[second]) ? candidates[first] : candidates[second];
+    }
+
+    private int collect(final HttpClientPool exclude, final boolean healthyOnly, final long now) {
+        int count = 0;
+        for (final HttpClientPool pool : pools) {
+            if (pool != exclude && isAvailable(pool, healthyOnly, now)) {
+                candidates[count++] = pool;
+            }
+        }
+        return count;
+    }
+
+    private static boolean isAvailable(final HttpClientPool pool, final boolean healthyOnly, final long now) {
+        return (!healthyOnly || pool.isHealthy()) && pool.getBreaker().isAvailable(now);
+    }
+
+    private static double score(final HttpClientPool pool) {
+        return (pool.getLoad() + 1) * (pool.getLatency() + 1);
+    }
+}
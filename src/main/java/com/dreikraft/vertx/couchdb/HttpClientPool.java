@@ -0,0 +1,405 @@
+package com.dreikraft.vertx.couchdb;
+
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.Vertx;
+import org.vertx.java.core.buffer.Buffer;
+import org.vertx.java.core.http.HttpClient;
+import org.vertx.java.core.http.HttpClientResponse;
+import org.vertx.java.core.json.JsonObject;
+import org.vertx.java.core.logging.Logger;
+
+import java.net.HttpURLConnection;
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+/**
+ * Owns a single long lived, keep-alive vert.x http client for a CouchdbVerticle instance. Limits the number of
+ * concurrent requests to <code>maxInFlight</code> (by default <code>maxPoolSize * pipeliningLimit</code>) and queues
+ * further requests until a slot gets available. Reads and writes wait in separate lanes of at most
+ * <code>maxWaiting</code> requests each; when both lanes are waiting, <code>readWeight</code> reads are admitted per
+ * write. Requests beyond a full lane are rejected instead of queued. The http client is closed with all its
+ * connections, when no request has been executed for <code>idleTimeout</code> milliseconds, and created again on
+ * the next request; vert.x 2 does not expose single idle connections. The outcomes of the requests are recorded in
+ * the {@link CircuitBreaker} of the host, the time until their response headers arrived in a moving average of the
+ * latency of the host. Health checks (<code>GET /</code>) mark the host up or down.
+ * <p>
+ * Instances are not thread safe and must only be used from the event loop of the owning verticle.
+ *
+ * @author jansolo
+ */
+final class HttpClientPool {
+
+    // weight of a new sample in the moving average of the latency
+    private static final double LATENCY_WEIGHT = 0.2;
+
+    private final Vertx vertx;
+    private final Logger logger;
+    private final String host;
+    private final int port;
+    private final int maxPoolSize;
+    private final boolean keepAlive;
+    private final boolean pipelining;
+    private final int pipeliningLimit;
+    private final long idleTimeout;
+    private final int maxInFlight;
+    private final int maxWaiting;
+    private final int readWeight;
+    private final Queue<Waiter> waitingReads = new ArrayDeque<>();
+    private final Queue<Waiter> waitingWrites = new ArrayDeque<>();
+    private final LatencyHistogram waitTime = new LatencyHistogram();
+    private final CircuitBreaker breaker;
+    private final long idleTimerId;
+
+    private HttpClient httpClient;
+    private HttpClient healthClient;
+    private boolean healthy = true;
+    private boolean checking;
+    private double latency;
+    private int active;
+    private long lastUsed;
+    private long requests;
+    private long rejected;
+    private int readsAdmitted;
+
+    /**
+     * Creates the pool. The underlying http client is created lazily on the first request.
+     *
+     * @param vertx           the vert.x instance
+     * @param logger          the logger of the owning verticle
+     * @param host            the couchdb host
+     * @param port            the couchdb port
+     * @param maxPoolSize     the maximum number of connections to the couchdb server
+     * @param keepAlive       whether to keep connections alive between requests
+     * @param pipelining      whether to pipeline requests on a single connection
+     * @param pipeliningLimit the maximum number of pipelined requests per connection
+     * @param idleTimeout     milliseconds without requests, after which the http client is closed; <code>0</code>
+     *                        disables closing
+     * @param maxInFlight     the maximum number of concurrent requests; <code>0</code> uses
+     *                        <code>maxPoolSize * pipeliningLimit</code>
+     * @param maxWaiting      the maximum number of waiting requests per lane
+     * @param readWeight      the number of reads admitted per write, when reads and writes are waiting
+     * @param breaker         the circuit breaker of the host
+     */
+    HttpClientPool(final Vertx vertx, final Logger logger, final String host, final int port, final int maxPoolSize,
+                   final boolean keepAlive, final boolean pipelining, final int pipeliningLimit,
+                   final long idleTimeout, final int maxInFlight, final int maxWaiting, final int readWeight,
+                   final CircuitBreaker breaker) {
+        this.vertx = vertx;
+        this.logger = logger;
+        this.host = host;
+        this.port = port;
+        this.maxPoolSize = Math.max(1, maxPoolSize);
+        this.keepAlive = keepAlive;
+        this.pipelining = pipelining;
+        this.pipeliningLimit = pipelining ? Math.max(1, pipeliningLimit) : 1;
+        this.idleTimeout = idleTimeout;
+        this.maxInFlight = maxInFlight > 0 ? maxInFlight : this.maxPoolSize * this.pipeliningLimit;
+        this.maxWaiting = Math.max(0, maxWaiting);
+        this.readWeight = Math.max(1, readWeight);
+        this.breaker = breaker;
+        this.idleTimerId = idleTimeout > 0 ? vertx.setPeriodic(Math.max(idleTimeout / 2, 100),
+                new IdleConnectionsHandler()) : -1;
+    }
+
+    /**
+     * Passes a lease on the pooled http client to the handler as soon as the number of requests in flight allows it.
+     * The lease must be released, after the response has been processed.
+     *
+     * @param handler the handler performing the request
+     * @param write   whether the request changes data and waits in the write lane
+     * @return <code>false</code>, if the request has been rejected, because its lane is full
+     */
+    boolean execute(final Handler<Lease> handler, final boolean write) {
+        if (active < maxInFlight && waitingReads.isEmpty() && waitingWrites.isEmpty()) {
+            waitTime.record(0);
+            lease(handler);
+            return true;
+        }
+        final Queue<Waiter> lane = write ? waitingWrites : waitingReads;
+        if (lane.size() >= maxWaiting) {
+            rejected++;
+            return false;
+        }
+        lane.add(new Waiter(handler));
+        return true;
+    }
+
+    /**
+     * Returns the circuit breaker of the host.
+     *
+     * @return the breaker
+     */
+    CircuitBreaker getBreaker() {
+        return breaker;
+    }
+
+    /**
+     * Returns the address of the host.
+     *
+     * @return host and port, e.g. <code>localhost:5984</code>
+     */
+    String getAddress() {
+        return host + ":" + port;
+    }
+
+    /**
+     * Returns the number of requests in flight and waiting.
+     *
+     * @return the load of the host
+     */
+    int getLoad() {
+        return active + waitingReads.size() + waitingWrites.size();
+    }
+
+    /**
+     * Returns the moving average of the time until the response headers arrived.
+     *
+     * @return the latency in microseconds; <code>0</code>, if nothing has been measured yet
+     */
+    double getLatency() {
+        return latency;
+    }
+
+    /**
+     * Returns the result of the last health check.
+     *
+     * @return <code>false</code>, if the last health check failed
+     */
+    boolean isHealthy() {
+        return healthy;
+    }
+
+    /**
+     * Checks the health of the host with a <code>GET /</code> on a connection of its own, which bypasses the
+     * admission control. The host is up, if the check is answered with <code>200</code> within the timeout. A check
+     * is skipped, while the previous one is still pending.
+     *
+     * @param timeout milliseconds to wait for the response
+     */
+    void checkHealth(final long timeout) {
+        if (checking) {
+            return;
+        }
+        if (healthClient == null) {
+            healthClient = vertx.createHttpClient().setHost(host).setPort(port).setMaxPoolSize(1)
+                    .setKeepAlive(false);
+        }
+        checking = true;
+        final HealthCheckHandler check = new HealthCheckHandler();
+        try {
+            healthClient.get("/", check).exceptionHandler(new Handler<Throwable>() {
+                @Override
+                public void handle(final Throwable ex) {
+                    check.checked(false, ex.getMessage());
+                }
+            }).setTimeout(timeout).end();
+        } catch (RuntimeException ex) {
+            check.checked(false, ex.getMessage());
+        }
+    }
+
+    /**
+     * Returns the current pool usage.
+     *
+     * @return a JsonObject, e.g. <code>{"host":"localhost","port":5984,"healthy":true,"latency":1200,
+     * "maxPoolSize":10,"active":2,"waiting":0,"waitingReads":0,"waitingWrites":0,"requests":1234,
+     * "rejected":0,"waitTime":{...},"breaker":{"state":"closed",...}}</code>; latency and wait times are in
+     * microseconds
+     */
+    JsonObject getStats() {
+        return new JsonObject().putString("host", host).putNumber("port", port).putBoolean("healthy", healthy)
+                .putNumber("latency", Math.round(latency))
+                .putNumber("maxPoolSize", maxPoolSize).putBoolean("keepAlive", keepAlive)
+                .putBoolean("pipelining", pipelining).putNumber("pipeliningLimit", pipeliningLimit)
+                .putNumber("idleTimeout", idleTimeout).putNumber("active", active)
+                .putNumber("maxInFlight", maxInFlight).putNumber("maxWaiting", maxWaiting)
+                .putNumber("readWeight", readWeight)
+                .putNumber("waiting", waitingReads.size() + waitingWrites.size())
+                .putNumber("waitingReads", waitingReads.size()).putNumber("waitingWrites", waitingWrites.size())
+                .putNumber("requests", requests).putNumber("rejected", rejected)
+                .putObject("waitTime", waitTime.toJson()).putObject("breaker", breaker.toJson());
+    }
+
+    /**
+     * Closes the http client and all connections of the pool.
+     */
+    void close() {
+        if (idleTimerId != -1) {
+            vertx.cancelTimer(idleTimerId);
+        }
+        closeClient();
+        if (healthClient != null) {
+            healthClient.close();
+            healthClient = null;
+        }
+    }
+
+    private void recordLatency(final long micros) {
+        latency = latency == 0 ? micros : latency + LATENCY_WEIGHT * (micros - latency);
+    }
+
+    private void lease(final Handler<Lease> handler) {
+        if (httpClient == null) {
+            if (logger.isDebugEnabled())
+                logger.debug(String.format("creating http client for %1$s:%2$d", host, port));
+            httpClient = vertx.createHttpClient().setHost(host).setPort(port).setMaxPoolSize(maxPoolSize)
+                    .setKeepAlive(keepAlive).setPipelining(pipelining);
+        }
+        active++;
+        requests++;
+        lastUsed = System.currentTimeMillis();
+        handler.handle(new Lease(httpClient));
+    }
+
+    private void release() {
+        active--;
+        lastUsed = System.currentTimeMillis();
+        if (active >= maxInFlight) {
+            return;
+        }
+        final Waiter next;
+        if (!waitingReads.isEmpty() && (waitingWrites.isEmpty() || readsAdmitted < readWeight)) {
+            next = waitingReads.poll();
+            readsAdmitted++;
+        } else {
+            next = waitingWrites.poll();
+            readsAdmitted = 0;
+        }
+        if (next != null) {
+            waitTime.record((System.nanoTime() - next.queued) / 1000);
+            lease(next.handler);
+        }
+    }
+
+    private void closeClient() {
+        if (httpClient != null) {
+            if (logger.isDebugEnabled())
+                logger.debug(String.format("closing http client for %1$s:%2$d", host, port));
+            httpClient.close();
+            httpClient = null;
+        }
+    }
+
+    /**
+     * A request waiting for a slot.
+     */
+    private static final class Waiter {
+
+        private final Handler<Lease> handler;
+        private final long queued = System.nanoTime();
+
+        private Waiter(final Handler<Lease> handler) {
+            this.handler = handler;
+        }
+    }
+
+    /**
+     * A request slot on the pooled http client.
+     */
+    final class Lease {
+
+        private final HttpClient client;
+        private final long leased = System.nanoTime();
+        private boolean released;
+        private boolean recorded;
+
+        private Lease(final HttpClient client) {
+            this.client = client;
+        }
+
+        /**
+         * Returns the pooled http client.
+         *
+         * @return the http client
+         */
+        HttpClient getClient() {
+            return client;
+        }
+
+        /**
+         * Records a response of the host in the circuit breaker and the latency of the host. Only the first outcome
+         * of a lease is recorded.
+         */
+        void succeeded() {
+            if (!recorded) {
+                recorded = true;
+                breaker.success(System.currentTimeMillis());
+                recordLatency((System.nanoTime() - leased) / 1000);
+            }
+        }
+
+        /**
+         * Records a failed request (connection error, timeout or <code>5xx</code> response) in the circuit breaker.
+         * Only the first outcome of a lease is recorded.
+         */
+        void failed() {
+            if (!recorded) {
+                recorded = true;
+                breaker.failure(System.currentTimeMillis());
+            }
+        }
+
+        /**
+         * Returns the request slot to the pool. Subsequent calls are ignored.
+         */
+        void release() {
+            if (!released) {
+                released = true;
+                HttpClientPool.this.release();
+            }
+        }
+    }
+
+    /**
+     * Marks the host up or down on the outcome of a health check.
+     */
+    private final class HealthCheckHandler implements Handler<HttpClientResponse> {
+
+        private final long started = System.nanoTime();
+        private boolean done;
+
+        @Override
+        public void handle(final HttpClientResponse response) {
+            response.bodyHandler(new Handler<Buffer>() {
+                @Override
+                public void handle(final Buffer body) {
+                    // drained, the connection is not kept alive
+                }
+            });
+            checked(response.statusCode() == HttpURLConnection.HTTP_OK, String.format("%1$d: %2$s",
+                    response.statusCode(), response.statusMessage()));
+        }
+
+        private void checked(final boolean up, final String reason) {
+            if (done) {
+                return;
+            }
+            done = true;
+            checking = false;
+            if (up) {
+                recordLatency((System.nanoTime() - started) / 1000);
+            }
+            if (up != healthy) {
+                healthy = up;
+                if (up) {
+                    logger.info(String.format("couchdb %1$s:%2$d is up", host, port));
+                } else {
+                    logger.warn(String.format("couchdb %1$s:%2$d is down: %3$s", host, port, reason));
+                }
+            }
+        }
+    }
+
+    /**
+     * Closes the http client, if no requests have been executed for <code>idleTimeout</code> milliseconds.
+     */
+    private final class IdleConnectionsHandler implements Handler<Long> {
+
+        @Override
+        public void handle(final Long timerId) {
+            if (active == 0 && httpClient != null && System.currentTimeMillis() - lastUsed >= idleTimeout) {
+                closeClient();
+            }
+        }
+    }
+}
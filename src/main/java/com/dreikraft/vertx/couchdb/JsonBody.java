@@ -0,0 +1,127 @@
+package com.dreikraft.vertx.couchdb;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufInputStream;
+import org.vertx.java.core.buffer.Buffer;
+import org.vertx.java.core.json.DecodeException;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Decodes couchdb response bodies in a single pass. The type of the body is detected by peeking at the first non
+ * whitespace byte, JSON bodies are parsed directly from the bytes of the buffer without decoding them into a string
+ * first.
+ *
+ * @author jansolo
+ */
+final class JsonBody {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper().configure(JsonParser.Feature.ALLOW_COMMENTS, true);
+
+    private JsonBody() {
+    }
+
+    /**
+     * Decodes a response body.
+     *
+     * @param body the response body
+     * @return a JsonObject, a JsonArray or the body as String, if it does not contain a JSON object or array
+     * @throws DecodeException if the body starts like JSON, but cannot be parsed
+     */
+    static Object decode(final Buffer body) {
+        switch (peek(body)) {
+            case '{':
+                return decodeObject(body);
+            case '[':
+                return decodeArray(body);
+            default:
+                return body.toString("UTF-8");
+        }
+    }
+
+    /**
+     * Decodes a JSON object from a buffer.
+     *
+     * @param body a buffer containing a JSON object
+     * @return the JSON object
+     * @throws DecodeException if the buffer does not contain a JSON object
+     */
+    @SuppressWarnings("unchecked")
+    static JsonObject decodeObject(final Buffer body) {
+        return new DecodedJsonObject(read(body, Map.class));
+    }
+
+    /**
+     * Decodes a JSON array from a buffer.
+     *
+     * @param body a buffer containing a JSON array
+     * @return the JSON array
+     * @throws DecodeException if the buffer does not contain a JSON array
+     */
+    @SuppressWarnings("unchecked")
+    static JsonArray decodeArray(final Buffer body) {
+        return new DecodedJsonArray(read(body, List.class));
+    }
+
+    /**
+     * Returns the first non whitespace byte of a buffer.
+     *
+     * @param body the buffer
+     * @return the first non whitespace byte or <code>0</code> if the buffer is empty
+     */
+    static byte peek(final Buffer body) {
+        final ByteBuf byteBuf = body.getByteBuf();
+        for (int i = byteBuf.readerIndex(); i < byteBuf.writerIndex(); i++) {
+            final byte b = byteBuf.getByte(i);
+            if (b != ' ' && b != '\t' && b != '\r' && b != '\n') {
+                return b;
+            }
+        }
+        return 0;
+    }
+
+    private static <T> T read(final Buffer body, final Class<T> type) {
+        final ByteBuf byteBuf = body.getByteBuf();
+        try {
+            if (byteBuf.hasArray()) {
+                return MAPPER.readValue(byteBuf.array(), byteBuf.arrayOffset() + byteBuf.readerIndex(),
+                        byteBuf.readableBytes(), type);
+            } else {
+                return MAPPER.readValue(new ByteBufInputStream(byteBuf.duplicate()), type);
+            }
+        } catch (IOException | RuntimeException ex) {
+            throw new DecodeException(String.format("failed to decode %1$s: %2$s", type.getSimpleName(),
+                    ex.getMessage()));
+        }
+    }
+
+    /**
+     * A JsonObject wrapping the decoded map without copying it.
+     */
+    private static final class DecodedJsonObject extends JsonObject {
+
+        private static final long serialVersionUID = 1L;
+
+        private DecodedJsonObject(final Map<String, Object> map) {
+            super(map, false);
+        }
+    }
+
+    /**
+     * A JsonArray wrapping the decoded list without copying it.
+     */
+    private static final class DecodedJsonArray extends JsonArray {
+
+        private static final long serialVersionUID = 1L;
+
+        private DecodedJsonArray(final List<Object> list) {
+            super(list, false);
+        }
+    }
+}
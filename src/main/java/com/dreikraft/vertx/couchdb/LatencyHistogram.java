@@ -0,0 +1,130 @@
+package com.dreikraft.vertx.couchdb;
+
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+/**
+ * A histogram of latencies with log-linear buckets. Every power of two range is split into
+ * <code>2^SUB_BUCKET_BITS</code> linear sub buckets, so recorded values are kept with a relative precision of 12.5%
+ * at a fixed memory footprint and constant recording cost.
+ * <p>
+ * Histograms are serialized with their non empty buckets, so histograms of several verticle instances can be merged
+ * without losing precision.
+ * <p>
+ * Instances are not thread safe and must only be used from the event loop of the owning verticle.
+ *
+ * @author jansolo
+ */
+final class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    private final long[] counts = new long[(64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS];
+    private long count;
+    private long sum;
+    private long min = Long.MAX_VALUE;
+    private long max;
+
+    /**
+     * Records a value.
+     *
+     * @param value a value; negative values are recorded as <code>0</code>
+     */
+    void record(final long value) {
+        final long v = Math.max(0, value);
+        counts[index(v)]++;
+        count++;
+        sum += v;
+        min = Math.min(min, v);
+        max = Math.max(max, v);
+    }
+
+    /**
+     * Adds the values of a serialized histogram.
+     *
+     * @param histogram a histogram serialized by {@link #toJson()}
+     */
+    void merge(final JsonObject histogram) {
+        final long mergedCount = histogram.getLong("count", 0);
+        if (mergedCount == 0) {
+            return;
+        }
+        for (final Object bucket : histogram.getArray("buckets")) {
+            final JsonArray indexCount = (JsonArray) bucket;
+            counts[((Number) indexCount.get(0)).intValue()] += ((Number) indexCount.get(1)).longValue();
+        }
+        count += mergedCount;
+        sum += histogram.getLong("sum", 0);
+        min = Math.min(min, histogram.getLong("min", 0));
+        max = Math.max(max, histogram.getLong("max", 0));
+    }
+
+    /**
+     * Returns the number of recorded values.
+     *
+     * @return the count
+     */
+    long getCount() {
+        return count;
+    }
+
+    /**
+     * Returns the value below which a percentage of the recorded values fall.
+     *
+     * @param percentile a percentile between <code>0</code> and <code>100</code>
+     * @return the highest value equivalent to the bucket containing the percentile; <code>0</code> if empty
+     */
+    long getValueAtPercentile(final double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+        final long rank = Math.max(1, (long) Math.ceil(Math.min(100, percentile) / 100 * count));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(max, Math.max(min, highestEquivalentValue(i)));
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Serializes the histogram.
+     *
+     * @return a JsonObject, e.g. <code>{"count":3,"sum":4200,"min":1000,"max":2000,"mean":1400,"p50":1023,
+     * "p90":2047,"p99":2047,"p999":2047,"buckets":[[71,2],[80,1]]}</code>
+     */
+    JsonObject toJson() {
+        final JsonArray buckets = new JsonArray();
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] > 0) {
+                buckets.addArray(new JsonArray().addNumber(i).addNumber(counts[i]));
+            }
+        }
+        return new JsonObject().putNumber("count", count).putNumber("sum", sum)
+                .putNumber("min", count > 0 ? min : 0).putNumber("max", max)
+                .putNumber("mean", count > 0 ? sum / count : 0)
+                .putNumber("p50", getValueAtPercentile(50)).putNumber("p90", getValueAtPercentile(90))
+                .putNumber("p99", getValueAtPercentile(99)).putNumber("p999", getValueAtPercentile(99.9))
+                .putArray("buckets", buckets);
+    }
+
+    static int index(final long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        final int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+    }
+
+    static long highestEquivalentValue(final int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        final int shift = index / SUB_BUCKETS - 1;
+        final long lowest = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+}
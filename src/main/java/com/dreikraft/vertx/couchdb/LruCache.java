@@ -0,0 +1,195 @@
+package com.dreikraft.vertx.couchdb;
+
+import org.vertx.java.core.json.JsonObject;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A least recently used cache bounded by the total size in bytes of its entries. Every entry carries a tag (e.g. an
+ * ETag or a database update sequence), that is used to validate the entry against couchdb.
+ * <p>
+ * Instances are not thread safe and must only be used from the event loop of the owning verticle.
+ *
+ * @param <V> the type of the cached values
+ * @author jansolo
+ */
+final class LruCache<V> {
+
+    private final long maxSize;
+    private final LinkedHashMap<String, Entry<V>> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long size;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /**
+     * Creates the cache.
+     *
+     * @param maxSize the maximum total size of all entries in bytes
+     */
+    LruCache(final long maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Returns an entry and marks it as recently used.
+     *
+     * @param key the key
+     * @return the entry or <code>null</code>
+     */
+    Entry<V> get(final String key) {
+        return entries.get(key);
+    }
+
+    /**
+     * Adds or replaces an entry. Evicts least recently used entries until the cache fits into its maximum size.
+     * Values larger than the maximum size are not cached.
+     *
+     * @param key   the key
+     * @param tag   the validation tag of the value
+     * @param value the value
+     * @param bytes the size of the value in bytes
+     * @return the new entry or <code>null</code>, if the value is too large
+     */
+    Entry<V> put(final String key, final String tag, final V value, final long bytes) {
+        remove(key);
+        if (bytes > maxSize) {
+            return null;
+        }
+        final Entry<V> entry = new Entry<>(tag, value, bytes);
+        entries.put(key, entry);
+        size += bytes;
+        final Iterator<Entry<V>> eldest = entries.values().iterator();
+        while (size > maxSize && eldest.hasNext()) {
+            size -= eldest.next().bytes;
+            eldest.remove();
+            evictions++;
+        }
+        return entry;
+    }
+
+    /**
+     * Removes an entry.
+     *
+     * @param key the key
+     */
+    void remove(final String key) {
+        final Entry<V> entry = entries.remove(key);
+        if (entry != null) {
+            size -= entry.bytes;
+        }
+    }
+
+    /**
+     * Removes all entries, whose key starts with a prefix.
+     *
+     * @param prefix the key prefix
+     */
+    void removeAll(final String prefix) {
+        final Iterator<Map.Entry<String, Entry<V>>> it = entries.entrySet().iterator();
+        while (it.hasNext()) {
+            final Map.Entry<String, Entry<V>> entry = it.next();
+            if (entry.getKey().startsWith(prefix)) {
+                size -= entry.getValue().bytes;
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Counts a request served from the cache.
+     */
+    void hit() {
+        hits++;
+    }
+
+    /**
+     * Counts a request, that could not be served from the cache.
+     */
+    void miss() {
+        misses++;
+    }
+
+    /**
+     * Returns the cache statistics.
+     *
+     * @return a JsonObject, e.g. <code>{"entries":12,"size":40960,"maxSize":16777216,"hits":100,"misses":12,
+     * "evictions":0}</code>
+     */
+    JsonObject getStats() {
+        return new JsonObject().putNumber("entries", entries.size()).putNumber("size", size)
+                .putNumber("maxSize", maxSize).putNumber("hits", hits).putNumber("misses", misses)
+                .putNumber("evictions", evictions);
+    }
+
+    /**
+     * A cached value with its validation tag.
+     *
+     * @param <V> the type of the value
+     */
+    static final class Entry<V> {
+
+        private final String tag;
+        private final V value;
+        private final long bytes;
+        private long validated;
+        private String validator;
+
+        private Entry(final String tag, final V value, final long bytes) {
+            this.tag = tag;
+            this.value = value;
+            this.bytes = bytes;
+            this.validated = System.currentTimeMillis();
+        }
+
+        /**
+         * Returns the validation tag.
+         *
+         * @return the tag
+         */
+        String getTag() {
+            return tag;
+        }
+
+        /**
+         * Returns the cached value.
+         *
+         * @return the value
+         */
+        V getValue() {
+            return value;
+        }
+
+        /**
+         * Returns the time the entry has been validated against couchdb the last time.
+         *
+         * @return milliseconds since the epoch
+         */
+        long getValidated() {
+            return validated;
+        }
+
+        /**
+         * Returns the credentials, the entry has been validated with the last time.
+         *
+         * @return a credential digest (see {@link RequestBuilder.Authorizations#digest(String, String)}) or
+         * <code>null</code>
+         */
+        String getValidator() {
+            return validator;
+        }
+
+        /**
+         * Marks the entry as validated against couchdb.
+         *
+         * @param validator the digest of the credentials, the entry has been validated with, or <code>null</code>
+         */
+        void validated(final String validator) {
+            this.validated = System.currentTimeMillis();
+            this.validator = validator;
+        }
+    }
+}
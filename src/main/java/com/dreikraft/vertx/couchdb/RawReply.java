@@ -0,0 +1,108 @@
+package com.dreikraft.vertx.couchdb;
+
+import org.vertx.java.core.MultiMap;
+import org.vertx.java.core.buffer.Buffer;
+import org.vertx.java.core.json.JsonObject;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+/**
+ * Encodes and decodes the replies of requests sent in raw mode (<code>"raw": true</code>). A raw reply is a single
+ * event bus buffer, that contains a small JSON header followed by the unparsed couchdb response body:
+ * <code>[int: header length][header: UTF-8 JSON][body: response bytes]</code>
+ * <p>
+ * The header contains the same <code>status</code> and <code>message</code> fields as a JSON reply plus the http
+ * <code>statusCode</code>, <code>statusMessage</code> and the response <code>headers</code>:
+ * <code>
+ * {
+ * "status": "ok/error",
+ * "message": " an error message in case of a failed request",
+ * "statusCode": 200,
+ * "statusMessage": "OK",
+ * "headers": { "Content-Type": "application/json", "ETag": "\"1-8cf73467930ed4ce09baf4067f866696\"" }
+ * }
+ * </code>
+ *
+ * @author jansolo
+ */
+public final class RawReply {
+
+    private RawReply() {
+    }
+
+    /**
+     * Returns the header of a raw reply.
+     *
+     * @param reply a raw reply
+     * @return the header JSON object
+     */
+    public static JsonObject getHeader(final Buffer reply) {
+        return JsonBody.decodeObject(reply.getBuffer(4, 4 + reply.getInt(0)));
+    }
+
+    /**
+     * Returns the unparsed couchdb response body of a raw reply.
+     *
+     * @param reply a raw reply
+     * @return the response body; empty if the request failed before a response was received
+     */
+    public static Buffer getBody(final Buffer reply) {
+        return reply.getBuffer(4 + reply.getInt(0), reply.length());
+    }
+
+    /**
+     * Creates a raw reply for a couchdb response.
+     *
+     * @param statusCode    the http status code
+     * @param statusMessage the http status message
+     * @param headers       the response headers
+     * @param body          the response body
+     * @return the raw reply
+     */
+    static Buffer encode(final int statusCode, final String statusMessage, final MultiMap headers,
+                         final Buffer body) {
+        final JsonObject headersJson = new JsonObject();
+        for (final Map.Entry<String, String> header : headers) {
+            final String value = headersJson.getString(header.getKey());
+            headersJson.putString(header.getKey(), value == null ? header.getValue()
+                    : value + "," + header.getValue());
+        }
+        final boolean ok = statusCode >= 200 && statusCode < 300;
+        final JsonObject header = new JsonObject().putString("status", ok ? "ok" : "error")
+                .putNumber("statusCode", statusCode).putString("statusMessage", statusMessage)
+                .putObject("headers", headersJson);
+        if (!ok) {
+            header.putString("message", String.format("%1$d: %2$s", statusCode, statusMessage));
+        }
+        return encode(header, body);
+    }
+
+    /**
+     * Creates a raw reply for a request, that failed without a couchdb response.
+     *
+     * @param message the error message
+     * @return the raw reply
+     */
+    static Buffer encodeError(final String message) {
+        return encode(new JsonObject().putString("status", "error").putString("message", message), new Buffer(0));
+    }
+
+    /**
+     * Creates a raw reply for a request, that has been rejected by the module.
+     *
+     * @param error   the error, e.g. <code>overloaded</code>
+     * @param message the error message
+     * @return the raw reply
+     */
+    static Buffer encodeError(final String error, final String message) {
+        return encode(new JsonObject().putString("status", "error").putString("error", error)
+                .putString("message", message), new Buffer(0));
+    }
+
+    private static Buffer encode(final JsonObject header, final Buffer body) {
+        final byte[] headerBytes = header.encode().getBytes(StandardCharsets.UTF_8);
+        return new Buffer(4 + headerBytes.length + body.length()).appendInt(headerBytes.length)
+                .appendBytes(headerBytes).appendBuffer(body);
+    }
+}
@@ -0,0 +1,375 @@
+package com.dreikraft.vertx.couchdb;
+
+import org.vertx.java.core.MultiMap;
+import org.vertx.java.core.buffer.Buffer;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonElement;
+import org.vertx.java.core.json.JsonObject;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Builds the parts of couchdb http requests from the parameters of event bus messages. Database names, document ids
+ * and query parameters are percent encoded (UTF-8); string values of the JSON valued view parameters
+ * (<code>key</code>, <code>keys</code>, <code>startkey</code>, <code>endkey</code>, ...) are JSON encoded, the
+ * values of all other string parameters (<code>rev</code>, <code>stale</code>, <code>startkey_docid</code>, ...)
+ * are passed as they are.
+ *
+ * @author jansolo
+ */
+final class RequestBuilder {
+
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+    private static final char[] BASE64 = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/"
+            .toCharArray();
+    private static final String UNRESERVED = "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789-._~";
+    // '+' is left out, older couchdb versions decode it to a space in paths
+    private static final boolean[] DB_SAFE = safe(UNRESERVED + "!$&'()*,;=:@");
+    private static final boolean[] ID_SAFE = safe(UNRESERVED + "!$&'()*,;=:@");
+    private static final boolean[] ATTACHMENT_SAFE = safe(UNRESERVED + "!$&'()*,;=:@/");
+    private static final String[] ID_PREFIXES = {"_design/", "_local/"};
+    private static final boolean[] QUERY_SAFE = safe(UNRESERVED + "!$'()*,;:@/?");
+    private static final Set<String> JSON_PARAMS = new HashSet<>(Arrays.asList("key", "keys", "startkey",
+            "start_key", "endkey", "end_key"));
+    private static final int MAX_AUTHORIZATIONS = 64;
+
+    private RequestBuilder() {
+    }
+
+    private static boolean[] safe(final String chars) {
+        final boolean[] safe = new boolean[128];
+        for (int i = 0; i < chars.length(); i++) {
+            safe[chars.charAt(i)] = true;
+        }
+        return safe;
+    }
+
+    /**
+     * Returns the uri path of a handler address, to be computed once per handler.
+     *
+     * @param address the event bus address of the handler
+     * @return the path, e.g. <code>/dummy/_all_docs</code>
+     */
+    static String path(final String address) {
+        return address.substring(CouchdbVerticle.ADDRESS_PREFIX.length());
+    }
+
+    /**
+     * Returns the uri path of a database handler address, to be computed once per handler. The database name is
+     * encoded, the rest of the address is taken as is.
+     *
+     * @param address the event bus address of the handler, e.g. <code>couchdb:/a/b/_all_docs</code>
+     * @param db      the database of the handler, e.g. <code>a/b</code>
+     * @return the path, e.g. <code>/a%2Fb/_all_docs</code>
+     */
+    static String path(final String address, final String db) {
+        final String suffix = address.substring(String.format(CouchdbVerticle.ADDRESS_DB, db).length());
+        return appendEncoded(new StringBuilder(address.length() + 8).append('/'), db, DB_SAFE).append(suffix)
+                .toString();
+    }
+
+    /**
+     * Builds the request uri.
+     *
+     * @param path   the uri path of the handler, see {@link #path(String)}
+     * @param db     the <code>db</code> parameter or <code>null</code>
+     * @param id     the <code>id</code> parameter or <code>null</code>
+     * @param params the <code>params</code> parameter or <code>null</code>
+     * @return the request uri, e.g. <code>/dummy/_design/dummy/_view/all?reduce=false</code>
+     */
+    static String uri(final String path, final String db, final String id, final JsonArray params) {
+        return uri(path, db, id, null, params);
+    }
+
+    /**
+     * Builds the request uri. A slash in the document id is encoded, except the one after the <code>_design/</code>
+     * and <code>_local/</code> prefixes; slashes in the attachment name separate path segments.
+     *
+     * @param path       the uri path of the handler, see {@link #path(String)}
+     * @param db         the <code>db</code> parameter or <code>null</code>
+     * @param id         the <code>id</code> parameter or <code>null</code>, e.g. <code>dummy1</code> or
+     *                   <code>_design/dummy</code>
+     * @param attachment the <code>attachment</code> parameter or <code>null</code>, e.g.
+     *                   <code>images/logo.png</code>
+     * @param params     the <code>params</code> parameter or <code>null</code>
+     * @return the request uri, e.g. <code>/dummy/_design/dummy/_view/all?reduce=false</code>
+     */
+    static String uri(final String path, final String db, final String id, final String attachment,
+                      final JsonArray params) {
+        final StringBuilder couchdbUri = new StringBuilder(path.length() + (db != null ? db.length() + 1 : 0)
+                + (id != null ? id.length() + 1 : 0) + (attachment != null ? attachment.length() + 1 : 0)
+                + (params != null ? 32 * params.size() : 0));
+        couchdbUri.append(path);
+        if (db != null) {
+            if (couchdbUri.charAt(couchdbUri.length() - 1) != '/') {
+                couchdbUri.append('/');
+            }
+            appendEncoded(couchdbUri, db, DB_SAFE);
+        }
+        if (id != null) {
+            couchdbUri.append('/');
+            String name = id;
+            for (final String prefix : ID_PREFIXES) {
+                if (id.startsWith(prefix)) {
+                    couchdbUri.append(prefix);
+                    name = id.substring(prefix.length());
+                    break;
+                }
+            }
+            appendEncoded(couchdbUri, name, ID_SAFE);
+        }
+        if (attachment != null) {
+            appendEncoded(couchdbUri.append('/'), attachment, ATTACHMENT_SAFE);
+        }
+        if (params != null) {
+            char separator = '?';
+            for (final Object param : params) {
+                final JsonObject jsonParam = (JsonObject) param;
+                for (final String key : jsonParam.getFieldNames()) {
+                    appendParam(couchdbUri.append(separator), key, jsonParam.getValue(key));
+                    separator = '&';
+                }
+            }
+        }
+        return couchdbUri.toString();
+    }
+
+    /**
+     * Appends an encoded query parameter.
+     *
+     * @param query the query to append to
+     * @param key   the parameter name
+     * @param value the parameter value
+     * @return the query
+     */
+    static StringBuilder appendParam(final StringBuilder query, final String key, final Object value) {
+        appendEncoded(query, key, QUERY_SAFE).append('=');
+        if (value == null) {
+            query.append("null");
+        } else if (value instanceof String) {
+            if (JSON_PARAMS.contains(key)) {
+                appendJsonString(query, (String) value);
+            } else {
+                appendEncoded(query, (String) value, QUERY_SAFE);
+            }
+        } else if (value instanceof Number || value instanceof Boolean) {
+            query.append(value);
+        } else if (value instanceof JsonElement) {
+            appendEncoded(query, value instanceof JsonObject ? ((JsonObject) value).encode()
+                    : ((JsonArray) value).encode(), QUERY_SAFE);
+        } else {
+            appendEncoded(query, String.valueOf(value), QUERY_SAFE);
+        }
+        return query;
+    }
+
+    private static void appendJsonString(final StringBuilder query, final String value) {
+        query.append("%22");
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                query.append("%5C").append('%').append(HEX[c >> 4]).append(HEX[c & 0xF]);
+            } else if (c < 0x20) {
+                query.append("%5Cu00").append(HEX[c >> 4]).append(HEX[c & 0xF]);
+            } else {
+                i = appendEncoded(query, value, i, QUERY_SAFE);
+            }
+        }
+        query.append("%22");
+    }
+
+    private static StringBuilder appendEncoded(final StringBuilder uri, final String value, final boolean[] safe) {
+        for (int i = 0; i < value.length(); i++) {
+            i = appendEncoded(uri, value, i, safe);
+        }
+        return uri;
+    }
+
+    /**
+     * Appends the character at the index, percent encodes unsafe characters as UTF-8.
+     *
+     * @return the index of the last char consumed, a surrogate pair consumes two chars
+     */
+    private static int appendEncoded(final StringBuilder uri, final String value, final int index,
+                                     final boolean[] safe) {
+        final char c = value.charAt(index);
+        if (c < 128 && safe[c]) {
+            uri.append(c);
+            return index;
+        }
+        int codePoint = value.codePointAt(index);
+        final int last = index + Character.charCount(codePoint) - 1;
+        if (codePoint <= Character.MAX_VALUE && Character.isSurrogate((char) codePoint)) {
+            codePoint = 0xFFFD;
+        }
+        if (codePoint < 0x80) {
+            appendByte(uri, codePoint);
+        } else if (codePoint < 0x800) {
+            appendByte(uri, 0xC0 | codePoint >> 6);
+            appendByte(uri, 0x80 | codePoint & 0x3F);
+        } else if (codePoint < 0x10000) {
+            appendByte(uri, 0xE0 | codePoint >> 12);
+            appendByte(uri, 0x80 | codePoint >> 6 & 0x3F);
+            appendByte(uri, 0x80 | codePoint & 0x3F);
+        } else {
+            appendByte(uri, 0xF0 | codePoint >> 18);
+            appendByte(uri, 0x80 | codePoint >> 12 & 0x3F);
+            appendByte(uri, 0x80 | codePoint >> 6 & 0x3F);
+            appendByte(uri, 0x80 | codePoint & 0x3F);
+        }
+        return last;
+    }
+
+    private static void appendByte(final StringBuilder uri, final int b) {
+        uri.append('%').append(HEX[b >> 4 & 0xF]).append(HEX[b & 0xF]);
+    }
+
+    /**
+     * Builds the value of a basic authorization header.
+     *
+     * @param user   a couchdb user name
+     * @param passwd a couchdb password
+     * @return the header value or <code>null</code>, if user or password are missing
+     */
+    static String basicAuth(final String user, final String passwd) {
+        if (user == null || passwd == null) {
+            return null;
+        }
+        final byte[] credentials = (user + ":" + passwd).getBytes(StandardCharsets.UTF_8);
+        final StringBuilder authorization = new StringBuilder(6 + (credentials.length + 2) / 3 * 4).append("Basic ");
+        for (int i = 0; i < credentials.length; i += 3) {
+            final int b = (credentials[i] & 0xFF) << 16 | (i + 1 < credentials.length ? (credentials[i + 1] & 0xFF)
+                    << 8 : 0) | (i + 2 < credentials.length ? credentials[i + 2] & 0xFF : 0);
+            authorization.append(BASE64[b >> 18 & 0x3F]).append(BASE64[b >> 12 & 0x3F])
+                    .append(i + 1 < credentials.length ? BASE64[b >> 6 & 0x3F] : '=')
+                    .append(i + 2 < credentials.length ? BASE64[b & 0x3F] : '=');
+        }
+        return authorization.toString();
+    }
+
+    /**
+     * Adds the <code>headers</code> parameter to the request headers.
+     *
+     * @param requestHeaders the request headers
+     * @param headers        the <code>headers</code> parameter or <code>null</code>
+     * @return the request headers
+     */
+    static MultiMap headers(final MultiMap requestHeaders, final JsonArray headers) {
+        if (headers != null) {
+            for (final Object header : headers) {
+                final JsonObject headerJson = (JsonObject) header;
+                for (final String headerName : headerJson.getFieldNames()) {
+                    requestHeaders.set(headerName, (String) headerJson.getField(headerName));
+                }
+            }
+        }
+        return requestHeaders;
+    }
+
+    /**
+     * Encodes the request body.
+     *
+     * @param body the <code>body</code> parameter or <code>null</code>
+     * @return the UTF-8 encoded body or <code>null</code>
+     */
+    static Buffer body(final JsonObject body) {
+        return body != null ? new Buffer(body.encode(), "UTF-8") : null;
+    }
+
+    /**
+     * Caches the basic authorization header values of a verticle instance. The configured credentials are encoded
+     * once, credentials passed with requests are kept in a small LRU map. Also computes the digests, that identify
+     * credentials in cache and request keys without holding the password.
+     */
+    static final class Authorizations {
+
+        private final String user;
+        private final String passwd;
+        private final String authorization;
+        private final Map<String, String> cache = new LinkedHashMap<String, String>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<String, String> eldest) {
+                return size() > MAX_AUTHORIZATIONS;
+            }
+        };
+        private final Map<String, String> digests = new LinkedHashMap<String, String>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<String, String> eldest) {
+                return size() > MAX_AUTHORIZATIONS;
+            }
+        };
+
+        /**
+         * Creates the cache.
+         *
+         * @param user   the configured user or <code>null</code>
+         * @param passwd the configured password or <code>null</code>
+         */
+        Authorizations(final String user, final String passwd) {
+            this.user = user;
+            this.passwd = passwd;
+            this.authorization = basicAuth(user, passwd);
+        }
+
+        /**
+         * Returns the authorization header value of a credential pair.
+         *
+         * @param requestUser   the user of the request or <code>null</code>
+         * @param requestPasswd the password of the request or <code>null</code>
+         * @return the header value or <code>null</code>, if user or password are missing
+         */
+        String get(final String requestUser, final String requestPasswd) {
+            if (requestUser == null || requestPasswd == null) {
+                return null;
+            }
+            if (requestUser.equals(user) && requestPasswd.equals(passwd)) {
+                return authorization;
+            }
+            final String key = requestUser + '\u0000' + requestPasswd;
+            String cached = cache.get(key);
+            if (cached == null) {
+                cached = basicAuth(requestUser, requestPasswd);
+                cache.put(key, cached);
+            }
+            return cached;
+        }
+
+        /**
+         * Returns the digest of a credential pair, the hex encoded SHA-256 hash of its authorization header value.
+         *
+         * @param requestUser   the user of the request or <code>null</code>
+         * @param requestPasswd the password of the request or <code>null</code>
+         * @return the digest or <code>null</code>, if user or password are missing
+         */
+        String digest(final String requestUser, final String requestPasswd) {
+            final String authorization = get(requestUser, requestPasswd);
+            if (authorization == null) {
+                return null;
+            }
+            String cached = digests.get(authorization);
+            if (cached == null) {
+                final byte[] hash;
+                try {
+                    hash = MessageDigest.getInstance("SHA-256").digest(authorization.getBytes(
+                            StandardCharsets.UTF_8));
+                } catch (NoSuchAlgorithmException ex) {
+                    throw new IllegalStateException(ex);
+                }
+                final StringBuilder hex = new StringBuilder(hash.length * 2);
+                for (final byte b : hash) {
+                    hex.append(HEX[b >> 4 & 0xF]).append(HEX[b & 0xF]);
+                }
+                cached = hex.toString();
+                digests.put(authorization, cached);
+            }
+            return cached;
+        }
+    }
+}
@@ -0,0 +1,260 @@
+package com.dreikraft.vertx.couchdb;
+
+import org.vertx.java.core.json.JsonObject;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Collects the request metrics of a verticle instance: latency histograms per logical operation (e.g.
+ * <code>doc.get</code>, <code>bulk_docs</code>, <code>view</code>), the number of requests in flight, the bytes sent
+ * to and received from couchdb and the number of responses per http status code. Latencies are recorded in
+ * microseconds from the receipt of the event bus message until the request has been sent (<code>send</code>), the
+ * response headers have been received (<code>firstByte</code>) and the reply has been sent (<code>total</code>).
+ * Errors, timed out, hedged and retried requests are counted per operation.
+ * <p>
+ * Metrics of several verticle instances are merged by adding their serialized form.
+ * <p>
+ * Instances are not thread safe and must only be used from the event loop of the owning verticle.
+ *
+ * @author jansolo
+ */
+final class RequestMetrics {
+
+    private final Map<String, Operation> operations = new TreeMap<>();
+    private final Map<String, Long> statusCodes = new TreeMap<>();
+    private long inflight;
+    private long bytesOut;
+    private long bytesIn;
+    private int instances;
+
+    /**
+     * Creates the metrics.
+     *
+     * @param instances the number of verticle instances measured; <code>0</code> for merging the metrics of other
+     *                  instances
+     */
+    RequestMetrics(final int instances) {
+        this.instances = instances;
+    }
+
+    /**
+     * Starts measuring a request.
+     *
+     * @param operation the logical operation of the request
+     * @return the sample of the request
+     */
+    Sample start(final String operation) {
+        Operation op = operations.get(operation);
+        if (op == null) {
+            op = new Operation();
+            operations.put(operation, op);
+        }
+        inflight++;
+        return new Sample(op);
+    }
+
+    /**
+     * Returns the latency percentile until the response headers of an operation have been received.
+     *
+     * @param operation  the logical operation
+     * @param percentile the percentile, e.g. <code>95</code>
+     * @param minCount   the minimum number of recorded requests
+     * @return the latency in microseconds or <code>-1</code>, if less than <code>minCount</code> requests have been
+     * recorded
+     */
+    long getFirstByteAtPercentile(final String operation, final double percentile, final long minCount) {
+        final Operation op = operations.get(operation);
+        return op != null && op.firstByte.getCount() >= minCount ? op.firstByte.getValueAtPercentile(percentile) : -1;
+    }
+
+    /**
+     * Adds serialized metrics, e.g. of another verticle instance.
+     *
+     * @param metrics metrics serialized by {@link #toJson()}
+     */
+    void merge(final JsonObject metrics) {
+        instances += metrics.getInteger("instances", 1);
+        inflight += metrics.getLong("inflight", 0);
+        bytesOut += metrics.getLong("bytesOut", 0);
+        bytesIn += metrics.getLong("bytesIn", 0);
+        final JsonObject codes = metrics.getObject("statusCodes");
+        if (codes != null) {
+            for (final String code : codes.getFieldNames()) {
+                countStatusCode(code, codes.getLong(code));
+            }
+        }
+        final JsonObject ops = metrics.getObject("operations");
+        if (ops != null) {
+            for (final String operation : ops.getFieldNames()) {
+                Operation op = operations.get(operation);
+                if (op == null) {
+                    op = new Operation();
+                    operations.put(operation, op);
+                }
+                op.merge(ops.getObject(operation));
+            }
+        }
+    }
+
+    /**
+     * Serializes the metrics.
+     *
+     * @return a JsonObject, e.g. <code>{"instances":1,"inflight":2,"bytesOut":1024,"bytesIn":40960,
+     * "statusCodes":{"200":10,"404":1},"operations":{"doc.get":{"count":11,"errors":1,"timeouts":0,"hedged":2,
+     * "retries":0,"send":{...},
+     * "firstByte":{...},"total":{...}}}}</code>
+     */
+    JsonObject toJson() {
+        final JsonObject codes = new JsonObject();
+        for (final Map.Entry<String, Long> statusCode : statusCodes.entrySet()) {
+            codes.putNumber(statusCode.getKey(), statusCode.getValue());
+        }
+        final JsonObject ops = new JsonObject();
+        for (final Map.Entry<String, Operation> operation : operations.entrySet()) {
+            ops.putObject(operation.getKey(), operation.getValue().toJson());
+        }
+        return new JsonObject().putNumber("instances", instances).putNumber("inflight", inflight)
+                .putNumber("bytesOut", bytesOut).putNumber("bytesIn", bytesIn).putObject("statusCodes", codes)
+                .putObject("operations", ops);
+    }
+
+    private void countStatusCode(final String statusCode, final long count) {
+        final Long current = statusCodes.get(statusCode);
+        statusCodes.put(statusCode, current != null ? current + count : count);
+    }
+
+    /**
+     * The histograms of a logical operation.
+     */
+    private static final class Operation {
+
+        private final LatencyHistogram send = new LatencyHistogram();
+        private final LatencyHistogram firstByte = new LatencyHistogram();
+        private final LatencyHistogram total = new LatencyHistogram();
+        private long errors;
+        private long timeouts;
+        private long hedged;
+        private long retries;
+
+        private void merge(final JsonObject operation) {
+            errors += operation.getLong("errors", 0);
+            timeouts += operation.getLong("timeouts", 0);
+            hedged += operation.getLong("hedged", 0);
+            retries += operation.getLong("retries", 0);
+            send.merge(operation.getObject("send"));
+            firstByte.merge(operation.getObject("firstByte"));
+            total.merge(operation.getObject("total"));
+        }
+
+        private JsonObject toJson() {
+            return new JsonObject().putNumber("count", total.getCount()).putNumber("errors", errors)
+                    .putNumber("timeouts", timeouts).putNumber("hedged", hedged)
+                    .putNumber("retries", retries).putObject("send", send.toJson())
+                    .putObject("firstByte", firstByte.toJson()).putObject("total", total.toJson());
+        }
+    }
+
+    /**
+     * The measurement of a single request.
+     */
+    final class Sample {
+
+        private final Operation operation;
+        private final long started = System.nanoTime();
+        private boolean sent;
+        private boolean responded;
+        private boolean completed;
+
+        private Sample(final Operation operation) {
+            this.operation = operation;
+        }
+
+        /**
+         * Records the request as sent to couchdb. Only the first call is recorded as latency.
+         *
+         * @param bytes the size of the request body
+         */
+        void sent(final long bytes) {
+            if (!sent) {
+                sent = true;
+                operation.send.record(elapsed());
+            }
+            bytesOut += bytes;
+        }
+
+        /**
+         * Counts a hedged request, that has been sent again.
+         */
+        void hedged() {
+            operation.hedged++;
+        }
+
+        /**
+         * Counts a retried request.
+         */
+        void retried() {
+            operation.retries++;
+        }
+
+        /**
+         * Counts a timed out request.
+         */
+        void timedOut() {
+            operation.timeouts++;
+        }
+
+        /**
+         * Returns whether response headers have been received.
+         *
+         * @return <code>true</code>, if {@link #responded(int)} has been called
+         */
+        boolean isResponded() {
+            return responded;
+        }
+
+        /**
+         * Records the receipt of the response headers. Only the first call is recorded.
+         *
+         * @param statusCode the http status code
+         */
+        void responded(final int statusCode) {
+            if (responded) {
+                return;
+            }
+            responded = true;
+            operation.firstByte.record(elapsed());
+            countStatusCode(String.valueOf(statusCode), 1);
+        }
+
+        /**
+         * Records received response bytes.
+         *
+         * @param bytes the number of bytes
+         */
+        void received(final long bytes) {
+            bytesIn += bytes;
+        }
+
+        /**
+         * Records the reply of the request. Only the first call is recorded.
+         *
+         * @param error whether the request failed
+         */
+        void completed(final boolean error) {
+            if (completed) {
+                return;
+            }
+            completed = true;
+            inflight--;
+            operation.total.record(elapsed());
+            if (error) {
+                operation.errors++;
+            }
+        }
+
+        private long elapsed() {
+            return (System.nanoTime() - started) / 1000;
+        }
+    }
+}
@@ -0,0 +1,220 @@
+package com.dreikraft.vertx.couchdb;
+
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.buffer.Buffer;
+import org.vertx.java.core.json.JsonObject;
+
+/**
+ * Incrementally splits a couchdb view or <code>_all_docs</code> response into its rows. Chunks of the response body
+ * are passed to {@link #feed(Buffer)} as they arrive on the socket and every complete row of the <code>rows</code>
+ * array is passed to the row handler as raw JSON bytes. All other fields of the response (e.g.
+ * <code>total_rows</code>, <code>offset</code>) are collected into a small envelope object with an empty
+ * <code>rows</code> array.
+ * <p>
+ * The parser works on the raw UTF-8 bytes. Multi byte characters never contain the structural ASCII characters, so
+ * no character decoding is necessary to find the row boundaries.
+ *
+ * @author jansolo
+ */
+final class RowStreamParser {
+
+    private static final String ROWS_KEY = "rows";
+
+    private final Handler<Buffer> rowHandler;
+    private final Buffer envelope = new Buffer();
+    private final StringBuilder key = new StringBuilder();
+
+    private Buffer row;
+    private int depth;
+    private boolean inString;
+    private boolean escaped;
+    private boolean inRows;
+    private String lastKey;
+
+    /**
+     * Creates the parser.
+     *
+     * @param rowHandler receives the raw JSON of every row
+     */
+    RowStreamParser(final Handler<Buffer> rowHandler) {
+        this.rowHandler = rowHandler;
+    }
+
+    /**
+     * Parses the next chunk of the response body.
+     *
+     * @param chunk a chunk of the response body
+     */
+    void feed(final Buffer chunk) {
+        final int length = chunk.length();
+        int start = 0;
+        for (int i = 0; i < length; i++) {
+            final byte b = chunk.getByte(i);
+            if (inString) {
+                if (escaped) {
+                    escaped = false;
+                } else if (b == '\\') {
+                    escaped = true;
+                } else if (b == '"') {
+                    inString = false;
+                    if (depth == 1 && !inRows) {
+                        lastKey = key.toString();
+                    }
+                } else if (depth == 1 && !inRows && key.length() <= ROWS_KEY.length()) {
+                    key.append((char) b);
+                }
+                continue;
+            }
+            switch (b) {
+                case '"':
+                    inString = true;
+                    key.setLength(0);
+                    break;
+                case '{':
+                case '[':
+                    if (inRows && depth == 2) {
+                        // a row starts
+                        row = new Buffer();
+                        start = i;
+                    } else if (!inRows && depth == 1 && b == '[' && ROWS_KEY.equals(lastKey)) {
+                        // the rows array starts
+                        envelope.appendBuffer(chunk, start, i + 1 - start);
+                        inRows = true;
+                    }
+                    depth++;
+                    break;
+                case '}':
+                case ']':
+                    depth--;
+                    if (inRows && depth == 2) {
+                        // a row ends
+                        row.appendBuffer(chunk, start, i + 1 - start);
+                        rowHandler.handle(row);
+                        row = null;
+                    } else if (inRows && depth == 1) {
+                        // the rows array ends
+                        inRows = false;
+                        start = i;
+                    }
+                    break;
+                case ':':
+                    break;
+                default:
+                    if (depth == 1 && !inRows && b != ' ' && b != '\t' && b != '\r' && b != '\n' && b != ',') {
+                        lastKey = null;
+                    }
+            }
+        }
+        if (row != null) {
+            row.appendBuffer(chunk, start, length - start);
+        } else if (!inRows) {
+            envelope.appendBuffer(chunk, start, length - start);
+        }
+    }
+
+    /**
+     * Returns the raw JSON value of a top level field of a row without decoding the row. The row is scanned like the
+     * response, on its raw UTF-8 bytes.
+     *
+     * @param row  the raw JSON of a row, as passed to the row handler
+     * @param name the field name, e.g. <code>doc</code>
+     * @return the raw value, e.g. <code>{"_id":"dummy1","_rev":"1-8cf7"}</code>, or <code>null</code> if the row has
+     * no such field or its value is <code>null</code>
+     */
+    static Buffer getField(final Buffer row, final String name) {
+        final StringBuilder fieldKey = new StringBuilder();
+        final int length = row.length();
+        int fieldDepth = 0;
+        boolean fieldInString = false;
+        boolean fieldEscaped = false;
+        boolean inValue = false;
+        int start = -1;
+        for (int i = 0; i < length; i++) {
+            final byte b = row.getByte(i);
+            if (fieldInString) {
+                if (fieldEscaped) {
+                    fieldEscaped = false;
+                } else if (b == '\\') {
+                    fieldEscaped = true;
+                } else if (b == '"') {
+                    fieldInString = false;
+                } else if (fieldDepth == 1 && !inValue && fieldKey.length() <= name.length()) {
+                    fieldKey.append((char) b);
+                }
+                continue;
+            }
+            switch (b) {
+                case '"':
+                    fieldInString = true;
+                    if (fieldDepth == 1 && !inValue) {
+                        fieldKey.setLength(0);
+                    }
+                    break;
+                case '{':
+                case '[':
+                    fieldDepth++;
+                    break;
+                case ':':
+                    if (fieldDepth == 1 && !inValue) {
+                        inValue = true;
+                        if (name.equals(fieldKey.toString())) {
+                            start = i + 1;
+                        }
+                    }
+                    break;
+                case '}':
+                case ']':
+                    fieldDepth--;
+                    if (fieldDepth == 0 && start >= 0) {
+                        return trimmed(row, start, i);
+                    }
+                    break;
+                case ',':
+                    if (fieldDepth == 1) {
+                        if (start >= 0) {
+                            return trimmed(row, start, i);
+                        }
+                        inValue = false;
+                    }
+                    break;
+                default:
+            }
+        }
+        return null;
+    }
+
+    private static Buffer trimmed(final Buffer row, final int start, final int end) {
+        int from = start;
+        int to = end;
+        while (from < to && isWhitespace(row.getByte(from))) {
+            from++;
+        }
+        while (to > from && isWhitespace(row.getByte(to - 1))) {
+            to--;
+        }
+        final Buffer value = row.getBuffer(from, to);
+        return value.length() == 4 && "null".equals(value.toString("UTF-8")) ? null : value;
+    }
+
+    private static boolean isWhitespace(final byte b) {
+        return b == ' ' || b == '\t' || b == '\r' || b == '\n';
+    }
+
+    /**
+     * Returns all fields of the response except the rows.
+     *
+     * @return the envelope, e.g. <code>{"total_rows":3,"offset":0,"rows":[]}</code>
+     */
+    JsonObject getEnvelope() {
+        return new JsonObject(envelope.toString("UTF-8"));
+    }
+
+    /**
+     * Returns whether the response has been completely parsed.
+     *
+     * @return <code>true</code> if the top level object has been closed
+     */
+    boolean isComplete() {
+        return depth == 0 && !inRows && envelope.length() > 0;
+    }
+}
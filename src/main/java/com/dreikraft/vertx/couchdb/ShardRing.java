@@ -0,0 +1,109 @@
+package com.dreikraft.vertx.couchdb;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A consistent hash ring mapping keys (database names) to nodes. Every node is placed on the ring
+ * <code>virtualNodes * weight</code> times at the hashes of its name, a key belongs to the first node at or after its
+ * own hash. Adding a node therefore only moves the keys, that the new node takes over, removing a node only the keys
+ * it owned. Explicit overrides take precedence over the ring.
+ * <p>
+ * Instances are immutable except for the overrides, which must be set before the ring is used.
+ *
+ * @param <T> the type of the nodes
+ * @author jansolo
+ */
+final class ShardRing<T> {
+
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final long[] points;
+    private final Object[] owners;
+    private final Map<String, T> overrides = new HashMap<>();
+
+    /**
+     * Builds the ring.
+     *
+     * @param nodes        the nodes
+     * @param names        the stable names of the nodes, e.g. <code>host:port</code>, which place them on the ring
+     * @param weights      the weights of the nodes; a node with weight <code>2</code> gets twice the keys of a node
+     *                     with weight <code>1</code>
+     * @param virtualNodes the number of ring positions per unit of weight
+     */
+    ShardRing(final List<T> nodes, final List<String> names, final List<Integer> weights, final int virtualNodes) {
+        int size = 0;
+        for (final Integer weight : weights) {
+            size += Math.max(1, weight) * Math.max(1, virtualNodes);
+        }
+        final long[] hashes = new long[size];
+        final Map<Long, T> positions = new HashMap<>(size * 2);
+        int count = 0;
+        for (int i = 0; i < nodes.size(); i++) {
+            final int replicas = Math.max(1, weights.get(i)) * Math.max(1, virtualNodes);
+            for (int j = 0; j < replicas; j++) {
+                final long hash = hash(names.get(i) + "#" + j);
+                // the first node keeps a position in the unlikely case of a collision
+                if (!positions.containsKey(hash)) {
+                    positions.put(hash, nodes.get(i));
+                    hashes[count++] = hash;
+                }
+            }
+        }
+        points = Arrays.copyOf(hashes, count);
+        Arrays.sort(points);
+        owners = new Object[count];
+        for (int i = 0; i < count; i++) {
+            owners[i] = positions.get(points[i]);
+        }
+    }
+
+    /**
+     * Assigns a key to a node regardless of the ring.
+     *
+     * @param key  the key
+     * @param node the node
+     */
+    void override(final String key, final T node) {
+        overrides.put(key, node);
+    }
+
+    /**
+     * Returns the node of a key.
+     *
+     * @param key the key, e.g. a database name
+     * @return the node owning the key
+     */
+    @SuppressWarnings("unchecked")
+    T get(final String key) {
+        final T override = overrides.get(key);
+        if (override != null) {
+            return override;
+        }
+        int index = Arrays.binarySearch(points, hash(key));
+        if (index < 0) {
+            index = -index - 1;
+        }
+        return (T) owners[index < points.length ? index : 0];
+    }
+
+    /**
+     * Hashes a string with 64 bit FNV-1a over its chars and a final avalanche step (from MurmurHash3), so similar
+     * names like <code>tenant1</code> and <code>tenant2</code> are spread over the whole ring.
+     *
+     * @param value the string
+     * @return the hash
+     */
+    static long hash(final String value) {
+        long hash = FNV_OFFSET;
+        for (int i = 0; i < value.length(); i++) {
+            hash = (hash ^ value.charAt(i)) * FNV_PRIME;
+        }
+        hash = (hash ^ hash >>> 33) * 0xff51afd7ed558ccdL;
+        hash = (hash ^ hash >>> 33) * 0xc4ceb9fe1a85ec53L;
+        return hash ^ hash >>> 33;
+    }
+}
@@ -0,0 +1,44 @@
+package com.dreikraft.vertx.couchdb;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.vertx.java.core.buffer.Buffer;
+
+/**
+ * Tests the client side ids of the BulkImport.
+ *
+ * @author jansolo
+ */
+public class BulkImportTest {
+
+    private static boolean hasId(final String doc) {
+        return BulkImport.hasId(new Buffer(doc, "UTF-8"));
+    }
+
+    /**
+     * Finds only top level <code>_id</code> keys.
+     */
+    @Test
+    public void testHasId() {
+        Assert.assertTrue(hasId("{\"_id\":\"a\"}"));
+        Assert.assertTrue(hasId("{ \"n\" : 1, \"v\":[\"_id\"], \"_id\" : \"a\"}"));
+        Assert.assertFalse(hasId("{}"));
+        Assert.assertFalse(hasId("{\"n\":\"_id\"}"));
+        Assert.assertFalse(hasId("{\"n\":{\"_id\":\"a\"},\"v\":[{\"_id\":\"b\"}]}"));
+        Assert.assertFalse(hasId("{\"_idx\":\"a\",\"s\":\"\\\",\\\"_id\\\":\\\"a\"}"));
+        Assert.assertFalse(hasId("{\"_rev\":\"1-a\",\"id\":\"a\"}"));
+    }
+
+    /**
+     * Inserts the id as first field.
+     */
+    @Test
+    public void testWithId() {
+        Assert.assertEquals("{\"_id\":\"x-1\",\"n\":1}", BulkImport.withId(new Buffer("{\"n\":1}", "UTF-8"), "x-1")
+                .toString("UTF-8"));
+        Assert.assertEquals("{\"_id\":\"x-1\" }", BulkImport.withId(new Buffer("{ }", "UTF-8"), "x-1")
+                .toString("UTF-8"));
+        Assert.assertEquals("{\"_id\":\"x-1\",\n\"\u00e4\":1}", BulkImport.withId(new Buffer("{\n\"\u00e4\":1}",
+                "UTF-8"), "x-1").toString("UTF-8"));
+    }
+}
@@ -0,0 +1,81 @@
+package com.dreikraft.vertx.couchdb;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.vertx.java.core.Handler;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests the CircuitBreaker.
+ *
+ * @author jansolo
+ */
+public class CircuitBreakerTest {
+
+    private final List<String> states = new ArrayList<>();
+    private final CircuitBreaker breaker = new CircuitBreaker(3, 1000, new Handler<String>() {
+        @Override
+        public void handle(final String state) {
+            states.add(state);
+        }
+    });
+
+    /**
+     * Opens after consecutive failures, lets a trial pass after the reset timeout and closes on its success.
+     */
+    @Test
+    public void testOpenAndClose() {
+        breaker.failure(0);
+        breaker.failure(0);
+        breaker.success(0);
+        breaker.failure(0);
+        breaker.failure(0);
+        Assert.assertTrue(breaker.allow(0));
+        breaker.failure(100);
+        Assert.assertEquals(CircuitBreaker.OPEN, breaker.toJson().getString("state"));
+        Assert.assertFalse(breaker.allow(500));
+
+        Assert.assertTrue(breaker.allow(1100));
+        Assert.assertEquals(CircuitBreaker.HALF_OPEN, breaker.toJson().getString("state"));
+        Assert.assertFalse(breaker.allow(1200));
+        breaker.success(1300);
+        Assert.assertEquals(CircuitBreaker.CLOSED, breaker.toJson().getString("state"));
+        Assert.assertTrue(breaker.allow(1300));
+        Assert.assertEquals("[open, half_open, closed]", states.toString());
+        Assert.assertEquals(2, breaker.toJson().getLong("rejected").longValue());
+    }
+
+    /**
+     * Opens again on a failed trial and replaces a trial, that has not been decided within the reset timeout.
+     */
+    @Test
+    public void testFailedTrial() {
+        for (int i = 0; i < 3; i++) {
+            breaker.failure(0);
+        }
+        Assert.assertTrue(breaker.allow(1000));
+        breaker.failure(1100);
+        Assert.assertEquals(CircuitBreaker.OPEN, breaker.toJson().getString("state"));
+        Assert.assertFalse(breaker.allow(2000));
+        Assert.assertTrue(breaker.allow(2100));
+        Assert.assertFalse(breaker.allow(3000));
+        Assert.assertTrue(breaker.allow(3100));
+        Assert.assertEquals(CircuitBreaker.HALF_OPEN, breaker.toJson().getString("state"));
+        Assert.assertEquals("[open, half_open, open, half_open]", states.toString());
+    }
+
+    /**
+     * Never opens with a failure threshold of <code>0</code>.
+     */
+    @Test
+    public void testDisabled() {
+        final CircuitBreaker disabled = new CircuitBreaker(0, 1000, null);
+        for (int i = 0; i < 100; i++) {
+            disabled.failure(0);
+        }
+        Assert.assertTrue(disabled.allow(0));
+        Assert.assertEquals(CircuitBreaker.CLOSED, disabled.toJson().getString("state"));
+    }
+}
@@ -0,0 +1,743 @@
+package com.dreikraft.vertx.couchdb;
+
+import org.junit.Test;
+import org.vertx.java.core.AsyncResult;
+import org.vertx.java.core.AsyncResultHandler;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.eventbus.Message;
+import org.vertx.java.core.http.HttpServer;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+import org.vertx.testtools.TestVerticle;
+import org.vertx.testtools.VertxAssert;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Checks the behaviour of the optional request handling features (batching, caching, collapsing, routing and
+ * reflection) against a {@link FakeCouchdbServer}. Every test deploys the module with its own configuration. Runs
+ * offline, no couchdb needed.
+ *
+ * @author jansolo
+ */
+public class CouchdbFeatureTest extends TestVerticle {
+
+    private FakeCouchdbServer couchdb;
+    private int port;
+
+    /**
+     * Starts the fake couchdb server.
+     */
+    @Override
+    public void start() {
+        super.initialize();
+
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        } catch (IOException ex) {
+            container.logger().error(String.format("failed to find a free port: %1$s", ex.getMessage()), ex);
+            return;
+        }
+        couchdb = new FakeCouchdbServer(vertx);
+        couchdb.listen(port, new Handler<AsyncResult<HttpServer>>() {
+            @Override
+            public void handle(final AsyncResult<HttpServer> listenResult) {
+                if (listenResult.succeeded()) {
+                    startTests();
+                } else {
+                    container.logger().error("failed to start fake couchdb", listenResult.cause());
+                }
+            }
+        });
+    }
+
+    /**
+     * Stops the fake couchdb server.
+     */
+    @Override
+    public void stop() {
+        if (couchdb != null) {
+            couchdb.close();
+        }
+        super.stop();
+    }
+
+    /**
+     * Writes two documents in a single <code>_bulk_docs</code> request and evicts the written document from the
+     * document cache.
+     */
+    @Test
+    public void testWriteBatch() {
+        deploy(new JsonObject().putArray("writeBatchDbs", new JsonArray().addString("batch"))
+                .putArray("docCacheDbs", new JsonArray().addString("batch")).putNumber("docCacheMaxAge", 60000)
+                .putNumber("writeBatchWindow", 50), "batch", new Handler<Void>() {
+            @Override
+            public void handle(final Void event) {
+                final String dbAddress = String.format(CouchdbVerticle.ADDRESS_DB, "batch");
+                send(dbAddress, new JsonObject().putString("id", "doc1"), new Handler<JsonObject>() {
+                    @Override
+                    public void handle(final JsonObject cached) {
+                        final long bulkRequests = couchdb.getRequests("POST /batch/_bulk_docs");
+                        final int[] replies = new int[1];
+                        final Handler<JsonObject> written = new Handler<JsonObject>() {
+                            @Override
+                            public void handle(final JsonObject result) {
+                                if (++replies[0] < 2) {
+                                    return;
+                                }
+                                VertxAssert.assertEquals(bulkRequests + 1,
+                                        couchdb.getRequests("POST /batch/_bulk_docs"));
+                                send(dbAddress, new JsonObject().putString("id", "doc1"),
+                                        new Handler<JsonObject>() {
+                                            @Override
+                                            public void handle(final JsonObject reply) {
+                                                VertxAssert.assertEquals(2, reply.getObject("body")
+                                                        .getInteger("n").intValue());
+                                                VertxAssert.testComplete();
+                                            }
+                                        });
+                            }
+                        };
+                        send(dbAddress, new JsonObject().putString("method", "PUT").putString("id", "doc1")
+                                .putObject("body", new JsonObject().putNumber("n", 2).putString("_rev",
+                                        cached.getObject("body").getString("_rev"))), written);
+                        send(dbAddress, new JsonObject().putString("method", "PUT").putString("id", "doc2")
+                                .putObject("body", new JsonObject().putNumber("n", 2)), written);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Reads an existing and a missing document in a single <code>_all_docs</code> request.
+     */
+    @Test
+    public void testReadBatch() {
+        deploy(new JsonObject().putArray("readBatchDbs", new JsonArray().addString("batch"))
+                .putNumber("readBatchWindow", 50), "batch", new Handler<Void>() {
+            @Override
+            public void handle(final Void event) {
+                final String dbAddress = String.format(CouchdbVerticle.ADDRESS_DB, "batch");
+                final long allDocsRequests = couchdb.getRequests("POST /batch/_all_docs");
+                final int[] replies = new int[1];
+                final Handler<Message<JsonObject>> read = new Handler<Message<JsonObject>>() {
+                    @Override
+                    public void handle(final Message<JsonObject> reply) {
+                        if (++replies[0] < 3) {
+                            return;
+                        }
+                        VertxAssert.assertEquals(allDocsRequests + 1, couchdb.getRequests("POST /batch/_all_docs"));
+                        VertxAssert.assertEquals(0, couchdb.getRequests("GET /batch/doc1"));
+                        VertxAssert.testComplete();
+                    }
+                };
+                for (int i = 0; i < 2; i++) {
+                    vertx.eventBus().send(dbAddress, new JsonObject().putString("id", "doc1"),
+                            new Handler<Message<JsonObject>>() {
+                                @Override
+                                public void handle(final Message<JsonObject> reply) {
+                                    VertxAssert.assertEquals("ok", reply.body().getString("status"));
+                                    VertxAssert.assertEquals(1, reply.body().getObject("body").getInteger("n")
+                                            .intValue());
+                                    read.handle(reply);
+                                }
+                            });
+                }
+                vertx.eventBus().send(dbAddress, new JsonObject().putString("id", "doc9"),
+                        new Handler<Message<JsonObject>>() {
+                            @Override
+                            public void handle(final Message<JsonObject> reply) {
+                                VertxAssert.assertEquals("error", reply.body().getString("status"));
+                                VertxAssert.assertEquals("Object Not Found: missing",
+                                        reply.body().getString("message"));
+                                // a single read of the missing document fails with the same message
+                                vertx.eventBus().send(CouchdbVerticle.ADDRESS_SERVER, new JsonObject()
+                                        .putString("db", "batch").putString("id", "doc9"),
+                                        new Handler<Message<JsonObject>>() {
+                                            @Override
+                                            public void handle(final Message<JsonObject> singleReply) {
+                                                VertxAssert.assertEquals(reply.body().getString("message"),
+                                                        singleReply.body().getString("message"));
+                                                read.handle(reply);
+                                            }
+                                        });
+                            }
+                        });
+            }
+        });
+    }
+
+    /**
+     * Caches a document, serves it after a <code>304</code> revalidation from the cache and evicts it on a write.
+     */
+    @Test
+    public void testDocCache() {
+        deploy(new JsonObject().putArray("docCacheDbs", new JsonArray().addString("cache")), "cache",
+                new Handler<Void>() {
+                    @Override
+                    public void handle(final Void event) {
+                        getDocs(3, new Handler<JsonObject>() {
+                            @Override
+                            public void handle(final JsonObject doc) {
+                                VertxAssert.assertEquals(3, couchdb.getRequests("GET /cache/doc1"));
+                                assertDocCache(2, 1, new Handler<Void>() {
+                                    @Override
+                                    public void handle(final Void event) {
+                                        updateCachedDoc(doc);
+                                    }
+                                });
+                            }
+                        });
+                    }
+                });
+    }
+
+    private void getDocs(final int count, final Handler<JsonObject> docHandler) {
+        send(String.format(CouchdbVerticle.ADDRESS_DB, "cache"), new JsonObject().putString("id", "doc1"),
+                new Handler<JsonObject>() {
+                    @Override
+                    public void handle(final JsonObject reply) {
+                        VertxAssert.assertEquals(1, reply.getObject("body").getInteger("n").intValue());
+                        if (count > 1) {
+                            getDocs(count - 1, docHandler);
+                        } else {
+                            docHandler.handle(reply.getObject("body"));
+                        }
+                    }
+                });
+    }
+
+    private void updateCachedDoc(final JsonObject doc) {
+        final String dbAddress = String.format(CouchdbVerticle.ADDRESS_DB, "cache");
+        send(dbAddress, new JsonObject().putString("method", "PUT").putString("id", "doc1").putObject("body",
+                doc.copy().putNumber("n", 2)), new Handler<JsonObject>() {
+            @Override
+            public void handle(final JsonObject written) {
+                send(dbAddress, new JsonObject().putString("id", "doc1"), new Handler<JsonObject>() {
+                    @Override
+                    public void handle(final JsonObject reply) {
+                        VertxAssert.assertEquals(2, reply.getObject("body").getInteger("n").intValue());
+                        assertDocCache(2, 2, new Handler<Void>() {
+                            @Override
+                            public void handle(final Void event) {
+                                VertxAssert.testComplete();
+                            }
+                        });
+                    }
+                });
+            }
+        });
+    }
+
+    private void assertDocCache(final long hits, final long misses, final Handler<Void> nextHandler) {
+        send(CouchdbVerticle.ADDRESS_CACHE, new JsonObject(), new Handler<JsonObject>() {
+            @Override
+            public void handle(final JsonObject reply) {
+                final JsonObject stats = reply.getObject("body").getObject("docs");
+                VertxAssert.assertEquals(hits, stats.getLong("hits").longValue());
+                VertxAssert.assertEquals(misses, stats.getLong("misses").longValue());
+                VertxAssert.assertEquals(1, stats.getInteger("entries").intValue());
+                nextHandler.handle(null);
+            }
+        });
+    }
+
+    /**
+     * Does not serve a cached document without revalidation to other credentials.
+     */
+    @Test
+    public void testDocCacheCredentials() {
+        couchdb.setCredentials("admin", "secret");
+        deploy(new JsonObject().putString("user", "admin").putString("passwd", "secret")
+                .putArray("docCacheDbs", new JsonArray().addString("cache")).putNumber("docCacheMaxAge", 60000),
+                "cache", new Handler<Void>() {
+                    @Override
+                    public void handle(final Void event) {
+                        final String dbAddress = String.format(CouchdbVerticle.ADDRESS_DB, "cache");
+                        getDocs(1, new Handler<JsonObject>() {
+                            @Override
+                            public void handle(final JsonObject doc) {
+                                vertx.eventBus().send(dbAddress, new JsonObject().putString("id", "doc1")
+                                        .putString("user", "admin").putString("passwd", "wrong"),
+                                        new Handler<Message<JsonObject>>() {
+                                            @Override
+                                            public void handle(final Message<JsonObject> reply) {
+                                                VertxAssert.assertEquals("error", reply.body().getString("status"));
+                                                VertxAssert.assertEquals(2, couchdb.getRequests("GET /cache/doc1"));
+                                                getDocs(1, new Handler<JsonObject>() {
+                                                    @Override
+                                                    public void handle(final JsonObject doc) {
+                                                        VertxAssert.assertEquals(2,
+                                                                couchdb.getRequests("GET /cache/doc1"));
+                                                        VertxAssert.testComplete();
+                                                    }
+                                                });
+                                            }
+                                        });
+                            }
+                        });
+                    }
+                });
+    }
+
+    /**
+     * Serves view results from the cache until the database changes and <code>stale=ok</code> results only to the
+     * credentials they have been queried with.
+     */
+    @Test
+    public void testViewCache() {
+        couchdb.setCredentials("admin", "secret");
+        deploy(new JsonObject().putString("user", "admin").putString("passwd", "secret")
+                .putArray("viewCacheDbs", new JsonArray().addString("views")), "views", new Handler<Void>() {
+            @Override
+            public void handle(final Void event) {
+                queryCachedView(0);
+            }
+        });
+    }
+
+    private void queryCachedView(final int step) {
+        // stale=ok, stale=ok, stale=ok with a wrong password, not stale, not stale, not stale after a write
+        final long[] viewRequests = {1, 1, 2, 3, 3, 4};
+        final JsonObject query = new JsonObject();
+        if (step < 3) {
+            query.putArray("params", new JsonArray().addObject(new JsonObject().putString("stale", "ok")));
+        }
+        if (step == 2) {
+            query.putString("user", "admin").putString("passwd", "wrong");
+        }
+        vertx.eventBus().send(String.format(CouchdbVerticle.ADDRESS_VIEW, "views", "test", "all"), query,
+                new Handler<Message<JsonObject>>() {
+                    @Override
+                    public void handle(final Message<JsonObject> reply) {
+                        VertxAssert.assertEquals(step == 2 ? "error" : "ok", reply.body().getString("status"));
+                        VertxAssert.assertEquals(viewRequests[step],
+                                couchdb.getRequests("GET /views/_design/test/_view/all"));
+                        if (step == 4) {
+                            send(CouchdbVerticle.ADDRESS_SERVER, new JsonObject().putString("method", "PUT")
+                                    .putString("db", "views").putString("id", "doc2").putObject("body",
+                                            new JsonObject().putNumber("n", 2)), new Handler<JsonObject>() {
+                                @Override
+                                public void handle(final JsonObject written) {
+                                    queryCachedView(step + 1);
+                                }
+                            });
+                        } else if (step < viewRequests.length - 1) {
+                            queryCachedView(step + 1);
+                        } else {
+                            VertxAssert.testComplete();
+                        }
+                    }
+                });
+    }
+
+    /**
+     * Collapses identical concurrent reads into a single couchdb request, reads with another password are not
+     * collapsed with them.
+     */
+    @Test
+    public void testCollapse() {
+        deploy(new JsonObject().putBoolean("collapseGets", true), "collapse", new Handler<Void>() {
+            @Override
+            public void handle(final Void event) {
+                couchdb.setLatency(50);
+                final int[] replies = new int[1];
+                final Handler<JsonObject> read = new Handler<JsonObject>() {
+                    @Override
+                    public void handle(final JsonObject reply) {
+                        VertxAssert.assertEquals(1, reply.getObject("body").getInteger("n").intValue());
+                        if (++replies[0] < 4) {
+                            return;
+                        }
+                        VertxAssert.assertEquals(2, couchdb.getRequests("GET /collapse/doc1"));
+                        send(CouchdbVerticle.ADDRESS_POOL, new JsonObject(), new Handler<JsonObject>() {
+                            @Override
+                            public void handle(final JsonObject pool) {
+                                VertxAssert.assertEquals(2, pool.getObject("body").getInteger("collapsed")
+                                        .intValue());
+                                VertxAssert.testComplete();
+                            }
+                        });
+                    }
+                };
+                for (final String passwd : new String[]{"a", "a", "a", "b"}) {
+                    send(CouchdbVerticle.ADDRESS_SERVER, new JsonObject().putString("db", "collapse")
+                            .putString("id", "doc1").putString("user", "admin").putString("passwd", passwd), read);
+                }
+            }
+        });
+    }
+
+    /**
+     * Applies a reflection to every instance and registers only the handlers of views added since the last
+     * reflection.
+     */
+    @Test
+    public void testReflectionDiff() {
+        deploy(new JsonObject().putNumber("instances", 2), "reflect", new Handler<Void>() {
+            @Override
+            public void handle(final Void event) {
+                send(CouchdbVerticle.ADDRESS_REFLECT, new JsonObject(), new Handler<JsonObject>() {
+                    @Override
+                    public void handle(final JsonObject unchanged) {
+                        VertxAssert.assertEquals(2, unchanged.getObject("body").getInteger("instances").intValue());
+                        VertxAssert.assertEquals(0, unchanged.getObject("body").getInteger("registered").intValue());
+                        VertxAssert.assertEquals(0, unchanged.getObject("body").getInteger("unregistered")
+                                .intValue());
+                        addView();
+                    }
+                });
+            }
+        });
+    }
+
+    private void addView() {
+        send(CouchdbVerticle.ADDRESS_SERVER, new JsonObject().putString("db", "reflect").putString("id",
+                "_design/test"), new Handler<JsonObject>() {
+            @Override
+            public void handle(final JsonObject designDoc) {
+                final JsonObject doc = designDoc.getObject("body");
+                doc.getObject("views").putObject("second", new JsonObject().putString("map",
+                        "function(doc) { emit(doc._id, 2); }"));
+                send(CouchdbVerticle.ADDRESS_SERVER, new JsonObject().putString("method", "PUT")
+                        .putString("db", "reflect").putString("id", "_design/test").putObject("body", doc),
+                        new Handler<JsonObject>() {
+                            @Override
+                            public void handle(final JsonObject written) {
+                                send(CouchdbVerticle.ADDRESS_REFLECT, new JsonObject(), new Handler<JsonObject>() {
+                                    @Override
+                                    public void handle(final JsonObject changed) {
+                                        // one new view handler on each of the two instances
+                                        VertxAssert.assertEquals(2, changed.getObject("body")
+                                                .getInteger("registered").intValue());
+                                        VertxAssert.assertEquals(0, changed.getObject("body")
+                                                .getInteger("unregistered").intValue());
+                                        queryViews(2);
+                                    }
+                                });
+                            }
+                        });
+            }
+        });
+    }
+
+    private void queryViews(final int count) {
+        // the handlers of both instances are registered, the queries are delivered round robin
+        send(String.format(CouchdbVerticle.ADDRESS_VIEW, "reflect", "test", "second"), new JsonObject(),
+                new Handler<JsonObject>() {
+                    @Override
+                    public void handle(final JsonObject reply) {
+                        VertxAssert.assertEquals(1, reply.getObject("body").getArray("rows").size());
+                        if (count > 1) {
+                            queryViews(count - 1);
+                        } else {
+                            VertxAssert.testComplete();
+                        }
+                    }
+                });
+    }
+
+    /**
+     * Queries the design documents of one database after the other and publishes the progress of the reflection.
+     */
+    @Test
+    public void testReflectProgress() {
+        deploy(new JsonObject().putNumber("reflectConcurrency", 1), "progress1", new Handler<Void>() {
+            @Override
+            public void handle(final Void event) {
+                send(CouchdbVerticle.ADDRESS_SERVER, new JsonObject().putString("method", "PUT")
+                        .putString("db", "progress2"), new Handler<JsonObject>() {
+                    @Override
+                    public void handle(final JsonObject created) {
+                        send(CouchdbVerticle.ADDRESS_SERVER, new JsonObject().putString("method", "PUT")
+                                .putString("db", "progress3"), new Handler<JsonObject>() {
+                            @Override
+                            public void handle(final JsonObject created) {
+                                reflectWithProgress();
+                            }
+                        });
+                    }
+                });
+            }
+        });
+    }
+
+    private void reflectWithProgress() {
+        final List<JsonObject> progress = new ArrayList<>();
+        vertx.eventBus().registerHandler(CouchdbVerticle.ADDRESS_REFLECT_PROGRESS, new Handler<Message<JsonObject>>() {
+            @Override
+            public void handle(final Message<JsonObject> progressMsg) {
+                progress.add(progressMsg.body());
+            }
+        }, new Handler<AsyncResult<Void>>() {
+            @Override
+            public void handle(final AsyncResult<Void> registered) {
+                // every design document query takes the latency, the queries of a single reflection add up
+                couchdb.setLatency(100);
+                send(CouchdbVerticle.ADDRESS_REFLECT, new JsonObject(), new Handler<JsonObject>() {
+                    @Override
+                    public void handle(final JsonObject reflected) {
+                        final JsonObject result = reflected.getObject("body");
+                        VertxAssert.assertEquals(3, result.getInteger("count").intValue());
+                        VertxAssert.assertEquals(0, result.getInteger("failedCount").intValue());
+                        VertxAssert.assertTrue(result.getLong("time") >= 300);
+                        // the end event is published before the reply
+                        VertxAssert.assertEquals(4, progress.size());
+                        for (int i = 0; i < 3; i++) {
+                            VertxAssert.assertEquals(String.format("progress%1$d", i + 1),
+                                    progress.get(i).getString("db"));
+                            VertxAssert.assertFalse(progress.get(i).getBoolean("failed"));
+                            VertxAssert.assertEquals(i + 1, progress.get(i).getInteger("processed").intValue());
+                            VertxAssert.assertEquals(3, progress.get(i).getInteger("count").intValue());
+                        }
+                        VertxAssert.assertTrue(progress.get(3).getBoolean("end"));
+                        VertxAssert.assertEquals(3, progress.get(3).getInteger("processed").intValue());
+                        VertxAssert.assertEquals(result.getLong("time"), progress.get(3).getLong("time"));
+                        reflectMissingDb(progress);
+                    }
+                });
+            }
+        });
+    }
+
+    private void reflectMissingDb(final List<JsonObject> progress) {
+        progress.clear();
+        send(CouchdbVerticle.ADDRESS_REFLECT, new JsonObject().putString("db", "missing"), new Handler<JsonObject>() {
+            @Override
+            public void handle(final JsonObject reflected) {
+                final JsonObject result = reflected.getObject("body");
+                VertxAssert.assertEquals(1, result.getInteger("count").intValue());
+                VertxAssert.assertEquals(1, result.getInteger("failedCount").intValue());
+                VertxAssert.assertEquals("missing", result.getArray("failedDbs").get(0));
+                VertxAssert.assertEquals(2, progress.size());
+                VertxAssert.assertTrue(progress.get(0).getBoolean("failed"));
+                VertxAssert.assertEquals(1, progress.get(1).getInteger("failedCount").intValue());
+                VertxAssert.testComplete();
+            }
+        });
+    }
+
+    /**
+     * Registers the handlers of a database on its first routed request and unregisters them after the TTL.
+     */
+    @Test
+    public void testLazyDbHandlers() {
+        deploy(new JsonObject().putBoolean("lazyDbHandlers", true).putNumber("lazyDbHandlersTtl", 200), "lazy",
+                new Handler<Void>() {
+                    @Override
+                    public void handle(final Void event) {
+                        assertRegistered(false, new Handler<Void>() {
+                            @Override
+                            public void handle(final Void event) {
+                                routeLazily(1, new Handler<Void>() {
+                                    @Override
+                                    public void handle(final Void event) {
+                                        assertRegistered(true, new Handler<Void>() {
+                                            @Override
+                                            public void handle(final Void event) {
+                                                // the handlers expire on the next check, at least every second
+                                                vertx.setTimer(2500, new Handler<Long>() {
+                                                    @Override
+                                                    public void handle(final Long timerId) {
+                                                        assertExpired();
+                                                    }
+                                                });
+                                            }
+                                        });
+                                    }
+                                });
+                            }
+                        });
+                    }
+                });
+    }
+
+    private void assertExpired() {
+        assertRegistered(false, new Handler<Void>() {
+            @Override
+            public void handle(final Void event) {
+                routeLazily(2, new Handler<Void>() {
+                    @Override
+                    public void handle(final Void event) {
+                        vertx.eventBus().send(CouchdbVerticle.ADDRESS_ROUTE, new JsonObject().putObject("path",
+                                new JsonObject().putString("db", "missing").putString("doc", "doc1")),
+                                new Handler<Message<JsonObject>>() {
+                                    @Override
+                                    public void handle(final Message<JsonObject> reply) {
+                                        VertxAssert.assertEquals("error", reply.body().getString("status"));
+                                        VertxAssert.assertEquals(0, couchdb.getRequests("GET /missing/_all_docs"));
+                                        VertxAssert.testComplete();
+                                    }
+                                });
+                    }
+                });
+            }
+        });
+    }
+
+    private void routeLazily(final long reflections, final Handler<Void> nextHandler) {
+        route(new JsonObject().putObject("path", new JsonObject().putString("db", "lazy").putString("doc",
+                "doc1")), new Handler<JsonObject>() {
+            @Override
+            public void handle(final JsonObject reply) {
+                VertxAssert.assertEquals(1, reply.getObject("body").getInteger("n").intValue());
+                // the design documents are queried once per reflection
+                VertxAssert.assertEquals(reflections, couchdb.getRequests("GET /lazy/_all_docs"));
+                nextHandler.handle(null);
+            }
+        });
+    }
+
+    private void assertRegistered(final boolean registered, final Handler<Void> nextHandler) {
+        vertx.eventBus().sendWithTimeout(String.format(CouchdbVerticle.ADDRESS_DB, "lazy"), new JsonObject()
+                .putString("id", "doc1"), 1000, new Handler<AsyncResult<Message<JsonObject>>>() {
+            @Override
+            public void handle(final AsyncResult<Message<JsonObject>> reply) {
+                VertxAssert.assertEquals(registered, reply.succeeded());
+                nextHandler.handle(null);
+            }
+        });
+    }
+
+    /**
+     * Routes batched writes, batched reads and cached view queries without event bus addresses for the database.
+     */
+    @Test
+    public void testRouteWithoutDbAddresses() {
+        final JsonArray dbs = new JsonArray().addString("routed");
+        deploy(new JsonObject().putBoolean("registerDbAddresses", false).putArray("writeBatchDbs", dbs)
+                .putArray("readBatchDbs", dbs).putArray("viewCacheDbs", dbs), "routed", new Handler<Void>() {
+            @Override
+            public void handle(final Void event) {
+                route(new JsonObject().putString("method", "PUT").putObject("path", new JsonObject()
+                        .putString("db", "routed").putString("doc", "doc2")).putObject("body", new JsonObject()
+                        .putNumber("n", 2)), new Handler<JsonObject>() {
+                    @Override
+                    public void handle(final JsonObject written) {
+                        VertxAssert.assertEquals(2, couchdb.getRequests("POST /routed/_bulk_docs"));
+                        route(new JsonObject().putObject("path", new JsonObject().putString("db", "routed")
+                                .putString("doc", "doc2")), new Handler<JsonObject>() {
+                            @Override
+                            public void handle(final JsonObject read) {
+                                VertxAssert.assertEquals(2, read.getObject("body").getInteger("n").intValue());
+                                VertxAssert.assertEquals(1, couchdb.getRequests("POST /routed/_all_docs"));
+                                routeViews(2);
+                            }
+                        });
+                    }
+                });
+            }
+        });
+    }
+
+    private void routeViews(final int count) {
+        route(new JsonObject().putObject("path", new JsonObject().putString("db", "routed")
+                .putString("design", "test").putString("view", "all")), new Handler<JsonObject>() {
+            @Override
+            public void handle(final JsonObject reply) {
+                VertxAssert.assertEquals(2, reply.getObject("body").getArray("rows").size());
+                VertxAssert.assertEquals(1, couchdb.getRequests("GET /routed/_design/test/_view/all"));
+                if (count > 1) {
+                    routeViews(count - 1);
+                } else {
+                    VertxAssert.testComplete();
+                }
+            }
+        });
+    }
+
+    /**
+     * Sends a message to <code>couchdb:/_route</code> and fails the test on an error reply or a missing reply.
+     *
+     * @param message      the message
+     * @param replyHandler receives the reply
+     */
+    private void route(final JsonObject message, final Handler<JsonObject> replyHandler) {
+        vertx.eventBus().sendWithTimeout(CouchdbVerticle.ADDRESS_ROUTE, message, 5000,
+                new Handler<AsyncResult<Message<JsonObject>>>() {
+                    @Override
+                    public void handle(final AsyncResult<Message<JsonObject>> reply) {
+                        VertxAssert.assertTrue(String.format("no reply for %1$s", message), reply.succeeded());
+                        VertxAssert.assertEquals(String.format("%1$s: %2$s", message, reply.result().body()), "ok",
+                                reply.result().body().getString("status"));
+                        replyHandler.handle(reply.result().body());
+                    }
+                });
+    }
+
+    /**
+     * Deploys the module (a single instance, unless configured otherwise), creates a database with a document
+     * <code>doc1</code> and a design document with the view <code>all</code> and reflects it, unless the handlers
+     * are registered lazily.
+     *
+     * @param config       the module config without host and port
+     * @param db           the name of the database
+     * @param readyHandler called when the database has been reflected
+     */
+    private void deploy(final JsonObject config, final String db, final Handler<Void> readyHandler) {
+        config.putString("host", "localhost").putNumber("port", port).putBoolean("registerDbHandlers", false);
+        if (!config.containsField("instances")) {
+            config.putNumber("instances", 1);
+        }
+        container.deployVerticle(CouchdbInitVerticle.class.getName(), config, new AsyncResultHandler<String>() {
+            @Override
+            public void handle(final AsyncResult<String> deployResult) {
+                if (deployResult.failed()) {
+                    VertxAssert.fail(String.format("failed to deploy module: %1$s",
+                            deployResult.cause().getMessage()));
+                    return;
+                }
+                final JsonArray docs = new JsonArray().addObject(new JsonObject().putString("_id", "doc1")
+                        .putNumber("n", 1)).addObject(new JsonObject().putString("_id", "_design/test")
+                        .putObject("views", new JsonObject().putObject("all", new JsonObject()
+                                .putString("map", "function(doc) { emit(doc._id, 1); }"))));
+                send(CouchdbVerticle.ADDRESS_SERVER, new JsonObject().putString("method", "PUT").putString("db", db),
+                        new Handler<JsonObject>() {
+                            @Override
+                            public void handle(final JsonObject created) {
+                                send(CouchdbVerticle.ADDRESS_SERVER, new JsonObject().putString("method", "POST")
+                                        .putString("db", db).putString("id", "_bulk_docs").putObject("body",
+                                                new JsonObject().putArray("docs", docs)), new Handler<JsonObject>() {
+                                    @Override
+                                    public void handle(final JsonObject bulk) {
+                                        if (config.getBoolean("lazyDbHandlers", false)) {
+                                            readyHandler.handle(null);
+                                            return;
+                                        }
+                                        send(CouchdbVerticle.ADDRESS_REFLECT, new JsonObject(),
+                                                new Handler<JsonObject>() {
+                                                    @Override
+                                                    public void handle(final JsonObject reflected) {
+                                                        readyHandler.handle(null);
+                                                    }
+                                                });
+                                    }
+                                });
+                            }
+                        });
+            }
+        });
+    }
+
+    /**
+     * Sends a message and fails the test on an error reply.
+     *
+     * @param address      the address
+     * @param message      the message
+     * @param replyHandler receives the reply
+     */
+    private void send(final String address, final JsonObject message, final Handler<JsonObject> replyHandler) {
+        vertx.eventBus().send(address, message, new Handler<Message<JsonObject>>() {
+            @Override
+            public void handle(final Message<JsonObject> reply) {
+                VertxAssert.assertEquals(String.format("%1$s: %2$s", address, reply.body()), "ok",
+                        reply.body().getString("status"));
+                replyHandler.handle(reply.body());
+            }
+        });
+    }
+}
@@ -0,0 +1,496 @@
+package com.dreikraft.vertx.couchdb;
+
+import org.junit.Test;
+import org.vertx.java.core.AsyncResult;
+import org.vertx.java.core.AsyncResultHandler;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.buffer.Buffer;
+import org.vertx.java.core.eventbus.Message;
+import org.vertx.java.core.http.HttpServer;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+import org.vertx.testtools.TestVerticle;
+import org.vertx.testtools.VertxAssert;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Drives a mix of document writes, document reads and view queries through the module against a
+ * {@link FakeCouchdbServer} and logs throughput and latency percentiles. Also checks request timeouts and hedging
+ * against a slow server and imports and exports files. Runs offline, no couchdb needed.
+ * <p>
+ * The load is configured with system properties:
+ * <ul>
+ * <li>load.requests ... number of requests; default <code>2000</code></li>
+ * <li>load.concurrency ... number of requests in flight; default <code>32</code></li>
+ * <li>load.latency ... latency of the fake server in ms; default <code>0</code></li>
+ * </ul>
+ *
+ * @author jansolo
+ */
+public class CouchdbLoadTest extends TestVerticle {
+
+    private static final String DB_NAME = "load";
+    private static final int DOCS = 100;
+
+    private FakeCouchdbServer couchdb;
+
+    /**
+     * Starts the fake couchdb server and deploys the module against it.
+     */
+    @Override
+    public void start() {
+        super.initialize();
+
+        final int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        } catch (IOException ex) {
+            container.logger().error(String.format("failed to find a free port: %1$s", ex.getMessage()), ex);
+            return;
+        }
+        couchdb = new FakeCouchdbServer(vertx).setLatency(Long.getLong("load.latency", 0));
+        couchdb.listen(port, new Handler<AsyncResult<HttpServer>>() {
+            @Override
+            public void handle(final AsyncResult<HttpServer> listenResult) {
+                if (listenResult.failed()) {
+                    container.logger().error("failed to start fake couchdb", listenResult.cause());
+                    return;
+                }
+                final JsonObject config = new JsonObject().putString("host", "localhost").putNumber("port", port)
+                        .putNumber("instances", 2).putBoolean("registerDbHandlers", false);
+                container.deployVerticle(CouchdbInitVerticle.class.getName(), config,
+                        new AsyncResultHandler<String>() {
+                            @Override
+                            public void handle(final AsyncResult<String> deployResult) {
+                                if (deployResult.succeeded()) {
+                                    startTests();
+                                } else {
+                                    container.logger().error("failed to deploy module", deployResult.cause());
+                                }
+                            }
+                        });
+            }
+        });
+    }
+
+    /**
+     * Stops the fake couchdb server.
+     */
+    @Override
+    public void stop() {
+        if (couchdb != null) {
+            couchdb.close();
+        }
+        super.stop();
+    }
+
+    /**
+     * Creates the database, its design document and documents, reflects the database and runs the load.
+     */
+    @Test
+    public void testLoad() {
+        final JsonArray docs = new JsonArray();
+        for (int i = 0; i < DOCS; i++) {
+            docs.addObject(new JsonObject().putString("_id", String.format("doc%1$05d", i)).putNumber("n", i));
+        }
+        docs.addObject(new JsonObject().putString("_id", "_design/load").putObject("views", new JsonObject()
+                .putObject("all", new JsonObject().putString("map", "function(doc) { emit(doc._id, 1); }"))));
+        send(CouchdbVerticle.ADDRESS_SERVER, new JsonObject().putString("method", "PUT").putString("db", DB_NAME),
+                new Handler<JsonObject>() {
+                    @Override
+                    public void handle(final JsonObject created) {
+                        send(CouchdbVerticle.ADDRESS_SERVER, new JsonObject().putString("method", "POST")
+                                .putString("db", DB_NAME).putString("id", "_bulk_docs").putObject("body",
+                                        new JsonObject().putArray("docs", docs)), new Handler<JsonObject>() {
+                            @Override
+                            public void handle(final JsonObject bulk) {
+                                send(CouchdbVerticle.ADDRESS_REFLECT, new JsonObject(), new Handler<JsonObject>() {
+                                    @Override
+                                    public void handle(final JsonObject reflected) {
+                                        new LoadRun(Integer.getInteger("load.requests", 2000),
+                                                Integer.getInteger("load.concurrency", 32)).start();
+                                    }
+                                });
+                            }
+                        });
+                    }
+                });
+    }
+
+    /**
+     * Replies a <code>timeout</code> error, when couchdb does not respond within the timeout of the request.
+     */
+    @Test
+    public void testTimeout() {
+        couchdb.setLatency(500);
+        vertx.eventBus().send(CouchdbVerticle.ADDRESS_SERVER, new JsonObject().putNumber("timeout", 50),
+                new Handler<Message<JsonObject>>() {
+                    @Override
+                    public void handle(final Message<JsonObject> reply) {
+                        VertxAssert.assertEquals("error", reply.body().getString("status"));
+                        VertxAssert.assertEquals("timeout", reply.body().getString("error"));
+                        VertxAssert.testComplete();
+                    }
+                });
+    }
+
+    /**
+     * Sends a hedged request a second time, when couchdb does not respond within the hedge delay.
+     */
+    @Test
+    public void testHedge() {
+        couchdb.setLatency(100);
+        final long requests = couchdb.getRequests();
+        vertx.eventBus().send(CouchdbVerticle.ADDRESS_SERVER, new JsonObject().putBoolean("hedge", true),
+                new Handler<Message<JsonObject>>() {
+                    @Override
+                    public void handle(final Message<JsonObject> reply) {
+                        VertxAssert.assertEquals("ok", reply.body().getString("status"));
+                        VertxAssert.assertEquals(requests + 2, couchdb.getRequests());
+                        VertxAssert.testComplete();
+                    }
+                });
+    }
+
+    /**
+     * Retries a read, that failed with a <code>500</code> response.
+     */
+    @Test
+    public void testRetry() {
+        couchdb.failNext(2);
+        final long requests = couchdb.getRequests();
+        vertx.eventBus().send(CouchdbVerticle.ADDRESS_SERVER, new JsonObject().putNumber("retries", 2),
+                new Handler<Message<JsonObject>>() {
+                    @Override
+                    public void handle(final Message<JsonObject> reply) {
+                        VertxAssert.assertEquals("ok", reply.body().getString("status"));
+                        VertxAssert.assertEquals(requests + 3, couchdb.getRequests());
+                        VertxAssert.testComplete();
+                    }
+                });
+    }
+
+    /**
+     * Opens the circuit breakers of both instances after 5 failed requests each and fails fast afterwards.
+     */
+    @Test
+    public void testBreaker() {
+        couchdb.setErrorRate(1);
+        vertx.eventBus().registerHandler(CouchdbVerticle.ADDRESS_BREAKER, new Handler<Message<JsonObject>>() {
+            @Override
+            public void handle(final Message<JsonObject> event) {
+                VertxAssert.assertEquals("open", event.body().getString("state"));
+            }
+        });
+        sendFailing(10);
+    }
+
+    /**
+     * Imports an NDJSON file with a conflicting and an invalid document in small batches.
+     */
+    @Test
+    public void testImport() {
+        final StringBuilder ndjson = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            ndjson.append(String.format("{\"_id\":\"doc%1$05d\",\"text\":\"{[\\\"%1$d\\\"]}\"}\n", i));
+        }
+        ndjson.append("{\"_id\":\"doc00001\"}\n{\"_id\":\"broken\",}\n");
+        final String file;
+        try {
+            final File tmp = File.createTempFile("import", ".ndjson");
+            tmp.deleteOnExit();
+            file = tmp.getPath();
+        } catch (IOException ex) {
+            VertxAssert.fail(ex.getMessage());
+            return;
+        }
+        vertx.fileSystem().writeFileSync(file, new Buffer(ndjson.toString(), "UTF-8"));
+        send(CouchdbVerticle.ADDRESS_SERVER, new JsonObject().putString("method", "PUT").putString("db", "import"),
+                new Handler<JsonObject>() {
+                    @Override
+                    public void handle(final JsonObject created) {
+                        send(CouchdbVerticle.ADDRESS_IMPORT, new JsonObject().putString("db", "import")
+                                .putString("file", file).putNumber("batchSize", 10), new Handler<JsonObject>() {
+                            @Override
+                            public void handle(final JsonObject imported) {
+                                final JsonObject result = imported.getObject("body");
+                                container.logger().info(String.format("import: %1$s", result.encode()));
+                                VertxAssert.assertEquals(1002, result.getLong("docs").longValue());
+                                VertxAssert.assertEquals(1000, result.getLong("imported").longValue());
+                                VertxAssert.assertEquals(2, result.getLong("failed").longValue());
+                                VertxAssert.assertEquals(result.getLong("size"), result.getLong("bytes"));
+                                VertxAssert.testComplete();
+                            }
+                        });
+                    }
+                });
+    }
+
+    /**
+     * Retries a batch, whose response got lost after the documents had been written, without creating duplicates.
+     */
+    @Test
+    public void testImportRetry() {
+        final StringBuilder ndjson = new StringBuilder();
+        for (int i = 0; i < 30; i++) {
+            ndjson.append(i % 3 == 0 ? String.format("{\"_id\":\"doc%1$05d\",\"n\":%1$d}\n", i)
+                    : String.format("{\"n\":%1$d}\n", i));
+        }
+        final String file;
+        try {
+            final File tmp = File.createTempFile("import", ".ndjson");
+            tmp.deleteOnExit();
+            file = tmp.getPath();
+        } catch (IOException ex) {
+            VertxAssert.fail(ex.getMessage());
+            return;
+        }
+        vertx.fileSystem().writeFileSync(file, new Buffer(ndjson.toString(), "UTF-8"));
+        send(CouchdbVerticle.ADDRESS_SERVER, new JsonObject().putString("method", "PUT").putString("db", "retry"),
+                new Handler<JsonObject>() {
+                    @Override
+                    public void handle(final JsonObject created) {
+                        couchdb.loseNext(1);
+                        send(CouchdbVerticle.ADDRESS_IMPORT, new JsonObject().putString("db", "retry")
+                                .putString("file", file).putNumber("batchSize", 10), new Handler<JsonObject>() {
+                            @Override
+                            public void handle(final JsonObject imported) {
+                                final JsonObject result = imported.getObject("body");
+                                VertxAssert.assertEquals(30, result.getLong("imported").longValue());
+                                VertxAssert.assertEquals(0, result.getLong("failed").longValue());
+                                VertxAssert.assertEquals(4, couchdb.getRequests("POST /retry/_bulk_docs"));
+                                send(CouchdbVerticle.ADDRESS_SERVER, new JsonObject().putString("db", "retry")
+                                        .putString("id", "_all_docs"), new Handler<JsonObject>() {
+                                    @Override
+                                    public void handle(final JsonObject allDocs) {
+                                        VertxAssert.assertEquals(30, allDocs.getObject("body")
+                                                .getInteger("total_rows").intValue());
+                                        VertxAssert.testComplete();
+                                    }
+                                });
+                            }
+                        });
+                    }
+                });
+    }
+
+    /**
+     * Exports a database in pages, gzipped and resumed from a checkpoint after a simulated interruption.
+     */
+    @Test
+    public void testExport() {
+        final JsonArray docs = new JsonArray();
+        for (int i = 0; i < 25; i++) {
+            docs.addObject(new JsonObject().putString("_id", String.format("doc%1$05d", i)).putNumber("n", i));
+        }
+        final String file;
+        try {
+            final File tmp = File.createTempFile("export", ".ndjson");
+            tmp.deleteOnExit();
+            new File(tmp.getPath() + ".checkpoint").deleteOnExit();
+            new File(tmp.getPath() + ".checkpoint.tmp").deleteOnExit();
+            file = tmp.getPath();
+        } catch (IOException ex) {
+            VertxAssert.fail(ex.getMessage());
+            return;
+        }
+        send(CouchdbVerticle.ADDRESS_SERVER, new JsonObject().putString("method", "PUT").putString("db", "export"),
+                new Handler<JsonObject>() {
+                    @Override
+                    public void handle(final JsonObject created) {
+                        send(CouchdbVerticle.ADDRESS_SERVER, new JsonObject().putString("method", "POST")
+                                .putString("db", "export").putString("id", "_bulk_docs").putObject("body",
+                                        new JsonObject().putArray("docs", docs)), new Handler<JsonObject>() {
+                            @Override
+                            public void handle(final JsonObject bulk) {
+                                exportAll(file);
+                            }
+                        });
+                    }
+                });
+    }
+
+    private void exportAll(final String file) {
+        send(CouchdbVerticle.ADDRESS_EXPORT, new JsonObject().putString("db", "export").putString("file", file)
+                .putNumber("pageSize", 10), new Handler<JsonObject>() {
+            @Override
+            public void handle(final JsonObject exported) {
+                VertxAssert.assertEquals(25, exported.getObject("body").getLong("docs").longValue());
+                final String ndjson = vertx.fileSystem().readFileSync(file).toString("UTF-8");
+                final String[] lines = ndjson.split("\n");
+                VertxAssert.assertEquals(25, lines.length);
+                VertxAssert.assertEquals("doc00024", new JsonObject(lines[24]).getString("_id"));
+                send(CouchdbVerticle.ADDRESS_EXPORT, new JsonObject().putString("db", "export")
+                        .putString("file", file + ".gz").putBoolean("gzip", true).putNumber("pageSize", 10),
+                        new Handler<JsonObject>() {
+                            @Override
+                            public void handle(final JsonObject gzipped) {
+                                new File(file + ".gz").deleteOnExit();
+                                VertxAssert.assertEquals(ndjson, gunzip(file + ".gz"));
+                                exportResumed(file, ndjson);
+                            }
+                        });
+            }
+        });
+    }
+
+    private void exportResumed(final String file, final String ndjson) {
+        final int interrupted = ndjson.indexOf("{\"_id\":\"doc00010\"");
+        VertxAssert.assertTrue(interrupted > 0);
+        vertx.fileSystem().writeFileSync(file, new Buffer(ndjson.substring(0, interrupted) + "{\"_id\":\"doc0",
+                "UTF-8"));
+        vertx.fileSystem().writeFileSync(file + ".checkpoint", new Buffer(new JsonObject().putString("db", "export")
+                .putBoolean("gzip", false).putString("next", "doc00010").putNumber("docs", 10)
+                .putNumber("bytes", interrupted).encode(), "UTF-8"));
+        // a checkpoint interrupted while being written is not used
+        vertx.fileSystem().writeFileSync(file + ".checkpoint.tmp", new Buffer("{\"db\":\"exp", "UTF-8"));
+        send(CouchdbVerticle.ADDRESS_EXPORT, new JsonObject().putString("db", "export").putString("file", file)
+                .putNumber("pageSize", 10).putBoolean("resume", true), new Handler<JsonObject>() {
+            @Override
+            public void handle(final JsonObject resumed) {
+                VertxAssert.assertTrue(resumed.getObject("body").getBoolean("resumed"));
+                VertxAssert.assertEquals(25, resumed.getObject("body").getLong("docs").longValue());
+                VertxAssert.assertEquals(ndjson, vertx.fileSystem().readFileSync(file).toString("UTF-8"));
+                VertxAssert.assertFalse(vertx.fileSystem().existsSync(file + ".checkpoint"));
+                VertxAssert.assertFalse(vertx.fileSystem().existsSync(file + ".checkpoint.tmp"));
+                VertxAssert.testComplete();
+            }
+        });
+    }
+
+    private static String gunzip(final String file) {
+        try (InputStream in = new GZIPInputStream(new FileInputStream(file))) {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[4096];
+            for (int read = in.read(buffer); read != -1; read = in.read(buffer)) {
+                out.write(buffer, 0, read);
+            }
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private void sendFailing(final int remaining) {
+        vertx.eventBus().send(CouchdbVerticle.ADDRESS_SERVER, new JsonObject(), new Handler<Message<JsonObject>>() {
+            @Override
+            public void handle(final Message<JsonObject> reply) {
+                VertxAssert.assertEquals("error", reply.body().getString("status"));
+                if (remaining > 0) {
+                    VertxAssert.assertNull(reply.body().getString("error"));
+                    sendFailing(remaining - 1);
+                } else {
+                    VertxAssert.assertEquals("unavailable", reply.body().getString("error"));
+                    VertxAssert.testComplete();
+                }
+            }
+        });
+    }
+
+    /**
+     * Sends a setup message and fails the test on an error reply.
+     *
+     * @param address      the address
+     * @param message      the message
+     * @param replyHandler receives the reply
+     */
+    private void send(final String address, final JsonObject message, final Handler<JsonObject> replyHandler) {
+        vertx.eventBus().send(address, message, new Handler<Message<JsonObject>>() {
+            @Override
+            public void handle(final Message<JsonObject> reply) {
+                VertxAssert.assertEquals(String.format("%1$s: %2$s", address, reply.body()), "ok",
+                        reply.body().getString("status"));
+                replyHandler.handle(reply.body());
+            }
+        });
+    }
+
+    /**
+     * Keeps a fixed number of requests in flight until all requests got sent and replied.
+     */
+    private final class LoadRun {
+
+        private final int requests;
+        private final int concurrency;
+        private final LatencyHistogram histogram = new LatencyHistogram();
+        private int sent;
+        private int completed;
+        private int failed;
+        private long startTime;
+
+        private LoadRun(final int requests, final int concurrency) {
+            this.requests = requests;
+            this.concurrency = concurrency;
+        }
+
+        private void start() {
+            container.logger().info(String.format("sending %1$d requests with concurrency %2$d ...", requests,
+                    concurrency));
+            startTime = System.nanoTime();
+            for (int i = 0; i < concurrency && sent < requests; i++) {
+                next();
+            }
+        }
+
+        private void next() {
+            final int n = sent++;
+            final String id = String.format("doc%1$05d", n % DOCS);
+            final String address;
+            final JsonObject message;
+            switch (n % 4) {
+                case 0:
+                    address = CouchdbVerticle.ADDRESS_SERVER;
+                    message = new JsonObject().putString("method", "PUT").putString("db", DB_NAME)
+                            .putString("id", String.format("new%1$07d", n)).putObject("body", new JsonObject()
+                                    .putNumber("n", n));
+                    break;
+                case 3:
+                    address = String.format(CouchdbVerticle.ADDRESS_VIEW, DB_NAME, "load", "all");
+                    message = new JsonObject().putArray("params", new JsonArray().addObject(new JsonObject()
+                            .putString("startkey", id)).addObject(new JsonObject().putNumber("limit", 10)));
+                    break;
+                default:
+                    address = CouchdbVerticle.ADDRESS_SERVER;
+                    message = new JsonObject().putString("method", "GET").putString("db", DB_NAME)
+                            .putString("id", id);
+                    break;
+            }
+            final long requestTime = System.nanoTime();
+            vertx.eventBus().send(address, message, new Handler<Message<JsonObject>>() {
+                @Override
+                public void handle(final Message<JsonObject> reply) {
+                    histogram.record((System.nanoTime() - requestTime) / 1000);
+                    completed++;
+                    if (!"ok".equals(reply.body().getString("status"))) {
+                        failed++;
+                        container.logger().error(String.format("%1$s %2$s failed: %3$s", address, message,
+                                reply.body()));
+                    }
+                    if (sent < requests) {
+                        next();
+                    } else if (completed == requests) {
+                        complete();
+                    }
+                }
+            });
+        }
+
+        private void complete() {
+            final long time = Math.max(1, (System.nanoTime() - startTime) / 1000000);
+            container.logger().info(String.format("%1$d requests (%2$d failed) in %3$d ms, %4$d req/s, " +
+                    "p50 %5$d us, p99 %6$d us, p99.9 %7$d us, %8$d couchdb requests", requests, failed, time,
+                    requests * 1000L / time, histogram.getValueAtPercentile(50), histogram.getValueAtPercentile(99),
+                    histogram.getValueAtPercentile(99.9), couchdb.getRequests()));
+            VertxAssert.assertEquals(0, failed);
+            VertxAssert.testComplete();
+        }
+    }
+}
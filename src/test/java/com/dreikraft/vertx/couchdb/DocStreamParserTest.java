@@ -0,0 +1,75 @@
+package com.dreikraft.vertx.couchdb;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.buffer.Buffer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests the DocStreamParser.
+ *
+ * @author jansolo
+ */
+public class DocStreamParserTest {
+
+    private final List<String> docs = new ArrayList<>();
+    private final DocStreamParser parser = new DocStreamParser(new Handler<Buffer>() {
+        @Override
+        public void handle(final Buffer doc) {
+            docs.add(doc.toString("UTF-8"));
+        }
+    });
+
+    private void feed(final String stream, final int chunkSize) {
+        final Buffer buffer = new Buffer(stream, "UTF-8");
+        for (int i = 0; i < buffer.length(); i += chunkSize) {
+            parser.feed(buffer.getBuffer(i, Math.min(buffer.length(), i + chunkSize)));
+        }
+    }
+
+    /**
+     * Splits NDJSON fed in single bytes.
+     */
+    @Test
+    public void testNdjson() {
+        feed("{\"_id\":\"a\",\"s\":\"}\\\"{\"}\n\r\n{\"_id\":\"b\",\"v\":[{},[]]}\n", 1);
+        Assert.assertTrue(parser.isComplete());
+        Assert.assertEquals("[{\"_id\":\"a\",\"s\":\"}\\\"{\"}, {\"_id\":\"b\",\"v\":[{},[]]}]", docs.toString());
+    }
+
+    /**
+     * Splits a JSON array.
+     */
+    @Test
+    public void testArray() {
+        feed(" [ {\"_id\":\"a\",\"n\":\"\u00e4\"} ,\n{\"_id\":\"]\"} ]\n", 5);
+        Assert.assertTrue(parser.isComplete());
+        Assert.assertEquals("[{\"_id\":\"a\",\"n\":\"\u00e4\"}, {\"_id\":\"]\"}]", docs.toString());
+    }
+
+    /**
+     * Detects an incomplete stream.
+     */
+    @Test
+    public void testIncomplete() {
+        feed("[{\"_id\":\"a\"},{\"_id\":", 64);
+        Assert.assertFalse(parser.isComplete());
+        Assert.assertEquals(1, docs.size());
+    }
+
+    /**
+     * Rejects values, that are not objects.
+     */
+    @Test
+    public void testNotAnObject() {
+        try {
+            feed("{}\n42\n", 64);
+            Assert.fail();
+        } catch (IllegalArgumentException ex) {
+            Assert.assertEquals("unexpected '4' at byte 3, expected a JSON object", ex.getMessage());
+        }
+    }
+}
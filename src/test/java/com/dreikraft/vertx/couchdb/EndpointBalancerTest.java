@@ -0,0 +1,108 @@
+package com.dreikraft.vertx.couchdb;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.Vertx;
+import org.vertx.java.core.VertxFactory;
+import org.vertx.java.core.logging.impl.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Tests the endpoint choice of the EndpointBalancer. No requests are sent, the load of an endpoint is simulated by
+ * taking leases of its pool.
+ *
+ * @author jansolo
+ */
+public class EndpointBalancerTest {
+
+    private Vertx vertx;
+    private HttpClientPool primary;
+    private HttpClientPool replica;
+
+    /**
+     * Creates the pools of two endpoints, whose breakers open on the first failure.
+     */
+    @Before
+    public void setUp() {
+        vertx = VertxFactory.newVertx();
+        primary = createPool(5984);
+        replica = createPool(5985);
+    }
+
+    /**
+     * Closes the pools.
+     */
+    @After
+    public void tearDown() {
+        primary.close();
+        replica.close();
+        vertx.stop();
+    }
+
+    private HttpClientPool createPool(final int port) {
+        return new HttpClientPool(vertx, LoggerFactory.getLogger(EndpointBalancerTest.class), "localhost", port, 10,
+                true, false, 1, 0, 0, 10, 4, new CircuitBreaker(1, 5000, null));
+    }
+
+    private EndpointBalancer createBalancer(final boolean pinWrites) {
+        return new EndpointBalancer(Arrays.asList(primary, replica), pinWrites, new Random(1), null);
+    }
+
+    private void load(final HttpClientPool pool, final int requests) {
+        for (int i = 0; i < requests; i++) {
+            pool.execute(new Handler<HttpClientPool.Lease>() {
+                @Override
+                public void handle(final HttpClientPool.Lease lease) {
+                    // keeps the lease
+                }
+            }, false);
+        }
+    }
+
+    /**
+     * Chooses the less loaded of two endpoints.
+     */
+    @Test
+    public void testLeastLoaded() {
+        final EndpointBalancer balancer = createBalancer(false);
+        load(primary, 3);
+        for (int i = 0; i < 20; i++) {
+            Assert.assertSame(replica, balancer.choose(null, false, null, 0));
+        }
+        load(replica, 5);
+        Assert.assertSame(primary, balancer.choose(null, true, null, 0));
+    }
+
+    /**
+     * Avoids endpoints with an open breaker and the endpoint of a previous attempt, unless no other one is left.
+     */
+    @Test
+    public void testUnavailable() {
+        final EndpointBalancer balancer = createBalancer(false);
+        Assert.assertSame(replica, balancer.choose(null, false, primary, 0));
+        Assert.assertSame(primary, balancer.choose(null, false, replica, 0));
+        load(primary, 3);
+        replica.getBreaker().failure(0);
+        Assert.assertSame(primary, balancer.choose(null, false, null, 1000));
+        Assert.assertSame(primary, balancer.choose(null, false, primary, 1000));
+        Assert.assertSame(replica, balancer.choose(null, false, null, 5000));
+    }
+
+    /**
+     * Sends writes to the primary, while it is available.
+     */
+    @Test
+    public void testPinWrites() {
+        final EndpointBalancer balancer = createBalancer(true);
+        load(primary, 3);
+        Assert.assertSame(primary, balancer.choose(null, true, null, 0));
+        Assert.assertSame(replica, balancer.choose(null, false, null, 0));
+        primary.getBreaker().failure(0);
+        Assert.assertSame(replica, balancer.choose(null, true, null, 0));
+    }
+}
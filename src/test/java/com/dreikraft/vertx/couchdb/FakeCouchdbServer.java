@@ -0,0 +1,454 @@
+package com.dreikraft.vertx.couchdb;
+
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.QueryStringDecoder;
+import org.vertx.java.core.AsyncResult;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.Vertx;
+import org.vertx.java.core.buffer.Buffer;
+import org.vertx.java.core.http.HttpServer;
+import org.vertx.java.core.http.HttpServerRequest;
+import org.vertx.java.core.json.DecodeException;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+
+/**
+ * An in memory stand-in for a couchdb server, that implements the parts of the couchdb API used by the module:
+ * <code>_all_dbs</code>, creating, querying and deleting databases, documents and design documents,
+ * <code>_all_docs</code>, <code>_bulk_docs</code> and views. Responses can be delayed and failures injected, to
+ * test the module offline under load and failure conditions.
+ * <p>
+ * Views do not evaluate their map functions: every view emits the id of every non design document as key with the
+ * value <code>1</code>; views with a <code>reduce</code> function reduce to the number of rows. A <code>404</code>
+ * response has the status message of couchdb, <code>Object Not Found</code>.
+ *
+ * @author jansolo
+ */
+public class FakeCouchdbServer {
+
+    private final Vertx vertx;
+    private final Map<String, FakeDb> dbs = new TreeMap<>();
+    private final Map<String, Long> requestCounts = new HashMap<>();
+    private final Random random = new Random();
+    private HttpServer httpServer;
+    private String authorization;
+    private long latency;
+    private double errorRate;
+    private double resetRate;
+    private int failures;
+    private int lostResponses;
+    private long requests;
+
+    /**
+     * Creates the server.
+     *
+     * @param vertx the vertx instance
+     */
+    public FakeCouchdbServer(final Vertx vertx) {
+        this.vertx = vertx;
+    }
+
+    /**
+     * Starts listening.
+     *
+     * @param port          the port
+     * @param listenHandler called when the server listens
+     */
+    public void listen(final int port, final Handler<AsyncResult<HttpServer>> listenHandler) {
+        httpServer = vertx.createHttpServer().requestHandler(new Handler<HttpServerRequest>() {
+            @Override
+            public void handle(final HttpServerRequest request) {
+                request.bodyHandler(new Handler<Buffer>() {
+                    @Override
+                    public void handle(final Buffer body) {
+                        requests++;
+                        final String counted = String.format("%1$s %2$s", request.method(),
+                                new QueryStringDecoder(request.uri()).path());
+                        final Long count = requestCounts.get(counted);
+                        requestCounts.put(counted, count != null ? count + 1 : 1);
+                        if (latency > 0) {
+                            vertx.setTimer(latency, new Handler<Long>() {
+                                @Override
+                                public void handle(final Long timerId) {
+                                    respond(request, body);
+                                }
+                            });
+                        } else {
+                            respond(request, body);
+                        }
+                    }
+                });
+            }
+        }).listen(port, "localhost", listenHandler);
+    }
+
+    /**
+     * Stops listening.
+     */
+    public void close() {
+        if (httpServer != null) {
+            httpServer.close();
+        }
+    }
+
+    /**
+     * Lets every request without these basic authorization credentials fail with <code>401 Unauthorized</code>.
+     *
+     * @param user   the user
+     * @param passwd the password
+     * @return this server
+     */
+    public FakeCouchdbServer setCredentials(final String user, final String passwd) {
+        this.authorization = RequestBuilder.basicAuth(user, passwd);
+        return this;
+    }
+
+    /**
+     * Sets the delay of every response.
+     *
+     * @param latency milliseconds
+     * @return this server
+     */
+    public FakeCouchdbServer setLatency(final long latency) {
+        this.latency = latency;
+        return this;
+    }
+
+    /**
+     * Sets the share of requests, that fail with <code>500 Internal Server Error</code>.
+     *
+     * @param errorRate a rate between <code>0</code> and <code>1</code>
+     * @return this server
+     */
+    public FakeCouchdbServer setErrorRate(final double errorRate) {
+        this.errorRate = errorRate;
+        return this;
+    }
+
+    /**
+     * Sets the share of requests, whose connection gets closed without a response.
+     *
+     * @param resetRate a rate between <code>0</code> and <code>1</code>
+     * @return this server
+     */
+    public FakeCouchdbServer setResetRate(final double resetRate) {
+        this.resetRate = resetRate;
+        return this;
+    }
+
+    /**
+     * Lets the next requests fail with <code>500 Internal Server Error</code>.
+     *
+     * @param failures the number of failing requests
+     * @return this server
+     */
+    public FakeCouchdbServer failNext(final int failures) {
+        this.failures = failures;
+        return this;
+    }
+
+    /**
+     * Lets the next requests be processed, but replaces their responses with <code>500 Internal Server Error</code>,
+     * as if the response got lost after the update.
+     *
+     * @param responses the number of lost responses
+     * @return this server
+     */
+    public FakeCouchdbServer loseNext(final int responses) {
+        this.lostResponses = responses;
+        return this;
+    }
+
+    /**
+     * Returns the number of requests received.
+     *
+     * @return the number of requests
+     */
+    public long getRequests() {
+        return requests;
+    }
+
+    /**
+     * Returns the number of requests received for a method and path.
+     *
+     * @param request the method and the encoded path, e.g. <code>POST /dummy/_bulk_docs</code>
+     * @return the number of requests
+     */
+    public long getRequests(final String request) {
+        final Long count = requestCounts.get(request);
+        return count != null ? count : 0;
+    }
+
+    private void respond(final HttpServerRequest request, final Buffer body) {
+        if (resetRate > 0 && random.nextDouble() < resetRate) {
+            request.response().close();
+            return;
+        }
+        if (authorization != null && !authorization.equals(request.headers().get("Authorization"))) {
+            send(request, HttpURLConnection.HTTP_UNAUTHORIZED, error("unauthorized",
+                    "Name or password is incorrect."));
+            return;
+        }
+        if (failures > 0 && failures-- > 0 || errorRate > 0 && random.nextDouble() < errorRate) {
+            send(request, HttpURLConnection.HTTP_INTERNAL_ERROR, error("internal_server_error", "injected error"));
+            return;
+        }
+        try {
+            route(request, body);
+        } catch (DecodeException | ClassCastException ex) {
+            send(request, HttpURLConnection.HTTP_BAD_REQUEST, error("bad_request", ex.getMessage()));
+        }
+    }
+
+    private void route(final HttpServerRequest request, final Buffer body) {
+        final QueryStringDecoder uri = new QueryStringDecoder(request.uri());
+        final List<String> path = new ArrayList<>();
+        for (final String segment : uri.path().split("/")) {
+            if (!segment.isEmpty()) {
+                path.add(QueryStringDecoder.decodeComponent(segment));
+            }
+        }
+        final Map<String, Object> params = new TreeMap<>();
+        for (final Map.Entry<String, List<String>> param : uri.parameters().entrySet()) {
+            params.put(param.getKey(), decodeParam(param.getValue().get(0)));
+        }
+        final String method = request.method();
+        if (path.isEmpty()) {
+            send(request, HttpURLConnection.HTTP_OK, new JsonObject().putString("couchdb", "Welcome")
+                    .putString("version", "1.6.1"));
+        } else if (path.size() == 1 && "_all_dbs".equals(path.get(0))) {
+            send(request, HttpURLConnection.HTTP_OK, new JsonArray(new ArrayList<Object>(dbs.keySet())));
+        } else if (path.size() == 1 && "_active_tasks".equals(path.get(0))) {
+            send(request, HttpURLConnection.HTTP_OK, new JsonArray());
+        } else if (path.size() == 1) {
+            db(request, method, path.get(0), body);
+        } else {
+            final FakeDb db = dbs.get(path.get(0));
+            if (db == null) {
+                send(request, HttpURLConnection.HTTP_NOT_FOUND, error("not_found", "no_db_file"));
+            } else if (path.size() == 2 && "_all_docs".equals(path.get(1))) {
+                send(request, HttpURLConnection.HTTP_OK, db.query(null, params, body.length() > 0
+                        ? new JsonObject(body.toString("UTF-8")).getArray("keys") : null));
+            } else if (path.size() == 2 && "_bulk_docs".equals(path.get(1))) {
+                send(request, HttpURLConnection.HTTP_CREATED, db.bulkDocs(new JsonObject(body.toString("UTF-8"))
+                        .getArray("docs")));
+            } else if (path.size() == 5 && "_design".equals(path.get(1)) && "_view".equals(path.get(3))) {
+                final JsonObject designDoc = db.docs.get("_design/" + path.get(2));
+                final JsonObject view = designDoc != null && designDoc.getObject("views") != null
+                        ? designDoc.getObject("views").getObject(path.get(4)) : null;
+                if (view == null) {
+                    send(request, HttpURLConnection.HTTP_NOT_FOUND, error("not_found", "missing_named_view"));
+                } else {
+                    send(request, HttpURLConnection.HTTP_OK, db.query(view, params, null));
+                }
+            } else if (path.size() == 3 && ("_design".equals(path.get(1)) || "_local".equals(path.get(1)))) {
+                doc(request, method, db, path.get(1) + "/" + path.get(2), params, body);
+            } else if (path.size() == 2) {
+                doc(request, method, db, path.get(1), params, body);
+            } else {
+                send(request, HttpURLConnection.HTTP_NOT_FOUND, error("not_found", "missing"));
+            }
+        }
+    }
+
+    private void db(final HttpServerRequest request, final String method, final String name, final Buffer body) {
+        final FakeDb db = dbs.get(name);
+        if ("PUT".equals(method)) {
+            if (db != null) {
+                send(request, HttpURLConnection.HTTP_PRECON_FAILED, error("file_exists",
+                        "The database could not be created, the file already exists."));
+            } else {
+                dbs.put(name, new FakeDb(name));
+                send(request, HttpURLConnection.HTTP_CREATED, new JsonObject().putBoolean("ok", true));
+            }
+        } else if (db == null) {
+            send(request, HttpURLConnection.HTTP_NOT_FOUND, error("not_found", "no_db_file"));
+        } else if ("DELETE".equals(method)) {
+            dbs.remove(name);
+            send(request, HttpURLConnection.HTTP_OK, new JsonObject().putBoolean("ok", true));
+        } else if ("POST".equals(method)) {
+            final JsonObject doc = new JsonObject(body.toString("UTF-8"));
+            final String id = doc.getString("_id", UUID.randomUUID().toString().replace("-", ""));
+            final JsonObject result = db.update(id, doc);
+            send(request, result.containsField("error") ? HttpURLConnection.HTTP_CONFLICT
+                    : HttpURLConnection.HTTP_CREATED, result);
+        } else {
+            send(request, HttpURLConnection.HTTP_OK, new JsonObject().putString("db_name", name)
+                    .putNumber("doc_count", db.docs.size()).putNumber("update_seq", db.updateSeq));
+        }
+    }
+
+    private void doc(final HttpServerRequest request, final String method, final FakeDb db, final String id,
+                     final Map<String, Object> params, final Buffer body) {
+        final JsonObject doc = db.docs.get(id);
+        if ("PUT".equals(method)) {
+            final JsonObject update = new JsonObject(body.toString("UTF-8"));
+            if (params.containsKey("rev")) {
+                update.putString("_rev", String.valueOf(params.get("rev")));
+            }
+            final JsonObject result = db.update(id, update);
+            send(request, result.containsField("error") ? HttpURLConnection.HTTP_CONFLICT
+                    : HttpURLConnection.HTTP_CREATED, result);
+        } else if (doc == null) {
+            send(request, HttpURLConnection.HTTP_NOT_FOUND, error("not_found", db.deleted.contains(id) ? "deleted"
+                    : "missing"));
+        } else if ("DELETE".equals(method)) {
+            final JsonObject result = db.update(id, new JsonObject().putString("_rev",
+                    (String) params.get("rev")).putBoolean("_deleted", true));
+            send(request, result.containsField("error") ? HttpURLConnection.HTTP_CONFLICT
+                    : HttpURLConnection.HTTP_OK, result);
+        } else {
+            final String etag = String.format("\"%1$s\"", doc.getString("_rev"));
+            request.response().putHeader("ETag", etag);
+            if (etag.equals(request.headers().get("If-None-Match"))) {
+                request.response().setStatusCode(HttpURLConnection.HTTP_NOT_MODIFIED)
+                        .setStatusMessage(HttpResponseStatus.NOT_MODIFIED.reasonPhrase()).end();
+            } else {
+                send(request, HttpURLConnection.HTTP_OK, "HEAD".equals(method) ? null : doc);
+            }
+        }
+    }
+
+    private Object decodeParam(final String value) {
+        try {
+            return new JsonArray("[" + value + "]").get(0);
+        } catch (DecodeException ex) {
+            return value;
+        }
+    }
+
+    private static JsonObject error(final String error, final String reason) {
+        return new JsonObject().putString("error", error).putString("reason", reason);
+    }
+
+    private void send(final HttpServerRequest request, final int statusCode, final Object json) {
+        if (lostResponses > 0 && statusCode < HttpURLConnection.HTTP_INTERNAL_ERROR) {
+            lostResponses--;
+            send(request, HttpURLConnection.HTTP_INTERNAL_ERROR, error("internal_server_error", "lost response"));
+            return;
+        }
+        final Buffer body = json == null ? new Buffer(0) : new Buffer(json instanceof JsonObject
+                ? ((JsonObject) json).encode() : ((JsonArray) json).encode(), "UTF-8");
+        request.response().setStatusCode(statusCode)
+                .setStatusMessage(statusCode == HttpURLConnection.HTTP_NOT_FOUND ? "Object Not Found"
+                        : HttpResponseStatus.valueOf(statusCode).reasonPhrase())
+                .putHeader("Content-Type", "application/json")
+                .putHeader("Content-Length", String.valueOf(body.length())).end(body);
+    }
+
+    /**
+     * An in memory database.
+     */
+    private final class FakeDb {
+
+        private final String name;
+        private final TreeMap<String, JsonObject> docs = new TreeMap<>();
+        private final Set<String> deleted = new HashSet<>();
+        private long updateSeq;
+
+        private FakeDb(final String name) {
+            this.name = name;
+        }
+
+        private JsonObject update(final String id, final JsonObject doc) {
+            final JsonObject current = docs.get(id);
+            final String rev = doc.getString("_rev");
+            if (current != null ? !current.getString("_rev").equals(rev) : rev != null && !deleted.contains(id)) {
+                return new JsonObject().putString("id", id).putString("error", "conflict")
+                        .putString("reason", "Document update conflict.");
+            }
+            final int generation = current != null ? Integer.parseInt(current.getString("_rev").split("-")[0]) : 0;
+            final String newRev = String.format("%1$d-%2$032x", generation + 1, random.nextLong() & Long.MAX_VALUE);
+            updateSeq++;
+            if (doc.getBoolean("_deleted", false)) {
+                docs.remove(id);
+                deleted.add(id);
+            } else {
+                docs.put(id, doc.copy().putString("_id", id).putString("_rev", newRev));
+                deleted.remove(id);
+            }
+            return new JsonObject().putBoolean("ok", true).putString("id", id).putString("rev", newRev);
+        }
+
+        private JsonArray bulkDocs(final JsonArray bulk) {
+            final JsonArray results = new JsonArray();
+            for (final Object doc : bulk) {
+                final JsonObject jsonDoc = (JsonObject) doc;
+                final JsonObject result = update(jsonDoc.getString("_id",
+                        UUID.randomUUID().toString().replace("-", "")), jsonDoc);
+                result.removeField("ok");
+                results.addObject(result);
+            }
+            return results;
+        }
+
+        private JsonObject query(final JsonObject view, final Map<String, Object> params, final JsonArray keys) {
+            final boolean includeDocs = Boolean.TRUE.equals(params.get("include_docs"));
+            final JsonArray rows = new JsonArray();
+            if (keys != null) {
+                for (final Object key : keys) {
+                    final JsonObject doc = docs.get(String.valueOf(key));
+                    if (doc != null) {
+                        rows.addObject(row(doc, view, includeDocs));
+                    } else {
+                        rows.addObject(new JsonObject().putValue("key", key).putString("error", "not_found"));
+                    }
+                }
+            } else {
+                final String startkey = params.containsKey("startkey") ? String.valueOf(params.get("startkey")) : "";
+                final String endkey = params.containsKey("endkey") ? String.valueOf(params.get("endkey")) : null;
+                final long skip = params.containsKey("skip") ? ((Number) params.get("skip")).longValue() : 0;
+                final long limit = params.containsKey("limit") ? ((Number) params.get("limit")).longValue()
+                        : Long.MAX_VALUE;
+                long offset = 0;
+                for (final JsonObject doc : docs.tailMap(startkey, true).values()) {
+                    final String id = doc.getString("_id");
+                    if (endkey != null && id.compareTo(endkey) > 0 || rows.size() >= limit) {
+                        break;
+                    }
+                    if (view != null && id.startsWith("_design/") || offset++ < skip) {
+                        continue;
+                    }
+                    rows.addObject(row(doc, view, includeDocs));
+                }
+            }
+            final JsonObject result;
+            if (view != null && view.getString("reduce") != null && !Boolean.FALSE.equals(params.get("reduce"))) {
+                result = new JsonObject().putArray("rows", new JsonArray().addObject(new JsonObject()
+                        .putValue("key", null).putNumber("value", rows.size())));
+            } else {
+                result = new JsonObject().putNumber("total_rows", docs.size()).putNumber("offset", 0)
+                        .putArray("rows", rows);
+            }
+            if (Boolean.TRUE.equals(params.get("update_seq"))) {
+                result.putNumber("update_seq", updateSeq);
+            }
+            return result;
+        }
+
+        private JsonObject row(final JsonObject doc, final JsonObject view, final boolean includeDocs) {
+            final String id = doc.getString("_id");
+            final JsonObject row = new JsonObject().putString("id", id).putString("key", id);
+            if (view != null) {
+                row.putNumber("value", 1);
+            } else {
+                row.putObject("value", new JsonObject().putString("rev", doc.getString("_rev")));
+            }
+            if (includeDocs) {
+                row.putObject("doc", doc);
+            }
+            return row;
+        }
+    }
+}
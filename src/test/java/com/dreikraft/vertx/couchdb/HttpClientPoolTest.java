@@ -0,0 +1,126 @@
+package com.dreikraft.vertx.couchdb;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.Vertx;
+import org.vertx.java.core.VertxFactory;
+import org.vertx.java.core.http.HttpClient;
+import org.vertx.java.core.json.JsonObject;
+import org.vertx.java.core.logging.impl.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests the admission control and the idle timeout of the HttpClientPool. No requests are sent, leases are only taken
+ * and released.
+ *
+ * @author jansolo
+ */
+public class HttpClientPoolTest {
+
+    private Vertx vertx;
+    private HttpClientPool pool;
+    private final List<String> admitted = new ArrayList<>();
+    private final List<HttpClientPool.Lease> leases = new ArrayList<>();
+
+    /**
+     * Creates a pool with a single request in flight, two waiting requests per lane and two reads per write.
+     */
+    @Before
+    public void setUp() {
+        vertx = VertxFactory.newVertx();
+        pool = new HttpClientPool(vertx, LoggerFactory.getLogger(HttpClientPoolTest.class), "localhost", 5984, 1,
+                true, false, 1, 0, 1, 2, 2, new CircuitBreaker(5, 5000, null));
+    }
+
+    /**
+     * Closes the pool.
+     */
+    @After
+    public void tearDown() {
+        pool.close();
+        vertx.stop();
+    }
+
+    private boolean execute(final String name, final boolean write) {
+        return pool.execute(new Handler<HttpClientPool.Lease>() {
+            @Override
+            public void handle(final HttpClientPool.Lease lease) {
+                admitted.add(name);
+                leases.add(lease);
+            }
+        }, write);
+    }
+
+    private void releaseAll() {
+        while (leases.size() > 0) {
+            leases.remove(0).release();
+        }
+    }
+
+    /**
+     * Queues reads and writes behind a request in flight and rejects requests beyond a full lane.
+     */
+    @Test
+    public void testAdmission() {
+        Assert.assertTrue(execute("r0", false));
+        Assert.assertTrue(execute("r1", false));
+        Assert.assertTrue(execute("r2", false));
+        Assert.assertFalse(execute("r3", false));
+        Assert.assertTrue(execute("w0", true));
+        Assert.assertTrue(execute("w1", true));
+        Assert.assertFalse(execute("w2", true));
+
+        final JsonObject stats = pool.getStats();
+        Assert.assertEquals(1, stats.getInteger("active").intValue());
+        Assert.assertEquals(2, stats.getInteger("waitingReads").intValue());
+        Assert.assertEquals(2, stats.getInteger("waitingWrites").intValue());
+        Assert.assertEquals(2, stats.getLong("rejected").longValue());
+        Assert.assertEquals(1, admitted.size());
+
+        releaseAll();
+        Assert.assertEquals(5, admitted.size());
+        Assert.assertEquals(0, pool.getStats().getInteger("waiting").intValue());
+        Assert.assertEquals(5, pool.getStats().getObject("waitTime").getLong("count").longValue());
+    }
+
+    /**
+     * Admits <code>readWeight</code> reads per write, when both lanes are waiting.
+     */
+    @Test
+    public void testLanes() {
+        execute("r0", false);
+        execute("w0", true);
+        execute("w1", true);
+        execute("r1", false);
+        execute("r2", false);
+        releaseAll();
+        Assert.assertEquals("[r0, r1, r2, w0, w1]", admitted.toString());
+    }
+
+    /**
+     * Closes the http client after the idle timeout and creates a new one on the next request.
+     *
+     * @throws InterruptedException if interrupted while waiting for the idle timeout
+     */
+    @Test
+    public void testIdleTimeout() throws InterruptedException {
+        pool.close();
+        pool = new HttpClientPool(vertx, LoggerFactory.getLogger(HttpClientPoolTest.class), "localhost", 5984, 1,
+                true, false, 1, 100, 1, 2, 2, new CircuitBreaker(5, 5000, null));
+        execute("r0", false);
+        final HttpClient client = leases.get(0).getClient();
+        releaseAll();
+        execute("r1", false);
+        Assert.assertSame(client, leases.get(0).getClient());
+        releaseAll();
+        Thread.sleep(500);
+        execute("r2", false);
+        Assert.assertNotSame(client, leases.get(0).getClient());
+        Assert.assertFalse(pool.getStats().containsField("idle"));
+    }
+}
@@ -0,0 +1,43 @@
+package com.dreikraft.vertx.couchdb;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.vertx.java.core.buffer.Buffer;
+import org.vertx.java.core.json.DecodeException;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+/**
+ * Tests the JsonBody decoder.
+ *
+ * @author jansolo
+ */
+public class JsonBodyTest {
+
+    /**
+     * Decodes objects, arrays and plain text bodies.
+     */
+    @Test
+    public void testDecode() {
+        final Object doc = JsonBody.decode(new Buffer(" \r\n{\"_id\":\"dummy1\",\"tags\":[\"a\",{\"b\":1}]}"));
+        Assert.assertTrue(doc instanceof JsonObject);
+        Assert.assertEquals("dummy1", ((JsonObject) doc).getString("_id"));
+        Assert.assertEquals(1, ((JsonObject) ((JsonObject) doc).getArray("tags").get(1)).getInteger("b")
+                .intValue());
+
+        final Object dbs = JsonBody.decode(new Buffer("[\"_replicator\",\"_users\"]\n"));
+        Assert.assertTrue(dbs instanceof JsonArray);
+        Assert.assertEquals(2, ((JsonArray) dbs).size());
+
+        Assert.assertEquals("<html>error</html>", JsonBody.decode(new Buffer("<html>error</html>")));
+        Assert.assertEquals("", JsonBody.decode(new Buffer()));
+    }
+
+    /**
+     * Fails on truncated JSON.
+     */
+    @Test(expected = DecodeException.class)
+    public void testDecodeTruncated() {
+        JsonBody.decode(new Buffer("{\"_id\":\"dumm"));
+    }
+}
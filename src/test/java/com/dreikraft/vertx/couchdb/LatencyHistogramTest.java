@@ -0,0 +1,65 @@
+package com.dreikraft.vertx.couchdb;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests the LatencyHistogram.
+ *
+ * @author jansolo
+ */
+public class LatencyHistogramTest {
+
+    /**
+     * Checks, that every value falls into a bucket, whose highest equivalent value is within 12.5% of the value.
+     */
+    @Test
+    public void testBuckets() {
+        for (long value = 0; value < 100000; value += 7) {
+            final long highest = LatencyHistogram.highestEquivalentValue(LatencyHistogram.index(value));
+            Assert.assertTrue(highest >= value);
+            Assert.assertTrue(highest - value <= value / 8);
+        }
+        Assert.assertEquals(Long.MAX_VALUE, LatencyHistogram.highestEquivalentValue(LatencyHistogram.index(
+                Long.MAX_VALUE)));
+    }
+
+    /**
+     * Records values and checks the percentiles.
+     */
+    @Test
+    public void testPercentiles() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        for (long value = 1; value <= 1000; value++) {
+            histogram.record(value);
+        }
+        Assert.assertEquals(1000, histogram.getCount());
+        Assert.assertEquals(1, histogram.getValueAtPercentile(0));
+        Assert.assertEquals(1000, histogram.getValueAtPercentile(100));
+        Assert.assertEquals(500, histogram.getValueAtPercentile(50), 500 / 8);
+        Assert.assertEquals(990, histogram.getValueAtPercentile(99), 990 / 8);
+        Assert.assertEquals(500, histogram.toJson().getLong("mean").longValue());
+    }
+
+    /**
+     * Merges serialized histograms.
+     */
+    @Test
+    public void testMerge() {
+        final LatencyHistogram low = new LatencyHistogram();
+        final LatencyHistogram high = new LatencyHistogram();
+        for (long value = 1; value <= 100; value++) {
+            low.record(value);
+            high.record(value * 100);
+        }
+        final LatencyHistogram merged = new LatencyHistogram();
+        merged.merge(low.toJson());
+        merged.merge(high.toJson());
+        merged.merge(new LatencyHistogram().toJson());
+        Assert.assertEquals(200, merged.getCount());
+        Assert.assertEquals(1, merged.toJson().getLong("min").longValue());
+        Assert.assertEquals(10000, merged.toJson().getLong("max").longValue());
+        Assert.assertEquals(100, merged.getValueAtPercentile(50), 100 / 8);
+        Assert.assertEquals(high.getValueAtPercentile(90), merged.getValueAtPercentile(95));
+    }
+}
@@ -0,0 +1,36 @@
+package com.dreikraft.vertx.couchdb;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests the LruCache.
+ *
+ * @author jansolo
+ */
+public class LruCacheTest {
+
+    /**
+     * Evicts the least recently used entries, when the maximum size is exceeded.
+     */
+    @Test
+    public void testEviction() {
+        final LruCache<String> cache = new LruCache<>(100);
+        cache.put("dummy/dummy1", "\"1-a\"", "dummy1", 40);
+        cache.put("dummy/dummy2", "\"1-b\"", "dummy2", 40);
+        Assert.assertEquals("dummy1", cache.get("dummy/dummy1").getValue());
+        cache.put("dummy/dummy3", "\"1-c\"", "dummy3", 40);
+        Assert.assertNull(cache.get("dummy/dummy2"));
+        Assert.assertNotNull(cache.get("dummy/dummy1"));
+        Assert.assertNotNull(cache.get("dummy/dummy3"));
+        Assert.assertEquals(80, cache.getStats().getLong("size").longValue());
+        Assert.assertEquals(1, cache.getStats().getLong("evictions").longValue());
+
+        cache.put("dummy/huge", "\"1-d\"", "huge", 101);
+        Assert.assertNull(cache.get("dummy/huge"));
+
+        cache.removeAll("dummy/");
+        Assert.assertEquals(0, cache.getStats().getInteger("entries").intValue());
+        Assert.assertEquals(0, cache.getStats().getLong("size").longValue());
+    }
+}
@@ -0,0 +1,40 @@
+package com.dreikraft.vertx.couchdb;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.vertx.java.core.buffer.Buffer;
+import org.vertx.java.core.http.CaseInsensitiveMultiMap;
+import org.vertx.java.core.json.JsonObject;
+
+/**
+ * Tests the RawReply encoding.
+ *
+ * @author jansolo
+ */
+public class RawReplyTest {
+
+    /**
+     * Encodes and decodes a raw reply.
+     */
+    @Test
+    public void testEncode() {
+        final String doc = "{\"_id\":\"dummy1\",\"name\":\"\u00e4\u00f6\u00fc\"}";
+        final Buffer reply = RawReply.encode(200, "OK", new CaseInsensitiveMultiMap()
+                .add("Content-Type", "application/json").add("ETag", "\"1-abc\""), new Buffer(doc, "UTF-8"));
+        final JsonObject header = RawReply.getHeader(reply);
+        Assert.assertEquals("ok", header.getString("status"));
+        Assert.assertEquals(200, header.getInteger("statusCode").intValue());
+        Assert.assertEquals("\"1-abc\"", header.getObject("headers").getString("ETag"));
+        Assert.assertEquals(doc, RawReply.getBody(reply).toString("UTF-8"));
+    }
+
+    /**
+     * Encodes an error reply.
+     */
+    @Test
+    public void testEncodeError() {
+        final Buffer reply = RawReply.encodeError("failed to query /dummy: Connection refused");
+        Assert.assertEquals("error", RawReply.getHeader(reply).getString("status"));
+        Assert.assertEquals(0, RawReply.getBody(reply).length());
+    }
+}
@@ -0,0 +1,83 @@
+package com.dreikraft.vertx.couchdb;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+/**
+ * Tests the RequestBuilder.
+ *
+ * @author jansolo
+ */
+public class RequestBuilderTest {
+
+    /**
+     * Builds document and view uris.
+     */
+    @Test
+    public void testUri() {
+        Assert.assertEquals("/dummy/dummy1", RequestBuilder.uri(RequestBuilder.path(CouchdbVerticle.ADDRESS_SERVER),
+                "dummy", "dummy1", null));
+        Assert.assertEquals("/dummy/_design/dummy", RequestBuilder.uri(RequestBuilder.path(
+                String.format(CouchdbVerticle.ADDRESS_DB, "dummy")), null, "_design/dummy", null));
+        Assert.assertEquals("/dummy/_design/dummy/_view/all?reduce=false&limit=10&startkey=%22a%20b%22"
+                        + "&stale=ok&keys=%5B%22a%22,1%5D", RequestBuilder.uri(RequestBuilder.path(
+                        String.format(CouchdbVerticle.ADDRESS_VIEW, "dummy", "dummy", "all")), null, null,
+                new JsonArray().addObject(new JsonObject().putBoolean("reduce", false))
+                        .addObject(new JsonObject().putNumber("limit", 10))
+                        .addObject(new JsonObject().putString("startkey", "a b"))
+                        .addObject(new JsonObject().putString("stale", "ok"))
+                        .addObject(new JsonObject().putArray("keys", new JsonArray().addString("a").addNumber(1)))));
+    }
+
+    /**
+     * Encodes reserved and non-ASCII characters.
+     */
+    @Test
+    public void testEncoding() {
+        Assert.assertEquals("/a%2Fb/c%2Bd%3Fe%2F%C3%A4%F0%9F%98%80", RequestBuilder.uri("/", "a/b",
+                "c+d?e/\u00e4\ud83d\ude00", null));
+        Assert.assertEquals("/a/_design/b%2Fc", RequestBuilder.uri("/", "a", "_design/b/c", null));
+        Assert.assertEquals("/a/_local/b%2Fc", RequestBuilder.uri("/", "a", "_local/b/c", null));
+        Assert.assertEquals("/a/b%2Fc/d/e%20f.txt", RequestBuilder.uri("/", "a", "b/c", "d/e f.txt", null));
+        Assert.assertEquals("/?key=%22say%20%5C%22hi%5C%22%20%5C%5C%20%5Cu000A%22&rev=1-abc%26",
+                RequestBuilder.uri("/", null, null, new JsonArray().addObject(new JsonObject()
+                        .putString("key", "say \"hi\" \\ \n").putString("rev", "1-abc&"))));
+    }
+
+    /**
+     * Encodes the database name in the path of a database handler.
+     */
+    @Test
+    public void testDbPath() {
+        Assert.assertEquals("/a%2Fb", RequestBuilder.path(String.format(CouchdbVerticle.ADDRESS_DB, "a/b"), "a/b"));
+        Assert.assertEquals("/a%2Fb/_all_docs", RequestBuilder.path(
+                String.format(CouchdbVerticle.ADDRESS_ALL_DOCS, "a/b"), "a/b"));
+        Assert.assertEquals("/a%2Fb/_design/c/_view/d?limit=1", RequestBuilder.uri(RequestBuilder.path(
+                String.format(CouchdbVerticle.ADDRESS_VIEW, "a/b", "c", "d"), "a/b"), null, null,
+                new JsonArray().addObject(new JsonObject().putNumber("limit", 1))));
+        Assert.assertEquals("/a%2Fb/c%2Fd", RequestBuilder.uri(RequestBuilder.path(
+                String.format(CouchdbVerticle.ADDRESS_DB, "a/b"), "a/b"), null, "c/d", null));
+    }
+
+    /**
+     * Builds and caches basic authorization headers.
+     */
+    @Test
+    public void testBasicAuth() {
+        Assert.assertNull(RequestBuilder.basicAuth("admin", null));
+        Assert.assertEquals("Basic YWRtaW46YWRtaW4=", RequestBuilder.basicAuth("admin", "admin"));
+        Assert.assertEquals("Basic YTpi", RequestBuilder.basicAuth("a", "b"));
+        Assert.assertEquals("Basic YTpiYw==", RequestBuilder.basicAuth("a", "bc"));
+        final RequestBuilder.Authorizations authorizations = new RequestBuilder.Authorizations("admin", "admin");
+        Assert.assertSame(authorizations.get("admin", "admin"), authorizations.get("admin", "admin"));
+        Assert.assertSame(authorizations.get("a", "b"), authorizations.get("a", "b"));
+        Assert.assertEquals("Basic YTpi", authorizations.get("a", "b"));
+        Assert.assertNull(authorizations.get(null, null));
+        Assert.assertEquals(64, authorizations.digest("admin", "admin").length());
+        Assert.assertSame(authorizations.digest("a", "b"), authorizations.digest("a", "b"));
+        Assert.assertFalse(authorizations.digest("a", "b").equals(authorizations.digest("a", "c")));
+        Assert.assertNull(authorizations.digest("a", null));
+    }
+}
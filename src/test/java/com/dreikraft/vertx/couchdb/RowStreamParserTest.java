@@ -0,0 +1,108 @@
+package com.dreikraft.vertx.couchdb;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.buffer.Buffer;
+import org.vertx.java.core.json.JsonObject;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests the RowStreamParser.
+ *
+ * @author jansolo
+ */
+public class RowStreamParserTest {
+
+    private static final String VIEW_RESPONSE = "{\"total_rows\":3,\"offset\":0,\"rows\":[\r\n"
+            + "{\"id\":\"dummy1\",\"key\":\"dummy1\",\"value\":{\"rows\":[1,2]}},\r\n"
+            + "{\"id\":\"dummy2\",\"key\":\"dum\\\"]}my2\",\"value\":\"\u00e4\u00f6\u00fc\"},\r\n"
+            + "{\"id\":\"dummy3\",\"key\":[\"dummy3\",{}],\"value\":null}\r\n"
+            + "],\"update_seq\":12}";
+
+    /**
+     * Parses a view response split into chunks of every possible size.
+     */
+    @Test
+    public void testChunkedRows() {
+        final byte[] bytes = new Buffer(VIEW_RESPONSE, "UTF-8").getBytes();
+        for (int chunkSize = 1; chunkSize <= bytes.length; chunkSize++) {
+            final List<JsonObject> rows = new ArrayList<>();
+            final RowStreamParser parser = new RowStreamParser(new Handler<Buffer>() {
+                @Override
+                public void handle(final Buffer row) {
+                    rows.add(new JsonObject(row.toString("UTF-8")));
+                }
+            });
+            for (int i = 0; i < bytes.length; i += chunkSize) {
+                parser.feed(new Buffer(bytes).getBuffer(i, Math.min(bytes.length, i + chunkSize)));
+            }
+            Assert.assertTrue(parser.isComplete());
+            Assert.assertEquals(3, rows.size());
+            Assert.assertEquals("dummy1", rows.get(0).getString("id"));
+            Assert.assertEquals("dum\"]}my2", rows.get(1).getString("key"));
+            Assert.assertEquals("\u00e4\u00f6\u00fc", rows.get(1).getString("value"));
+            Assert.assertEquals(2, rows.get(2).getArray("key").size());
+            final JsonObject envelope = parser.getEnvelope();
+            Assert.assertEquals(3, envelope.getInteger("total_rows").intValue());
+            Assert.assertEquals(12, envelope.getInteger("update_seq").intValue());
+            Assert.assertEquals(0, envelope.getArray("rows").size());
+        }
+    }
+
+    /**
+     * Parses a response without rows.
+     */
+    @Test
+    public void testEmptyRows() {
+        final List<Buffer> rows = new ArrayList<>();
+        final RowStreamParser parser = new RowStreamParser(new Handler<Buffer>() {
+            @Override
+            public void handle(final Buffer row) {
+                rows.add(row);
+            }
+        });
+        parser.feed(new Buffer("{\"total_rows\":0,\"offset\":0,\"rows\":[]}"));
+        Assert.assertTrue(parser.isComplete());
+        Assert.assertTrue(rows.isEmpty());
+        Assert.assertEquals(0, parser.getEnvelope().getInteger("total_rows").intValue());
+    }
+
+    /**
+     * A response cut off in the middle of the rows is not complete.
+     */
+    @Test
+    public void testTruncatedRows() {
+        final List<Buffer> rows = new ArrayList<>();
+        final RowStreamParser parser = new RowStreamParser(new Handler<Buffer>() {
+            @Override
+            public void handle(final Buffer row) {
+                rows.add(row);
+            }
+        });
+        parser.feed(new Buffer(VIEW_RESPONSE.substring(0, VIEW_RESPONSE.indexOf("dummy2")), "UTF-8"));
+        Assert.assertFalse(parser.isComplete());
+        Assert.assertEquals(1, rows.size());
+    }
+
+    /**
+     * Reads the raw value of a row field without decoding the row.
+     */
+    @Test
+    public void testGetField() {
+        final Buffer row = new Buffer("{\"id\":\"dummy1\",\"key\":\"doc\",\"value\":{\"doc\":1},"
+                + "\"doc\":{\"_id\":\"dummy1\",\"a\":[1,{\"b\":\"}\\\",\"}],\"c\":\"\u00e4\"}}", "UTF-8");
+        Assert.assertEquals("{\"_id\":\"dummy1\",\"a\":[1,{\"b\":\"}\\\",\"}],\"c\":\"\u00e4\"}",
+                RowStreamParser.getField(row, "doc").toString("UTF-8"));
+        Assert.assertEquals("\"dummy1\"", RowStreamParser.getField(row, "id").toString("UTF-8"));
+        Assert.assertEquals("{\"doc\":1}", RowStreamParser.getField(row, "value").toString("UTF-8"));
+        Assert.assertNull(RowStreamParser.getField(row, "do"));
+        Assert.assertNull(RowStreamParser.getField(new Buffer("{\"key\":\"dummy9\",\"error\":\"not_found\"}"),
+                "doc"));
+        Assert.assertNull(RowStreamParser.getField(new Buffer("{\"id\":\"dummy2\", \"doc\" : null }"), "doc"));
+        Assert.assertEquals("true", RowStreamParser.getField(new Buffer("{\"id\":\"dummy2\", \"doc\" : true }"),
+                "doc").toString("UTF-8"));
+    }
+}
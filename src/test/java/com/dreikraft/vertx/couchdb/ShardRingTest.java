@@ -0,0 +1,81 @@
+package com.dreikraft.vertx.couchdb;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tests the ShardRing.
+ *
+ * @author jansolo
+ */
+public class ShardRingTest {
+
+    private static final int KEYS = 10000;
+
+    private static ShardRing<String> createRing(final List<String> names, final List<Integer> weights) {
+        return new ShardRing<>(names, names, weights, 160);
+    }
+
+    private static Map<String, Integer> distribution(final ShardRing<String> ring) {
+        final Map<String, Integer> counts = new HashMap<>();
+        for (int i = 0; i < KEYS; i++) {
+            final String node = ring.get("tenant" + i);
+            counts.put(node, counts.containsKey(node) ? counts.get(node) + 1 : 1);
+        }
+        return counts;
+    }
+
+    /**
+     * Spreads the keys evenly and by weight.
+     */
+    @Test
+    public void testDistribution() {
+        final Map<String, Integer> even = distribution(createRing(Arrays.asList("a:5984", "b:5984", "c:5984"),
+                Arrays.asList(1, 1, 1)));
+        for (final int count : even.values()) {
+            Assert.assertEquals(KEYS / 3, count, KEYS / 3 / 5);
+        }
+        final Map<String, Integer> weighted = distribution(createRing(Arrays.asList("a:5984", "b:5984"),
+                Arrays.asList(1, 3)));
+        Assert.assertEquals(KEYS / 4, weighted.get("a:5984"), KEYS / 4 / 5);
+    }
+
+    /**
+     * Moves only the keys taken over by an added node.
+     */
+    @Test
+    public void testAddNode() {
+        final ShardRing<String> before = createRing(Arrays.asList("a:5984", "b:5984", "c:5984"),
+                Arrays.asList(1, 1, 1));
+        final ShardRing<String> after = createRing(Arrays.asList("a:5984", "b:5984", "c:5984", "d:5984"),
+                Arrays.asList(1, 1, 1, 1));
+        int moved = 0;
+        for (int i = 0; i < KEYS; i++) {
+            final String node = after.get("tenant" + i);
+            if (!node.equals(before.get("tenant" + i))) {
+                Assert.assertEquals("d:5984", node);
+                moved++;
+            }
+        }
+        Assert.assertEquals(KEYS / 4, moved, KEYS / 4 / 5);
+    }
+
+    /**
+     * Prefers overrides over the ring.
+     */
+    @Test
+    public void testOverride() {
+        final ShardRing<String> ring = createRing(Arrays.asList("a:5984", "b:5984"), Arrays.asList(1, 1));
+        final String node = ring.get("tenant42");
+        final String other = "a:5984".equals(node) ? "b:5984" : "a:5984";
+        ring.override("tenant42", other);
+        Assert.assertEquals(other, ring.get("tenant42"));
+        Assert.assertEquals(ring.get("tenant43"), createRing(Arrays.asList("a:5984", "b:5984"),
+                Arrays.asList(1, 1)).get("tenant43"));
+    }
+}